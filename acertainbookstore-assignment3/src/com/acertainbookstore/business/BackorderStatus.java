@@ -0,0 +1,17 @@
+package com.acertainbookstore.business;
+
+/**
+ * {@link BackorderStatus} is the state of a backorder, cf.
+ * {@link com.acertainbookstore.interfaces.BookStore#awaitBackorder(long, long)}.
+ */
+public enum BackorderStatus {
+
+	/** The backorder is waiting for copies. */
+	PENDING,
+
+	/** The copies were bought for the backorder. */
+	FULFILLED,
+
+	/** The book was removed before the backorder was fulfilled. */
+	CANCELLED;
+}
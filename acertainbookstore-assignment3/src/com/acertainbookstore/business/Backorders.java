@@ -0,0 +1,263 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link Backorders} keeps the backorders of a store in a FIFO queue per
+ * ISBN, cf. {@link com.acertainbookstore.interfaces.BookStore#placeBackorder(BookCopy)}.
+ * The store drains the queue of a book whenever it adds copies to it, in the
+ * same call and under the same locks, and a backorder is fulfilled as soon as
+ * the copies it waits for are bought for it. A backorder at the head of a
+ * queue that cannot be filled yet holds back the ones behind it.
+ *
+ * The queues are thread-safe. The store must place the backorders of a book
+ * and cancel them under locks that keep the book from being removed and added
+ * in between, so that no backorder is left in the queue of a removed book.
+ */
+final class Backorders {
+
+	/** The maximum number of outcomes kept for backorders no longer queued. */
+	static final int MAX_COMPLETED = 1 << 16;
+
+	/**
+	 * Takes copies of a book for a backorder.
+	 */
+	@FunctionalInterface
+	interface CopyTaker {
+
+		/**
+		 * Takes the copies if all of them are available, otherwise takes
+		 * none.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @param numCopies
+		 *            the number of copies
+		 * @return true, if the copies were taken
+		 */
+		boolean take(int isbn, int numCopies);
+	}
+
+	/**
+	 * A backorder waiting for copies.
+	 */
+	private static final class Backorder {
+
+		/** The id. */
+		private final long id;
+
+		/** The number of copies. */
+		private final int numCopies;
+
+		/** Completed with the outcome once the backorder leaves its queue. */
+		private final CompletableFuture<BackorderStatus> outcome = new CompletableFuture<>();
+
+		private Backorder(long id, int numCopies) {
+			this.id = id;
+			this.numCopies = numCopies;
+		}
+	}
+
+	/** The next backorder id. */
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	/** The queue of backorders of each book by ISBN. */
+	private final ConcurrentHashMap<Integer, ArrayDeque<Backorder>> queues = new ConcurrentHashMap<>();
+
+	/** The queued backorders by id. */
+	private final ConcurrentHashMap<Long, Backorder> queued = new ConcurrentHashMap<>();
+
+	/** The outcomes of the backorders no longer queued by id, oldest first. */
+	private final LinkedHashMap<Long, BackorderStatus> completed = new LinkedHashMap<>();
+
+	/**
+	 * Checks that the timeout is one a client may wait for.
+	 *
+	 * @param timeoutMillis
+	 *            the timeout in milliseconds
+	 * @throws BookStoreException
+	 *             if the timeout is negative
+	 */
+	static void validateTimeout(long timeoutMillis) throws BookStoreException {
+		if (timeoutMillis < 0) {
+			throw new BookStoreException(BookStoreConstants.TIMEOUT + timeoutMillis + BookStoreConstants.INVALID);
+		}
+	}
+
+	/**
+	 * Queues a backorder behind the ones already placed for the book. The
+	 * caller drains the queue next, so that it is filled at once if the copies
+	 * are there.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param numCopies
+	 *            the number of copies
+	 * @return the id of the backorder
+	 */
+	long place(int isbn, int numCopies) {
+		Backorder backorder = new Backorder(nextId.getAndIncrement(), numCopies);
+		ArrayDeque<Backorder> queue = queues.computeIfAbsent(isbn, key -> new ArrayDeque<>());
+
+		synchronized (queue) {
+			queued.put(backorder.id, backorder);
+			queue.add(backorder);
+		}
+
+		return backorder.id;
+	}
+
+	/**
+	 * Fills the backorders of the book in order, as long as the copies for the
+	 * one at the head can be taken.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param taker
+	 *            takes the copies of the book
+	 */
+	void drain(int isbn, CopyTaker taker) {
+		ArrayDeque<Backorder> queue = queues.get(isbn);
+
+		if (queue == null) {
+			return;
+		}
+
+		synchronized (queue) {
+			Backorder head;
+
+			while ((head = queue.peek()) != null && taker.take(isbn, head.numCopies)) {
+				queue.poll();
+				complete(head, BackorderStatus.FULFILLED);
+			}
+		}
+	}
+
+	/**
+	 * Gets the copies of the backorders queued for the book, e.g. to check an
+	 * atomic batch on a scratch store, cf. {@link BookStoreBatch}.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the copies of each backorder, in queue order
+	 */
+	int[] queuedCopies(int isbn) {
+		ArrayDeque<Backorder> queue = queues.get(isbn);
+
+		if (queue == null) {
+			return new int[0];
+		}
+
+		synchronized (queue) {
+			return queue.stream().mapToInt(backorder -> backorder.numCopies).toArray();
+		}
+	}
+
+	/**
+	 * Cancels the backorders of a removed book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 */
+	void cancel(int isbn) {
+		ArrayDeque<Backorder> queue = queues.remove(isbn);
+
+		if (queue == null) {
+			return;
+		}
+
+		synchronized (queue) {
+			for (Backorder backorder : queue) {
+				complete(backorder, BackorderStatus.CANCELLED);
+			}
+
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Cancels the backorders of all the books.
+	 */
+	void cancelAll() {
+		for (Integer isbn : queues.keySet()) {
+			cancel(isbn);
+		}
+	}
+
+	/**
+	 * Waits until the backorder is no longer pending or the timeout elapses,
+	 * the timeout being capped at
+	 * {@link BookStoreConstants#MAX_BACKORDER_WAIT_MILLIS}.
+	 *
+	 * @param id
+	 *            the id of the backorder
+	 * @param timeoutMillis
+	 *            the timeout in milliseconds
+	 * @return the status of the backorder
+	 * @throws BookStoreException
+	 *             if the backorder is unknown or the wait is interrupted
+	 */
+	BackorderStatus await(long id, long timeoutMillis) throws BookStoreException {
+		validateTimeout(timeoutMillis);
+
+		Backorder backorder = queued.get(id);
+
+		if (backorder == null) {
+			BackorderStatus status;
+
+			synchronized (completed) {
+				status = completed.get(id);
+			}
+
+			if (status == null) {
+				throw new BookStoreException(BookStoreConstants.BACKORDER + id + BookStoreConstants.INVALID);
+			}
+
+			return status;
+		}
+
+		try {
+			return backorder.outcome.get(Math.min(timeoutMillis, BookStoreConstants.MAX_BACKORDER_WAIT_MILLIS),
+					TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			return BackorderStatus.PENDING;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Records the outcome of a backorder that left its queue and wakes up its
+	 * waiters. The outcome is recorded before the backorder is dropped, so a
+	 * client always finds one or the other.
+	 */
+	private void complete(Backorder backorder, BackorderStatus status) {
+		synchronized (completed) {
+			completed.put(backorder.id, status);
+
+			if (completed.size() > MAX_COMPLETED) {
+				Iterator<Map.Entry<Long, BackorderStatus>> eldest = completed.entrySet().iterator();
+				eldest.next();
+				eldest.remove();
+			}
+		}
+
+		queued.remove(backorder.id);
+		backorder.outcome.complete(status);
+	}
+}
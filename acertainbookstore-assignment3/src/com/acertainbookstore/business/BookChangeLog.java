@@ -0,0 +1,162 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BookChangeLog} versions the changes to the books of a store, cf.
+ * {@link com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)}.
+ * Each change stamps its book with the current store version, and each sync
+ * advances the store version and hands the new version out, so a sync finds
+ * the books changed since the previous one by their stamps. There is no log
+ * of the changes themselves; only removed books leave a tombstone, and only
+ * the most recent tombstones are kept. A client that is older than the
+ * oldest tombstone dropped, or than the last time all the books were
+ * removed, has to start over from the full list.
+ * 
+ * The store version is thread-safe. The tombstones must be changed under the
+ * exclusive store lock and read under the shared one.
+ */
+final class BookChangeLog {
+
+	/** The maximum number of tombstones kept. */
+	static final int MAX_REMOVALS = 1 << 16;
+
+	/** The store version, books changed now are stamped with it. */
+	private final AtomicLong storeVersion = new AtomicLong(1);
+
+	/** The store versions of the removed books by ISBN, oldest first. */
+	private final LinkedHashMap<Integer, Long> removals = new LinkedHashMap<>();
+
+	/** The store version up to which clients must start over. */
+	private long horizon = 0;
+
+	/**
+	 * Checks that the version is one a client may sync from.
+	 *
+	 * @param version
+	 *            the version, 0 for a client without books
+	 * @throws BookStoreException
+	 *             if the version is negative
+	 */
+	static void validateVersion(long version) throws BookStoreException {
+		if (version < 0) {
+			throw new BookStoreException(BookStoreConstants.VERSION + version + BookStoreConstants.INVALID);
+		}
+	}
+
+	/**
+	 * Gets the current store version. A change stamped with it while the
+	 * book is locked against syncs is found by the next sync.
+	 *
+	 * @return the store version
+	 */
+	long getVersion() {
+		return storeVersion.get();
+	}
+
+	/**
+	 * Stamps a book changed without any lock against syncs. The stamp is
+	 * retried until the store version did not move across it, so that a sync
+	 * that advanced the version before the stamp finds the change in the next
+	 * sync, and any other sync sees the stamp together with the change.
+	 *
+	 * @param book
+	 *            the changed book
+	 */
+	void stamp(BookStoreBook book) {
+		long version;
+
+		do {
+			version = storeVersion.get();
+			book.stampChange(version);
+		} while (storeVersion.get() != version);
+	}
+
+	/**
+	 * Advances the store version for a sync. The books stamped with at least
+	 * the version the sync started from are the changed ones.
+	 *
+	 * @return the version the client syncs from next
+	 */
+	long advance() {
+		return storeVersion.incrementAndGet();
+	}
+
+	/**
+	 * Checks if a client syncing from the version must start over, either
+	 * because it missed tombstones or because the version was not handed out
+	 * by this store.
+	 *
+	 * @param version
+	 *            the version the client syncs from
+	 * @param nextVersion
+	 *            the version handed out by the sync, cf. {@link #advance()}
+	 * @return true, if the client must start over
+	 */
+	boolean isReset(long version, long nextVersion) {
+		return version <= horizon || version >= nextVersion;
+	}
+
+	/**
+	 * Records the removal of the book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 */
+	void removed(int isbn) {
+		removals.remove(isbn);
+		removals.put(isbn, storeVersion.get());
+
+		if (removals.size() > MAX_REMOVALS) {
+			Iterator<Map.Entry<Integer, Long>> eldest = removals.entrySet().iterator();
+			horizon = Math.max(horizon, eldest.next().getValue());
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Drops the tombstone of a book added back, the book itself is reported
+	 * as changed.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 */
+	void added(int isbn) {
+		removals.remove(isbn);
+	}
+
+	/**
+	 * Records the removal of all the books, every client has to start over.
+	 */
+	void removedAll() {
+		removals.clear();
+		horizon = storeVersion.get();
+	}
+
+	/**
+	 * Gets the ISBNs of the books removed since the version.
+	 *
+	 * @param version
+	 *            the version the client syncs from
+	 * @return the ISBNs
+	 */
+	List<Integer> removedSince(long version) {
+		List<Integer> removedIsbns = new ArrayList<>();
+
+		for (Map.Entry<Integer, Long> removal : removals.entrySet()) {
+			if (removal.getValue() >= version) {
+				removedIsbns.add(removal.getKey());
+			}
+		}
+
+		return removedIsbns;
+	}
+}
@@ -0,0 +1,84 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+
+/**
+ * {@link BookChanges} is the delta between the books a client synced earlier
+ * and the books in the bookstore now, cf.
+ * {@link com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)}.
+ * A client applies it by dropping all its books if it is a reset, then
+ * dropping the removed books and replacing or adding the changed ones, and
+ * syncs from its version next.
+ */
+public final class BookChanges {
+
+	/** The version to sync from next. */
+	private final long version;
+
+	/** Whether the client must drop all its books first. */
+	private final boolean reset;
+
+	/** The books added or changed, all the books on a reset. */
+	private final List<StockBook> changedBooks;
+
+	/** The ISBNs of the books removed. */
+	private final List<Integer> removedIsbns;
+
+	/**
+	 * Instantiates a new {@link BookChanges}.
+	 *
+	 * @param version
+	 *            the version to sync from next
+	 * @param reset
+	 *            whether the client must drop all its books first
+	 * @param changedBooks
+	 *            the books added or changed
+	 * @param removedIsbns
+	 *            the ISBNs of the books removed
+	 */
+	public BookChanges(long version, boolean reset, List<StockBook> changedBooks, List<Integer> removedIsbns) {
+		this.version = version;
+		this.reset = reset;
+		this.changedBooks = changedBooks;
+		this.removedIsbns = removedIsbns;
+	}
+
+	/**
+	 * Gets the version to sync from next.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Checks if the client must drop all its books before applying the
+	 * changes, because the store no longer knows what it removed since the
+	 * client synced.
+	 *
+	 * @return true, if it is a reset
+	 */
+	public boolean isReset() {
+		return reset;
+	}
+
+	/**
+	 * Gets the books added or changed since the client synced, or all the
+	 * books on a reset.
+	 *
+	 * @return the books
+	 */
+	public List<StockBook> getChangedBooks() {
+		return changedBooks;
+	}
+
+	/**
+	 * Gets the ISBNs of the books removed since the client synced.
+	 *
+	 * @return the ISBNs
+	 */
+	public List<Integer> getRemovedIsbns() {
+		return removedIsbns;
+	}
+}
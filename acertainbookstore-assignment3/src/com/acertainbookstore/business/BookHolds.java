@@ -0,0 +1,204 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BookHolds} keeps the holds of a store, cf.
+ * {@link com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set, long)}.
+ * The store takes the copies of a hold out of stock when it places it, so a
+ * confirmed hold is a sale and only a cancelled or expired hold gives copies
+ * back, through the {@link CopyReleaser} of the store. Each hold is settled
+ * once: confirmed, cancelled or expired, whichever comes first.
+ * 
+ * The store decides what it records of the copies it took, e.g. the book
+ * they were taken from, so that they are only given back to that book and
+ * not to one added with the same ISBN after it was removed.
+ * 
+ * The holds expire on a {@link HoldTimerWheel}, which releases their copies
+ * on its own thread.
+ */
+final class BookHolds<T> {
+
+	/**
+	 * Gives back the copies of a hold that was cancelled or expired.
+	 */
+	@FunctionalInterface
+	interface CopyReleaser<T> {
+
+		/**
+		 * Adds the copies back to the books they were taken from, if these are
+		 * still in the store.
+		 *
+		 * @param heldCopies
+		 *            the copies, as recorded by the store
+		 */
+		void release(List<T> heldCopies);
+	}
+
+	/**
+	 * Copies held of a book, for the stores that keep their books as
+	 * {@link BookStoreBook} objects.
+	 */
+	static final class HeldCopies {
+
+		/** The book the copies were taken from. */
+		final BookStoreBook book;
+
+		/** The number of copies. */
+		final int numCopies;
+
+		HeldCopies(BookStoreBook book, int numCopies) {
+			this.book = book;
+			this.numCopies = numCopies;
+		}
+	}
+
+	/**
+	 * A hold on copies of books.
+	 */
+	private final class Hold extends HoldTimerWheel.Timeout {
+
+		/** The id. */
+		private final long id;
+
+		/** The copies held. */
+		private final List<T> heldCopies;
+
+		/** Set once the hold is confirmed, cancelled or expired. */
+		private final AtomicBoolean settled = new AtomicBoolean();
+
+		private Hold(long id, List<T> heldCopies) {
+			this.id = id;
+			this.heldCopies = heldCopies;
+		}
+
+		/**
+		 * Settles the hold, unless it is already settled.
+		 *
+		 * @return true, if this call settled it
+		 */
+		private boolean settle() {
+			if (!settled.compareAndSet(false, true)) {
+				return false;
+			}
+
+			holds.remove(id);
+			return true;
+		}
+
+		@Override
+		boolean isSettled() {
+			return settled.get();
+		}
+
+		@Override
+		void expire() {
+			if (settle()) {
+				releaser.release(heldCopies);
+			}
+		}
+	}
+
+	/** The next hold id. */
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	/** The holds not settled yet by id. */
+	private final ConcurrentHashMap<Long, Hold> holds = new ConcurrentHashMap<>();
+
+	/** The wheel expiring the holds. */
+	private final HoldTimerWheel wheel;
+
+	/** Gives back the copies of the holds cancelled or expired. */
+	private final CopyReleaser<T> releaser;
+
+	/**
+	 * Instantiates a new {@link BookHolds}.
+	 *
+	 * @param name
+	 *            the name of the thread expiring the holds
+	 * @param releaser
+	 *            gives back the copies of the holds cancelled or expired
+	 */
+	BookHolds(String name, CopyReleaser<T> releaser) {
+		this.wheel = new HoldTimerWheel(name);
+		this.releaser = releaser;
+	}
+
+	/**
+	 * Checks that the time to live is one a hold may have.
+	 *
+	 * @param ttlMillis
+	 *            the time to live in milliseconds
+	 * @throws BookStoreException
+	 *             if it is not positive or longer than
+	 *             {@link BookStoreConstants#MAX_HOLD_TTL_MILLIS}
+	 */
+	static void validateTtl(long ttlMillis) throws BookStoreException {
+		if (ttlMillis <= 0 || ttlMillis > BookStoreConstants.MAX_HOLD_TTL_MILLIS) {
+			throw new BookStoreException(BookStoreConstants.TTL + ttlMillis + BookStoreConstants.INVALID);
+		}
+	}
+
+	/**
+	 * Places a hold on copies the store already took out of stock. The store
+	 * places it before it lets go of the copies, so that there are no copies
+	 * taken without a hold.
+	 *
+	 * @param heldCopies
+	 *            the copies, as recorded by the store
+	 * @param ttlMillis
+	 *            the time to live in milliseconds
+	 * @return the id of the hold
+	 */
+	long hold(Collection<T> heldCopies, long ttlMillis) {
+		Hold hold = new Hold(nextId.getAndIncrement(), new ArrayList<>(heldCopies));
+		holds.put(hold.id, hold);
+		wheel.schedule(hold, ttlMillis);
+		return hold.id;
+	}
+
+	/**
+	 * Confirms a hold, its copies stay sold.
+	 *
+	 * @param id
+	 *            the id of the hold
+	 * @throws BookStoreException
+	 *             if the hold is unknown or already settled
+	 */
+	void confirm(long id) throws BookStoreException {
+		settle(id);
+	}
+
+	/**
+	 * Cancels a hold and gives back its copies.
+	 *
+	 * @param id
+	 *            the id of the hold
+	 * @throws BookStoreException
+	 *             if the hold is unknown or already settled
+	 */
+	void cancel(long id) throws BookStoreException {
+		releaser.release(settle(id).heldCopies);
+	}
+
+	/**
+	 * Settles a hold for the caller.
+	 */
+	private Hold settle(long id) throws BookStoreException {
+		Hold hold = holds.get(id);
+
+		if (hold == null || !hold.settle()) {
+			throw new BookStoreException(BookStoreConstants.HOLD + id + BookStoreConstants.NOT_HELD);
+		}
+
+		return hold;
+	}
+}
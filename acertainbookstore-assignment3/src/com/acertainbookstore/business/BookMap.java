@@ -0,0 +1,336 @@
+package com.acertainbookstore.business;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link BookMap} maps ISBNs to {@link BookStoreBook}s. It is an open
+ * addressing hash table with linear probing over a primitive key array, so
+ * ISBNs are never boxed and no node object is allocated per entry. Removal
+ * shifts the following entries back instead of leaving tombstones.
+ * 
+ * ISBNs must be valid, i.e., strictly positive; zero marks an empty slot. The
+ * map is not thread-safe.
+ * 
+ * @see BookStoreBook
+ */
+public final class BookMap {
+
+	/** The Constant EMPTY marking an unused slot. */
+	private static final int EMPTY = 0;
+
+	/** The Constant MIN_CAPACITY, must be a power of two. */
+	private static final int MIN_CAPACITY = 16;
+
+	/** The maximum fill ratio, as numerator over 4, before the table grows. */
+	private static final int MAX_LOAD_QUARTERS = 3;
+
+	/** The ISBNs, {@link #EMPTY} for unused slots. */
+	private int[] keys;
+
+	/** The books, aligned with the keys. */
+	private BookStoreBook[] values;
+
+	/** The number of books. */
+	private int size;
+
+	/** The ISBNs in ascending order, built on demand until they change. */
+	private volatile SortedIsbns sortedIsbns;
+
+	/**
+	 * Instantiates a new empty {@link BookMap}.
+	 */
+	public BookMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a new empty {@link BookMap} able to hold
+	 * <code>expectedSize</code> books without growing.
+	 *
+	 * @param expectedSize
+	 *            the expected number of books
+	 */
+	public BookMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+
+		while (capacity / 4 * MAX_LOAD_QUARTERS < expectedSize) {
+			capacity <<= 1;
+		}
+
+		keys = new int[capacity];
+		values = new BookStoreBook[capacity];
+	}
+
+	/**
+	 * Instantiates a new {@link BookMap} holding the same books as
+	 * <code>mapToCopy</code>. The books themselves are shared, not copied.
+	 *
+	 * @param mapToCopy
+	 *            the map to copy
+	 */
+	public BookMap(BookMap mapToCopy) {
+		keys = mapToCopy.keys.clone();
+		values = mapToCopy.values.clone();
+		size = mapToCopy.size;
+	}
+
+	/**
+	 * Gets the slot where a probe for the ISBN starts.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the slot
+	 */
+	private int slotOf(int isbn) {
+		int hash = isbn * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (keys.length - 1);
+	}
+
+	/**
+	 * Finds the slot holding the ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the slot, or -1 if the ISBN is not in the map
+	 */
+	private int find(int isbn) {
+		if (isbn == EMPTY) {
+			return -1;
+		}
+
+		int mask = keys.length - 1;
+
+		for (int slot = slotOf(isbn);; slot = (slot + 1) & mask) {
+			int key = keys[slot];
+
+			if (key == isbn) {
+				return slot;
+			}
+
+			if (key == EMPTY) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of books in the map.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks whether a book with the ISBN is in the map.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return true, if the book is in the map
+	 */
+	public boolean containsKey(int isbn) {
+		return find(isbn) >= 0;
+	}
+
+	/**
+	 * Gets the book with the ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the book, or null if it is not in the map
+	 */
+	public BookStoreBook get(int isbn) {
+		int slot = find(isbn);
+		return slot < 0 ? null : values[slot];
+	}
+
+	/**
+	 * Maps the ISBN to the book, replacing any previous mapping.
+	 *
+	 * @param isbn
+	 *            the ISBN, must be strictly positive
+	 * @param book
+	 *            the book
+	 * @return the previous book, or null if there was none
+	 */
+	public BookStoreBook put(int isbn, BookStoreBook book) {
+		if (isbn == EMPTY) {
+			throw new IllegalArgumentException("ISBN " + isbn + " cannot be stored");
+		}
+
+		if ((size + 1) * 4L > (long) keys.length * MAX_LOAD_QUARTERS) {
+			resize(keys.length << 1);
+		}
+
+		int mask = keys.length - 1;
+		int slot = slotOf(isbn);
+
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == isbn) {
+				BookStoreBook previous = values[slot];
+				values[slot] = book;
+				return previous;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = isbn;
+		values[slot] = book;
+		size++;
+		sortedIsbns = null;
+		return null;
+	}
+
+	/**
+	 * Removes the book with the ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the removed book, or null if it was not in the map
+	 */
+	public BookStoreBook remove(int isbn) {
+		int slot = find(isbn);
+
+		if (slot < 0) {
+			return null;
+		}
+
+		BookStoreBook removed = values[slot];
+		int mask = keys.length - 1;
+		int hole = slot;
+
+		// Shift back the entries of the probe sequence that follows the hole.
+		for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+			int home = slotOf(keys[next]);
+
+			// Move the entry unless its home slot lies cyclically in (hole, next].
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+
+		keys[hole] = EMPTY;
+		values[hole] = null;
+		size--;
+		sortedIsbns = null;
+		return removed;
+	}
+
+	/**
+	 * Removes all the books.
+	 */
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(values, null);
+		size = 0;
+		sortedIsbns = null;
+	}
+
+	/**
+	 * Gets the ISBNs greater than <code>isbn</code> in ascending order. The
+	 * ISBNs are sorted once and reused until the map changes, so concurrent
+	 * readers of a map that is no longer modified may call this.
+	 *
+	 * @param isbn
+	 *            the ISBN to start after
+	 * @param maxIsbns
+	 *            the maximum number of ISBNs
+	 * @return the ISBNs
+	 */
+	public int[] isbnsAfter(int isbn, int maxIsbns) {
+		SortedIsbns sorted = sortedIsbns;
+
+		if (sorted == null) {
+			sorted = new SortedIsbns(keys, size);
+			sortedIsbns = sorted;
+		}
+
+		return sorted.after(isbn, maxIsbns);
+	}
+
+	/**
+	 * Rehashes the books into a table of the given capacity.
+	 *
+	 * @param capacity
+	 *            the new capacity, a power of two
+	 */
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		BookStoreBook[] oldValues = values;
+
+		keys = new int[capacity];
+		values = new BookStoreBook[capacity];
+
+		int mask = capacity - 1;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = slotOf(oldKeys[i]);
+
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the books in the map, in no particular
+	 * order.
+	 *
+	 * @return the books
+	 */
+	public Collection<BookStoreBook> values() {
+		return new AbstractCollection<BookStoreBook>() {
+
+			@Override
+			public Iterator<BookStoreBook> iterator() {
+				return new Iterator<BookStoreBook>() {
+
+					/** The next slot to look at. */
+					private int slot = advance(0);
+
+					private int advance(int from) {
+						while (from < keys.length && keys[from] == EMPTY) {
+							from++;
+						}
+
+						return from;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return slot < keys.length;
+					}
+
+					@Override
+					public BookStoreBook next() {
+						if (slot >= keys.length) {
+							throw new NoSuchElementException();
+						}
+
+						BookStoreBook book = values[slot];
+						slot = advance(slot + 1);
+						return book;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+}
@@ -0,0 +1,769 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BookShard} owns the books of one partition of the ISBNs of a
+ * {@link ShardedBookStore}. The books, the editor picks, the books in demand
+ * and the rating order of the partition are private to the owner thread of
+ * the shard. Other threads never touch them; they post tasks to the mailbox of
+ * the shard with {@link #ask(ShardTask)}, and the owner runs the tasks one at
+ * a time, in the order they were posted, without taking any lock.
+ * 
+ * All the methods but {@link #ask(ShardTask)} and {@link #shutdown()} must
+ * only be called from tasks, that is on the owner thread.
+ * 
+ * @see ShardedBookStore
+ */
+final class BookShard {
+
+	/**
+	 * A task run by the owner of a shard.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 */
+	@FunctionalInterface
+	interface ShardTask<T> {
+
+		/**
+		 * Runs the task.
+		 *
+		 * @return the result
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		T run() throws BookStoreException;
+	}
+
+	/** The mailbox of the shard. */
+	private final BlockingQueue<Runnable> mailbox = new LinkedBlockingQueue<>();
+
+	/** The owner thread of the shard. */
+	private final Thread owner;
+
+	/** The books of the shard by ISBN. */
+	private final BookMap books = new BookMap();
+
+	/** The editor picks of the shard. */
+	private final EditorPickIndex editorPicks = new EditorPickIndex();
+
+	/** The books of the shard with sale misses by ISBN. */
+	private final BookMap booksInDemand = new BookMap();
+
+	/** The rated books of the shard in rating order. */
+	private final TopRatedIndex topRated = new TopRatedIndex();
+
+	/** The books of the shard in order of their copies. */
+	private final LeastCopiesIndex leastCopies = new LeastCopiesIndex();
+
+	/** The random source of the editor pick samples. */
+	private final Random random = new Random();
+
+	/** The versions of the changes to the books of the store. */
+	private final BookChangeLog changeLog;
+
+	/** The backorders waiting for copies of the books of the store. */
+	private final Backorders backorders;
+
+	/**
+	 * Instantiates a new {@link BookShard} and starts its owner.
+	 *
+	 * @param name
+	 *            the name of the owner thread
+	 * @param changeLog
+	 *            the versions of the changes to the books of the store
+	 * @param backorders
+	 *            the backorders waiting for copies of the books of the store
+	 */
+	BookShard(String name, BookChangeLog changeLog, Backorders backorders) {
+		this.changeLog = changeLog;
+		this.backorders = backorders;
+		owner = new Thread(this::runTasks, name);
+		owner.setDaemon(true);
+		owner.start();
+	}
+
+	/**
+	 * Runs the tasks posted to the mailbox until the owner is interrupted.
+	 */
+	private void runTasks() {
+		try {
+			while (true) {
+				mailbox.take().run();
+			}
+		} catch (InterruptedException ex) {
+			// Shut down.
+		}
+	}
+
+	/**
+	 * Posts the task to the mailbox of the shard.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 * @param task
+	 *            the task
+	 * @return the result of the task once the owner has run it
+	 */
+	<T> CompletableFuture<T> ask(ShardTask<T> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+
+		mailbox.add(() -> {
+			try {
+				result.complete(task.run());
+			} catch (BookStoreException | RuntimeException ex) {
+				result.completeExceptionally(ex);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Stops the owner of the shard, tasks still in the mailbox are never run.
+	 */
+	void shutdown() {
+		owner.interrupt();
+	}
+
+	/**
+	 * Stamps the book as changed. A sync reads the stamps in a task of its
+	 * own, so it finds every change of the tasks posted before it.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	private void stampChange(BookStoreBook book) {
+		book.stampChange(changeLog.getVersion());
+	}
+
+	/**
+	 * Moves the book to the position of its current copies.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	private void repositionStocked(BookStoreBook book) {
+		leastCopies.reposition(book, book.getNumCopies());
+	}
+
+	/**
+	 * Checks that all the ISBNs are in the shard.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @throws BookStoreException
+	 *             if one of them is not
+	 */
+	void checkInStock(Collection<Integer> isbns) throws BookStoreException {
+		for (int isbn : isbns) {
+			if (!books.containsKey(isbn)) {
+				throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.NOT_AVAILABLE);
+			}
+		}
+	}
+
+	/**
+	 * Checks that none of the books are in the shard.
+	 *
+	 * @param bookSet
+	 *            the books
+	 * @throws BookStoreException
+	 *             if one of them is
+	 */
+	void checkNotInStock(Collection<StockBook> bookSet) throws BookStoreException {
+		for (StockBook book : bookSet) {
+			if (books.containsKey(book.getISBN())) {
+				throw new BookStoreException(BookStoreConstants.ISBN + book.getISBN() + BookStoreConstants.DUPLICATED);
+			}
+		}
+	}
+
+	/**
+	 * Adds the books, none of them may be in the shard.
+	 *
+	 * @param bookSet
+	 *            the books
+	 * @return null
+	 * @throws BookStoreException
+	 *             if one of the books is in the shard
+	 */
+	Void addBooks(Collection<StockBook> bookSet) throws BookStoreException {
+		checkNotInStock(bookSet);
+
+		List<BookStoreBook> newEditorPicks = new ArrayList<>();
+
+		for (StockBook book : bookSet) {
+			BookStoreBook newBook = new BookStoreBook(book);
+			books.put(newBook.getISBN(), newBook);
+			stampChange(newBook);
+			repositionStocked(newBook);
+
+			if (newBook.isEditorPick()) {
+				newEditorPicks.add(newBook);
+			}
+
+			if (newBook.hadSaleMiss()) {
+				booksInDemand.put(newBook.getISBN(), newBook);
+			}
+
+			topRated.reposition(newBook);
+		}
+
+		editorPicks.add(newEditorPicks);
+		return null;
+	}
+
+	/**
+	 * Adds the copies, all the books must be in the shard.
+	 *
+	 * @param bookCopies
+	 *            the copies
+	 * @return null
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	Void addCopies(Collection<BookCopy> bookCopies) throws BookStoreException {
+		checkInStock(isbnsOf(bookCopies));
+
+		for (BookCopy bookCopy : bookCopies) {
+			BookStoreBook book = books.get(bookCopy.getISBN());
+			book.addCopies(bookCopy.getNumCopies());
+			stampChange(book);
+			repositionStocked(book);
+			booksInDemand.remove(bookCopy.getISBN());
+
+			// The backorders waiting for the book are filled first.
+			backorders.drain(book.getISBN(), this::takeBackorderedCopies);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Places a backorder for copies of a book of the shard, and fills it at
+	 * once if the copies are there.
+	 *
+	 * @param bookCopy
+	 *            the copies
+	 * @return the id of the backorder
+	 * @throws BookStoreException
+	 *             if the book is not in the shard
+	 */
+	Long placeBackorder(BookCopy bookCopy) throws BookStoreException {
+		checkInStock(Collections.singletonList(bookCopy.getISBN()));
+
+		long backorderId = backorders.place(bookCopy.getISBN(), bookCopy.getNumCopies());
+		backorders.drain(bookCopy.getISBN(), this::takeBackorderedCopies);
+		return backorderId;
+	}
+
+	/**
+	 * Buys copies of a book for a backorder, cf. {@link Backorders.CopyTaker}.
+	 */
+	private boolean takeBackorderedCopies(int isbn, int numCopies) {
+		BookStoreBook book = books.get(isbn);
+
+		if (book.tryBuyCopies(numCopies) != 0) {
+			return false;
+		}
+
+		stampChange(book);
+		repositionStocked(book);
+		return true;
+	}
+
+	/**
+	 * Gets the copies that are missing, without taking any.
+	 *
+	 * @param bookCopies
+	 *            the copies
+	 * @return the number of missing copies by ISBN, empty if all of them are
+	 *         there
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	Map<Integer, Integer> missingCopies(Collection<BookCopy> bookCopies) throws BookStoreException {
+		checkInStock(isbnsOf(bookCopies));
+
+		Map<Integer, Integer> missingCopies = new HashMap<>();
+
+		for (BookCopy bookCopy : bookCopies) {
+			int numMissing = bookCopy.getNumCopies() - books.get(bookCopy.getISBN()).getNumCopies();
+
+			if (numMissing > 0) {
+				missingCopies.put(bookCopy.getISBN(), numMissing);
+			}
+		}
+
+		return missingCopies;
+	}
+
+	/**
+	 * Takes the copies if all of them are available, otherwise takes none.
+	 *
+	 * @param bookCopies
+	 *            the copies
+	 * @return the number of missing copies by ISBN, empty if the copies were
+	 *         taken
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	Map<Integer, Integer> tryBuyBooks(Collection<BookCopy> bookCopies) throws BookStoreException {
+		Map<Integer, Integer> missingCopies = missingCopies(bookCopies);
+
+		// The owner is the only writer, so the copies checked are still there.
+		if (missingCopies.isEmpty()) {
+			for (BookCopy bookCopy : bookCopies) {
+				BookStoreBook book = books.get(bookCopy.getISBN());
+				book.tryBuyCopies(bookCopy.getNumCopies());
+				stampChange(book);
+				repositionStocked(book);
+			}
+		}
+
+		return missingCopies;
+	}
+
+	/**
+	 * Takes the copies for a hold if all of them are available, otherwise
+	 * takes none. A hold that cannot be placed is not a sale, so it records no
+	 * sale misses.
+	 *
+	 * @param bookCopies
+	 *            the copies
+	 * @return the copies taken from each book, or null if some are missing
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	List<BookHolds.HeldCopies> holdBooks(Collection<BookCopy> bookCopies) throws BookStoreException {
+		if (!tryBuyBooks(bookCopies).isEmpty()) {
+			return null;
+		}
+
+		List<BookHolds.HeldCopies> heldCopies = new ArrayList<>(bookCopies.size());
+
+		for (BookCopy bookCopy : bookCopies) {
+			heldCopies.add(new BookHolds.HeldCopies(books.get(bookCopy.getISBN()), bookCopy.getNumCopies()));
+		}
+
+		return heldCopies;
+	}
+
+	/**
+	 * Takes as many of the copies as are available, and records the copies
+	 * missing as sale misses.
+	 *
+	 * @param bookCopies
+	 *            the copies
+	 * @return the copies bought and missed
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	PurchaseResult buyAvailableBooks(Collection<BookCopy> bookCopies) throws BookStoreException {
+		checkInStock(isbnsOf(bookCopies));
+
+		List<BookCopy> boughtCopies = new ArrayList<>(bookCopies.size());
+		List<BookCopy> missedCopies = new ArrayList<>();
+
+		for (BookCopy bookCopy : bookCopies) {
+			BookStoreBook book = books.get(bookCopy.getISBN());
+			int numBought = book.buyAvailableCopies(bookCopy.getNumCopies());
+			int numMissing = bookCopy.getNumCopies() - numBought;
+
+			if (numBought > 0) {
+				boughtCopies.add(new BookCopy(book.getISBN(), numBought));
+				repositionStocked(book);
+			}
+
+			if (numMissing > 0) {
+				missedCopies.add(new BookCopy(book.getISBN(), numMissing));
+				book.addSaleMiss(numMissing);
+				booksInDemand.put(book.getISBN(), book);
+			}
+
+			stampChange(book);
+		}
+
+		return new PurchaseResult(boughtCopies, missedCopies);
+	}
+
+	/**
+	 * Gives back copies taken by {@link #tryBuyBooks(Collection)} for a
+	 * purchase that was rolled back, and fills the backorders they are enough
+	 * for.
+	 *
+	 * @param bookCopies
+	 *            the copies
+	 * @return null
+	 */
+	Void returnCopies(Collection<BookCopy> bookCopies) {
+		for (BookCopy bookCopy : bookCopies) {
+			BookStoreBook book = books.get(bookCopy.getISBN());
+
+			if (book != null) {
+				book.returnCopies(bookCopy.getNumCopies());
+				stampChange(book);
+				repositionStocked(book);
+				backorders.drain(book.getISBN(), this::takeBackorderedCopies);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gives back copies taken by {@link #holdBooks(Collection)} to the books
+	 * they were taken from, and fills the backorders they are enough for. The
+	 * copies of a book removed meanwhile are dropped, even if a book with its
+	 * ISBN was added since.
+	 *
+	 * @param heldCopies
+	 *            the copies
+	 * @return null
+	 */
+	Void returnHeldCopies(Collection<BookHolds.HeldCopies> heldCopies) {
+		for (BookHolds.HeldCopies heldCopy : heldCopies) {
+			BookStoreBook book = heldCopy.book;
+
+			if (books.get(book.getISBN()) == book) {
+				book.returnCopies(heldCopy.numCopies);
+				stampChange(book);
+				repositionStocked(book);
+				backorders.drain(book.getISBN(), this::takeBackorderedCopies);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Records the sale misses of a purchase that could not be filled.
+	 *
+	 * @param saleMisses
+	 *            the number of missing copies by ISBN
+	 * @return null
+	 */
+	Void addSaleMisses(Map<Integer, Integer> saleMisses) {
+		for (Map.Entry<Integer, Integer> saleMiss : saleMisses.entrySet()) {
+			BookStoreBook book = books.get(saleMiss.getKey());
+
+			if (book != null) {
+				book.addSaleMiss(saleMiss.getValue());
+				stampChange(book);
+				booksInDemand.put(book.getISBN(), book);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Sets the editor pick flags, all the books must be in the shard.
+	 *
+	 * @param editorPickArgs
+	 *            the flags
+	 * @return null
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	Void updateEditorPicks(Collection<BookEditorPick> editorPickArgs) throws BookStoreException {
+		List<Integer> isbns = new ArrayList<>(editorPickArgs.size());
+
+		for (BookEditorPick editorPickArg : editorPickArgs) {
+			isbns.add(editorPickArg.getISBN());
+		}
+
+		checkInStock(isbns);
+
+		Map<Integer, Boolean> wasEditorPick = new HashMap<>();
+
+		for (BookEditorPick editorPickArg : editorPickArgs) {
+			BookStoreBook book = books.get(editorPickArg.getISBN());
+			wasEditorPick.putIfAbsent(book.getISBN(), book.isEditorPick());
+			book.setEditorPick(editorPickArg.isEditorPick());
+			stampChange(book);
+		}
+
+		// Only the books whose flag ended up changed move in the index.
+		List<BookStoreBook> newEditorPicks = new ArrayList<>();
+		List<Integer> oldEditorPicks = new ArrayList<>();
+
+		for (Map.Entry<Integer, Boolean> wasEditorPickEntry : wasEditorPick.entrySet()) {
+			BookStoreBook book = books.get(wasEditorPickEntry.getKey());
+
+			if (book.isEditorPick() && !wasEditorPickEntry.getValue()) {
+				newEditorPicks.add(book);
+			} else if (!book.isEditorPick() && wasEditorPickEntry.getValue()) {
+				oldEditorPicks.add(book.getISBN());
+			}
+		}
+
+		editorPicks.remove(oldEditorPicks);
+		editorPicks.add(newEditorPicks);
+		return null;
+	}
+
+	/**
+	 * Adds the ratings, all the books must be in the shard.
+	 *
+	 * @param bookRatings
+	 *            the ratings
+	 * @return null
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	Void rateBooks(Collection<BookRating> bookRatings) throws BookStoreException {
+		List<Integer> isbns = new ArrayList<>(bookRatings.size());
+
+		for (BookRating bookRating : bookRatings) {
+			isbns.add(bookRating.getISBN());
+		}
+
+		checkInStock(isbns);
+
+		for (BookRating bookRating : bookRatings) {
+			BookStoreBook book = books.get(bookRating.getISBN());
+			book.addRating(bookRating.getRating());
+			stampChange(book);
+		}
+
+		for (BookRating bookRating : bookRatings) {
+			topRated.reposition(books.get(bookRating.getISBN()));
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes the books, all of them must be in the shard.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return null
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	Void removeBooks(Collection<Integer> isbns) throws BookStoreException {
+		checkInStock(isbns);
+
+		List<Integer> oldEditorPicks = new ArrayList<>();
+
+		for (int isbn : isbns) {
+			BookStoreBook book = books.remove(isbn);
+
+			if (book != null) {
+				booksInDemand.remove(isbn);
+				topRated.remove(book);
+				leastCopies.remove(book);
+
+				if (book.isEditorPick()) {
+					oldEditorPicks.add(isbn);
+				}
+			}
+		}
+
+		editorPicks.remove(oldEditorPicks);
+		return null;
+	}
+
+	/**
+	 * Removes all the books.
+	 *
+	 * @return null
+	 */
+	Void removeAllBooks() {
+		books.clear();
+		booksInDemand.clear();
+		editorPicks.clear();
+		topRated.clear();
+		leastCopies.clear();
+		return null;
+	}
+
+	/**
+	 * Gets the books with the given ISBNs, all of them must be in the shard.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the books, in the order of the ISBNs
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	List<StockBook> getStockBooks(Collection<Integer> isbns) throws BookStoreException {
+		checkInStock(isbns);
+
+		List<StockBook> stockBooks = new ArrayList<>(isbns.size());
+
+		for (int isbn : isbns) {
+			stockBooks.add(books.get(isbn).immutableStockBook());
+		}
+
+		return stockBooks;
+	}
+
+	/**
+	 * Gets the books with the given ISBNs, all of them must be in the shard.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the books, in the order of the ISBNs
+	 * @throws BookStoreException
+	 *             if one of the books is not in the shard
+	 */
+	List<Book> getBooks(Collection<Integer> isbns) throws BookStoreException {
+		checkInStock(isbns);
+
+		List<Book> bookList = new ArrayList<>(isbns.size());
+
+		for (int isbn : isbns) {
+			bookList.add(books.get(isbn).immutableBook());
+		}
+
+		return bookList;
+	}
+
+	/**
+	 * Gets all the books of the shard.
+	 *
+	 * @return the books
+	 */
+	List<StockBook> getAllStockBooks() {
+		List<StockBook> stockBooks = new ArrayList<>(books.size());
+
+		for (BookStoreBook book : books.values()) {
+			stockBooks.add(book.immutableStockBook());
+		}
+
+		return stockBooks;
+	}
+
+	/**
+	 * Gets the books of the shard changed since the version.
+	 *
+	 * @param version
+	 *            the version
+	 * @return the books
+	 */
+	List<StockBook> getStockBooksChangedSince(long version) {
+		List<StockBook> stockBooks = new ArrayList<>();
+
+		for (BookStoreBook book : books.values()) {
+			if (book.getChangeVersion() >= version) {
+				stockBooks.add(book.immutableStockBook());
+			}
+		}
+
+		return stockBooks;
+	}
+
+	/**
+	 * Gets the first books of the shard with an ISBN greater than
+	 * <code>isbn</code>.
+	 *
+	 * @param isbn
+	 *            the ISBN to start after
+	 * @param maxBooks
+	 *            the maximum number of books
+	 * @return the books, in ISBN order
+	 */
+	List<StockBook> getStockBooksAfter(int isbn, int maxBooks) {
+		int[] isbns = books.isbnsAfter(isbn, maxBooks);
+		List<StockBook> stockBooks = new ArrayList<>(isbns.length);
+
+		for (int isbnAfter : isbns) {
+			stockBooks.add(books.get(isbnAfter).immutableStockBook());
+		}
+
+		return stockBooks;
+	}
+
+	/**
+	 * Gets the books of the shard with sale misses.
+	 *
+	 * @return the books
+	 */
+	List<StockBook> getBooksInDemand() {
+		List<StockBook> stockBooks = new ArrayList<>(booksInDemand.size());
+
+		for (BookStoreBook book : booksInDemand.values()) {
+			stockBooks.add(book.immutableStockBook());
+		}
+
+		return stockBooks;
+	}
+
+	/**
+	 * Gets the number of editor picks of the shard.
+	 *
+	 * @return the number of editor picks
+	 */
+	int getNumEditorPicks() {
+		return editorPicks.size();
+	}
+
+	/**
+	 * Picks editor picks of the shard uniformly at random.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the books
+	 */
+	List<Book> getEditorPicks(int numBooks) {
+		return editorPicks.sample(numBooks, random);
+	}
+
+	/**
+	 * Gets the best rated books of the shard.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the books, best rated first
+	 */
+	List<StockBook> getTopRatedBooks(int numBooks) {
+		List<StockBook> stockBooks = new ArrayList<>();
+
+		for (Book book : topRated.top(numBooks)) {
+			stockBooks.add(books.get(book.getISBN()).immutableStockBook());
+		}
+
+		return stockBooks;
+	}
+
+	/**
+	 * Gets the books of the shard with the least copies.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the books, least copies first
+	 */
+	List<StockBook> getBooksWithLeastCopies(int numBooks) {
+		return leastCopies.least(numBooks);
+	}
+
+	/**
+	 * Gets the ISBNs of the copies.
+	 */
+	private static List<Integer> isbnsOf(Collection<BookCopy> bookCopies) {
+		List<Integer> isbns = new ArrayList<>(bookCopies.size());
+
+		for (BookCopy bookCopy : bookCopies) {
+			isbns.add(bookCopy.getISBN());
+		}
+
+		return isbns;
+	}
+}
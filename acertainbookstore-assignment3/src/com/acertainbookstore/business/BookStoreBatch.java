@@ -0,0 +1,394 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link BookStoreBatch} runs the operations of a batch on a store one after
+ * the other, cf. {@link StockManager#runBatch(List, boolean)}, and collects
+ * the result or the exception of each one in a {@link BookStoreResponse}, as
+ * if it had been sent on its own. The stores decide what runs alongside a
+ * batch; this class only dispatches the operations.
+ * 
+ * An atomic batch is checked before it runs: its operations are first run on
+ * a scratch store holding copies of the books they name and of the backorders
+ * queued for them, and only run on the store if none of them failed there.
+ * The store holds off all its other updates from the check to the end of the
+ * batch, so that the operations do on the store what they did on the scratch
+ * store. The operations that depend on more of the store than the books they
+ * name cannot be run atomically.
+ */
+final class BookStoreBatch {
+
+	/**
+	 * The operations that cannot be run atomically: restocking the books with
+	 * the least copies picks books the batch does not name, procedures may
+	 * pick books at random, and holds and waits on backorders refer to ids of
+	 * the store.
+	 */
+	private static final Set<BookStoreMessageTag> NOT_ATOMIC = EnumSet.of(
+			BookStoreMessageTag.RESTOCKBOOKSWITHLEASTCOPIES, BookStoreMessageTag.CALLPROCEDURE,
+			BookStoreMessageTag.AWAITBACKORDER, BookStoreMessageTag.RESERVEBOOKS, BookStoreMessageTag.CONFIRMHOLD,
+			BookStoreMessageTag.CANCELHOLD);
+
+	/**
+	 * Prevents the instantiation of a new {@link BookStoreBatch}.
+	 */
+	private BookStoreBatch() {
+		// Prevent instantiation.
+	}
+
+	/**
+	 * Runs the operations in order, each one whatever the outcome of the
+	 * others.
+	 *
+	 * @param bookStore
+	 *            the book store to run the operations on
+	 * @param stockManager
+	 *            the stock manager to run the operations on
+	 * @param operations
+	 *            the operations
+	 * @return the response of each operation, in order
+	 * @throws BookStoreException
+	 *             if there are no operations
+	 */
+	static List<BookStoreResponse> run(BookStore bookStore, StockManager stockManager,
+			List<BookStoreOperation> operations) throws BookStoreException {
+		return run(bookStore, stockManager, operations, false);
+	}
+
+	/**
+	 * Runs the operations in order, all or nothing. The caller holds off the
+	 * other updates of the store until it returns.
+	 *
+	 * @param bookStore
+	 *            the book store to run the operations on
+	 * @param stockManager
+	 *            the stock manager to run the operations on, the same store
+	 * @param backorders
+	 *            the backorders of the store
+	 * @param operations
+	 *            the operations
+	 * @return the response of each operation, in order
+	 * @throws BookStoreException
+	 *             if there are no operations
+	 */
+	static List<BookStoreResponse> runAtomically(BookStore bookStore, StockManager stockManager,
+			Backorders backorders, List<BookStoreOperation> operations) throws BookStoreException {
+		if (operations == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		CertainBookStore scratchStore = new CertainBookStore();
+
+		for (int isbn : namedIsbns(operations)) {
+			StockBook book = findBook(stockManager, isbn);
+
+			if (book != null) {
+				scratchStore.restoreBook(book, backorders.queuedCopies(isbn));
+			}
+		}
+
+		List<BookStoreResponse> checkedResponses = run(scratchStore, scratchStore, operations, true);
+
+		for (int i = 0; i < checkedResponses.size(); i++) {
+			if (checkedResponses.get(i).getException() != null) {
+				return failed(operations, i, checkedResponses.get(i));
+			}
+		}
+
+		return run(bookStore, stockManager, operations, true);
+	}
+
+	/**
+	 * Runs the operations in order.
+	 *
+	 * @param bookStore
+	 *            the book store to run the operations on
+	 * @param stockManager
+	 *            the stock manager to run the operations on
+	 * @param operations
+	 *            the operations
+	 * @param atomic
+	 *            whether the batch is atomic, the operations after a failed
+	 *            one are then skipped
+	 * @return the response of each operation, in order
+	 * @throws BookStoreException
+	 *             if there are no operations
+	 */
+	private static List<BookStoreResponse> run(BookStore bookStore, StockManager stockManager,
+			List<BookStoreOperation> operations, boolean atomic) throws BookStoreException {
+		if (operations == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<BookStoreResponse> responses = new ArrayList<>(operations.size());
+		boolean failed = false;
+
+		for (BookStoreOperation operation : operations) {
+			BookStoreResponse response;
+
+			if (failed && atomic) {
+				response = skipped(operation);
+			} else {
+				response = new BookStoreResponse();
+
+				try {
+					run(bookStore, stockManager, operation, atomic, response);
+				} catch (BookStoreException ex) {
+					response.setException(ex);
+					failed = true;
+				}
+			}
+
+			responses.add(response);
+		}
+
+		return responses;
+	}
+
+	/**
+	 * Gets the responses of an atomic batch that failed the check, none of
+	 * its operations ran.
+	 */
+	private static List<BookStoreResponse> failed(List<BookStoreOperation> operations, int failedIndex,
+			BookStoreResponse failedResponse) {
+		List<BookStoreResponse> responses = new ArrayList<>(operations.size());
+
+		for (int i = 0; i < operations.size(); i++) {
+			responses.add(i == failedIndex ? failedResponse : skipped(operations.get(i)));
+		}
+
+		return responses;
+	}
+
+	/**
+	 * Gets the response of an operation that was skipped.
+	 */
+	private static BookStoreResponse skipped(BookStoreOperation operation) {
+		BookStoreResponse response = new BookStoreResponse();
+		response.setException(new BookStoreException(BookStoreConstants.OPERATION
+				+ (operation == null ? null : operation.getTag()) + BookStoreConstants.SKIPPED));
+		return response;
+	}
+
+	/**
+	 * Gets the ISBNs of the books named in the arguments of the operations.
+	 * The numbers that are not in a collection are counts, not ISBNs.
+	 */
+	private static Set<Integer> namedIsbns(List<BookStoreOperation> operations) {
+		Set<Integer> isbns = new HashSet<>();
+
+		for (BookStoreOperation operation : operations) {
+			if (operation == null || operation.getArguments() == null) {
+				continue;
+			}
+
+			for (Object argument : operation.getArguments()) {
+				if (argument instanceof Collection) {
+					for (Object element : (Collection<?>) argument) {
+						if (element instanceof Integer) {
+							isbns.add((Integer) element);
+						} else {
+							addNamedIsbn(isbns, element);
+						}
+					}
+				} else {
+					addNamedIsbn(isbns, argument);
+				}
+			}
+		}
+
+		return isbns;
+	}
+
+	/**
+	 * Adds the ISBN of the book named by the value, if it names one.
+	 */
+	private static void addNamedIsbn(Set<Integer> isbns, Object value) {
+		if (value instanceof BookCopy) {
+			isbns.add(((BookCopy) value).getISBN());
+		} else if (value instanceof Book) {
+			isbns.add(((Book) value).getISBN());
+		} else if (value instanceof BookEditorPick) {
+			isbns.add(((BookEditorPick) value).getISBN());
+		} else if (value instanceof BookRating) {
+			isbns.add(((BookRating) value).getISBN());
+		}
+	}
+
+	/**
+	 * Finds a book of the store.
+	 *
+	 * @return the book, or null if it is not in the store
+	 */
+	private static StockBook findBook(StockManager stockManager, int isbn) {
+		if (BookStoreUtility.isInvalidISBN(isbn)) {
+			return null;
+		}
+
+		try {
+			return stockManager.getBooksByISBN(Collections.singleton(isbn)).get(0);
+		} catch (BookStoreException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the operation and puts its result into the response.
+	 *
+	 * @param bookStore
+	 *            the book store to run the operation on
+	 * @param stockManager
+	 *            the stock manager to run the operation on
+	 * @param operation
+	 *            the operation
+	 * @param atomic
+	 *            whether the batch is atomic
+	 * @param response
+	 *            the response
+	 * @throws BookStoreException
+	 *             the exception of the operation, or if the operation is not
+	 *             one that can be batched, or atomically, or does not have the
+	 *             arguments of its method
+	 */
+	@SuppressWarnings("unchecked")
+	private static void run(BookStore bookStore, StockManager stockManager, BookStoreOperation operation,
+			boolean atomic, BookStoreResponse response) throws BookStoreException {
+		if (operation == null || operation.getTag() == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (atomic && NOT_ATOMIC.contains(operation.getTag())) {
+			throw new BookStoreException(
+					BookStoreConstants.OPERATION + operation.getTag() + BookStoreConstants.INVALID);
+		}
+
+		Object[] arguments = operation.getArguments();
+
+		try {
+			switch (operation.getTag()) {
+			case ADDBOOKS:
+				stockManager.addBooks((Set<StockBook>) arguments[0]);
+				break;
+
+			case ADDCOPIES:
+				stockManager.addCopies((Set<BookCopy>) arguments[0]);
+				break;
+
+			case LISTBOOKS:
+				response.setList(stockManager.getBooks());
+				break;
+
+			case LISTBOOKSPAGE:
+				response.setResult(stockManager.getBooksPage((Integer) arguments[0], (String) arguments[1]));
+				break;
+
+			case LISTBOOKSCHANGED:
+				response.setResult(stockManager.getBooksChangedSince((Long) arguments[0]));
+				break;
+
+			case UPDATEEDITORPICKS:
+				stockManager.updateEditorPicks((Set<BookEditorPick>) arguments[0]);
+				break;
+
+			case BUYBOOKS:
+				bookStore.buyBooks((Set<BookCopy>) arguments[0]);
+				break;
+
+			case TRYBUYBOOKS:
+				response.setResult(bookStore.tryBuyBooks((Set<BookCopy>) arguments[0]));
+				break;
+
+			case BUYAVAILABLEBOOKS:
+				response.setResult(bookStore.buyAvailableBooks((Set<BookCopy>) arguments[0]));
+				break;
+
+			case PLACEBACKORDER:
+				response.setResult(bookStore.placeBackorder((BookCopy) arguments[0]));
+				break;
+
+			case AWAITBACKORDER:
+				response.setResult(bookStore.awaitBackorder((Long) arguments[0], (Long) arguments[1]));
+				break;
+
+			case RESERVEBOOKS:
+				response.setResult(bookStore.reserveBooks((Set<BookCopy>) arguments[0], (Long) arguments[1]));
+				break;
+
+			case CONFIRMHOLD:
+				bookStore.confirmHold((Long) arguments[0]);
+				break;
+
+			case CANCELHOLD:
+				bookStore.cancelHold((Long) arguments[0]);
+				break;
+
+			case RATEBOOKS:
+				bookStore.rateBooks((Set<BookRating>) arguments[0]);
+				break;
+
+			case GETBOOKS:
+				response.setList(bookStore.getBooks((Set<Integer>) arguments[0]));
+				break;
+
+			case GETEDITORPICKS:
+				response.setList(bookStore.getEditorPicks((Integer) arguments[0]));
+				break;
+
+			case GETTOPRATEDBOOKS:
+				response.setList(bookStore.getTopRatedBooks((Integer) arguments[0]));
+				break;
+
+			case REMOVEALLBOOKS:
+				stockManager.removeAllBooks();
+				break;
+
+			case REMOVEBOOKS:
+				stockManager.removeBooks((Set<Integer>) arguments[0]);
+				break;
+
+			case GETSTOCKBOOKSBYISBN:
+				response.setList(stockManager.getBooksByISBN((Set<Integer>) arguments[0]));
+				break;
+
+			case GETBOOKSINDEMAND:
+				response.setList(stockManager.getBooksInDemand());
+				break;
+
+			case GETBOOKSWITHLEASTCOPIES:
+				response.setList(stockManager.getBooksWithLeastCopies((Integer) arguments[0]));
+				break;
+
+			case RESTOCKBOOKSWITHLEASTCOPIES:
+				response.setList(
+						stockManager.restockBooksWithLeastCopies((Integer) arguments[0], (Integer) arguments[1]));
+				break;
+
+			case CALLPROCEDURE:
+				response.setResult(bookStore.callProcedure((String) arguments[0], (Object[]) arguments[1]));
+				break;
+
+			default:
+				throw new BookStoreException(
+						BookStoreConstants.OPERATION + operation.getTag() + BookStoreConstants.INVALID);
+			}
+		} catch (ClassCastException | IndexOutOfBoundsException | NullPointerException ex) {
+			throw new BookStoreException(BookStoreConstants.OPERATION + operation.getTag() + BookStoreConstants.INVALID,
+					ex);
+		}
+	}
+}
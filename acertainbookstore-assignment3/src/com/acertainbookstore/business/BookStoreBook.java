@@ -1,5 +1,13 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -7,26 +15,161 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * available in the bookstore client and stock manager, cf. the {@link Book} and
  * {@link StockBook} interfaces.
  * 
+ * The mutable parts of the book are kept in an {@link ImmutableStockBook}
+ * version that is replaced with compare-and-set on every change. Readers
+ * therefore always see a consistent state of the book without holding a lock
+ * on it, and writers publish a new version when they commit.
+ * 
+ * Ratings are the exception. They are added to a {@link LongAdder} that packs
+ * the number of ratings and their total into one long, so that concurrent
+ * ratings of a popular book do not contend, and every sum of the adder is a
+ * consistent set of whole ratings. The rating getters and
+ * {@link #immutableStockBook()} fold the adder into the version on demand.
+ * 
+ * Readers are handed shared immutable views rather than copies: the
+ * {@link Book} view never changes and is built with the book, and the
+ * {@link StockBook} view is the published version, so reading a book that did
+ * not change allocates nothing.
+ * 
+ * Copies of a hot book are another exception. A book counts how often it is
+ * bought, on a sample of the purchases, and once it is bought often enough it
+ * moves its copies into a {@link CopyEscrow} whose slots buyers on different
+ * cores take from without contending. A buyer whose slot runs dry rebalances
+ * the escrow with all the copies of the book, so a purchase is still only
+ * refused, and a sale miss recorded, when the book as a whole is short. New
+ * and returned copies go to the version and are moved into the escrow on the
+ * next rebalance, and the escrow is merged back into the version once the
+ * book cools down.
+ * 
  * @see Book
  * @see StockBook
  * @see ImmutableBook
  */
 public class BookStoreBook extends ImmutableBook {
 
-	/** The number of copies. */
-	private int numCopies;
+	/** The atomic updater of the published version. */
+	private static final AtomicReferenceFieldUpdater<BookStoreBook, ImmutableStockBook> VERSION = AtomicReferenceFieldUpdater
+			.newUpdater(BookStoreBook.class, ImmutableStockBook.class, "version");
+
+	/** The published version of the book. */
+	private volatile ImmutableStockBook version;
+
+	/** The {@link Book} view of the book, shared by all readers. */
+	private final ImmutableBook bookView;
+
+	/** The number of low bits of a packed rating sum that hold the total. */
+	private static final int RATING_TOTAL_BITS = 34;
+
+	/** The mask of the total in a packed rating sum. */
+	private static final long RATING_TOTAL_MASK = (1L << RATING_TOTAL_BITS) - 1;
+
+	/** The atomic updater of the rating index claim. */
+	private static final AtomicIntegerFieldUpdater<BookStoreBook> RATING_INDEX_CLAIM = AtomicIntegerFieldUpdater
+			.newUpdater(BookStoreBook.class, "ratingIndexClaim");
+
+	/** The atomic updater of the copies index claim. */
+	private static final AtomicIntegerFieldUpdater<BookStoreBook> COPIES_INDEX_CLAIM = AtomicIntegerFieldUpdater
+			.newUpdater(BookStoreBook.class, "copiesIndexClaim");
+
+	/**
+	 * The ratings added since the book was created, each one as one count
+	 * above {@link #RATING_TOTAL_BITS} plus the rating.
+	 */
+	private final LongAdder ratings = new LongAdder();
+
+	/** The version with the ratings and copies folded in, as last handed out. */
+	private volatile FoldedVersion foldedVersion;
+
+	/** Set while a thread moves the book in the rating index. */
+	private volatile int ratingIndexClaim;
+
+	/** Set while a thread moves the book in the copies index. */
+	private volatile int copiesIndexClaim;
+
+	/** Whether hot books escrow their copies, on unless the property is false. */
+	private static final boolean ESCROW_ENABLED = !"false"
+			.equalsIgnoreCase(System.getProperty(BookStoreConstants.PROPERTY_KEY_ESCROW));
+
+	/** The number of escrow slots, a power of two of about two per core. */
+	private static final int ESCROW_SLOTS = Math.min(16,
+			Integer.highestOneBit(Math.max(2, 2 * Runtime.getRuntime().availableProcessors())));
+
+	/** One purchase in HEAT_SAMPLE_MASK + 1 is counted as heat. */
+	private static final int HEAT_SAMPLE_MASK = 7;
+
+	/** The length of a heat window. */
+	private static final long HEAT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
 
-	/** The total rating. */
-	private long totalRating;
+	/** The counted purchases in a window above which the copies are escrowed. */
+	private static final int HOT_SAMPLES = 32;
 
-	/** The number of times rated. */
-	private long numTimesRated;
+	/** The counted purchases in a window below which the escrow is merged back. */
+	private static final int COLD_SAMPLES = 4;
 
-	/** The number of sale misses. */
-	private long numSaleMisses;
+	/** The atomic updater of the escrow. */
+	private static final AtomicReferenceFieldUpdater<BookStoreBook, CopyEscrow> ESCROW = AtomicReferenceFieldUpdater
+			.newUpdater(BookStoreBook.class, CopyEscrow.class, "escrow");
 
-	/** Whether the book is editor picked. */
-	private boolean editorPick;
+	/** The atomic updater of the number of copy moves. */
+	private static final AtomicIntegerFieldUpdater<BookStoreBook> COPY_MOVES = AtomicIntegerFieldUpdater
+			.newUpdater(BookStoreBook.class, "copyMoves");
+
+	/** The atomic updater of the heat. */
+	private static final AtomicIntegerFieldUpdater<BookStoreBook> HEAT = AtomicIntegerFieldUpdater
+			.newUpdater(BookStoreBook.class, "heat");
+
+	/** The atomic updater of the start of the heat window. */
+	private static final AtomicLongFieldUpdater<BookStoreBook> HEAT_WINDOW_START = AtomicLongFieldUpdater
+			.newUpdater(BookStoreBook.class, "heatWindowStart");
+
+	/** The escrow holding the copies of the book while it is hot, or null. */
+	private volatile CopyEscrow escrow;
+
+	/**
+	 * Incremented before and after copies move between the version and the
+	 * escrow, so it is odd while copies are in neither.
+	 */
+	private volatile int copyMoves;
+
+	/** The counted purchases in the current heat window. */
+	private volatile int heat;
+
+	/** The start of the current heat window. */
+	private volatile long heatWindowStart = System.nanoTime();
+
+	/** The atomic updater of the change version. */
+	private static final AtomicLongFieldUpdater<BookStoreBook> CHANGE_VERSION = AtomicLongFieldUpdater
+			.newUpdater(BookStoreBook.class, "changeVersion");
+
+	/** The store version of the last change to the book, cf. {@link BookChangeLog}. */
+	private volatile long changeVersion;
+
+	/**
+	 * A version of the book together with the ratings and the escrowed copies
+	 * folded into it.
+	 */
+	private static final class FoldedVersion {
+
+		/** The version the ratings were folded into. */
+		private final ImmutableStockBook version;
+
+		/** The packed sum of the ratings that were folded in. */
+		private final long ratings;
+
+		/** The escrowed copies that were folded in. */
+		private final int escrowedCopies;
+
+		/** The version with the ratings and copies folded in. */
+		private final ImmutableStockBook folded;
+
+		private FoldedVersion(ImmutableStockBook version, long ratings, int escrowedCopies,
+				ImmutableStockBook folded) {
+			this.version = version;
+			this.ratings = ratings;
+			this.escrowedCopies = escrowedCopies;
+			this.folded = folded;
+		}
+	}
 
 	/**
 	 * Instantiates a new {@link BookStoreBook}.
@@ -45,11 +188,8 @@ public class BookStoreBook extends ImmutableBook {
 	public BookStoreBook(int isbn, String title, String author, float price, int numCopies) {
 		super(isbn, title, author, price);
 
-		this.setNumSaleMisses(0);
-		this.setNumTimesRated(0);
-		this.setNumCopies(numCopies);
-		this.setTotalRating(0);
-		this.setEditorPick(false);
+		this.version = newVersion(numCopies, 0, 0, 0, false);
+		this.bookView = new ImmutableBook(isbn, title, author, price);
 	}
 
 	/**
@@ -62,11 +202,30 @@ public class BookStoreBook extends ImmutableBook {
 	public BookStoreBook(StockBook bookToCopy) {
 		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy.getAuthor(), bookToCopy.getPrice());
 
-		this.setNumSaleMisses(bookToCopy.getNumSaleMisses());
-		this.setNumTimesRated(bookToCopy.getNumTimesRated());
-		this.setNumCopies(bookToCopy.getNumCopies());
-		this.setTotalRating(bookToCopy.getTotalRating());
-		this.setEditorPick(bookToCopy.isEditorPick());
+		this.version = newVersion(bookToCopy.getNumCopies(), bookToCopy.getNumSaleMisses(),
+				bookToCopy.getNumTimesRated(), bookToCopy.getTotalRating(), bookToCopy.isEditorPick());
+		this.bookView = new ImmutableBook(getISBN(), getTitle(), getAuthor(), getPrice());
+	}
+
+	/**
+	 * Creates a new version of the book with the given state.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @param numSaleMisses
+	 *            the number of sale misses
+	 * @param numTimesRated
+	 *            the number of times rated
+	 * @param totalRating
+	 *            the total rating
+	 * @param editorPick
+	 *            whether the book is editor picked
+	 * @return the new version
+	 */
+	private ImmutableStockBook newVersion(int numCopies, long numSaleMisses, long numTimesRated, long totalRating,
+			boolean editorPick) {
+		return new ImmutableStockBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice(), numCopies,
+				numSaleMisses, numTimesRated, totalRating, editorPick);
 	}
 
 	/**
@@ -75,7 +234,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the total rating
 	 */
 	public long getTotalRating() {
-		return totalRating;
+		return version.getTotalRating() + (ratings.sum() & RATING_TOTAL_MASK);
 	}
 
 	/**
@@ -84,7 +243,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of times rated
 	 */
 	public long getNumTimesRated() {
-		return numTimesRated;
+		return version.getNumTimesRated() + (ratings.sum() >>> RATING_TOTAL_BITS);
 	}
 
 	/**
@@ -93,6 +252,14 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of copies
 	 */
 	public int getNumCopies() {
+		int moves;
+		int numCopies;
+
+		do {
+			moves = awaitCopyMoves();
+			numCopies = version.getNumCopies() + getEscrowedCopies();
+		} while (copyMoves != moves);
+
 		return numCopies;
 	}
 
@@ -102,7 +269,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of sale misses
 	 */
 	public long getNumSaleMisses() {
-		return numSaleMisses;
+		return version.getNumSaleMisses();
 	}
 
 	/**
@@ -111,7 +278,12 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the average rating
 	 */
 	public float getAverageRating() {
-		return (numTimesRated == 0 ? -1.0f : (float) totalRating / numTimesRated);
+		ImmutableStockBook current = version;
+		long currentRatings = ratings.sum();
+		long numTimesRated = current.getNumTimesRated() + (currentRatings >>> RATING_TOTAL_BITS);
+
+		return (numTimesRated == 0 ? -1.0f
+				: (float) (current.getTotalRating() + (currentRatings & RATING_TOTAL_MASK)) / numTimesRated);
 	}
 
 	/**
@@ -120,86 +292,308 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return true, if it is editor picked
 	 */
 	public boolean isEditorPick() {
-		return editorPick;
+		return version.isEditorPick();
 	}
 
 	/**
-	 * Sets the total rating of the book.
+	 * Sets the book to be an editor pick if <code>editorPick</code> is true,
+	 * otherwise the book is not an editor pick.
 	 *
-	 * @param totalRating
-	 *            the new total rating
+	 * @param editorPick
+	 *            the new editor pick
 	 */
-	private void setTotalRating(long totalRating) {
-		this.totalRating = totalRating;
+	public void setEditorPick(boolean editorPick) {
+		ImmutableStockBook current;
+
+		do {
+			current = version;
+		} while (!VERSION.compareAndSet(this, current, newVersion(current.getNumCopies(),
+				current.getNumSaleMisses(), current.getNumTimesRated(), current.getTotalRating(), editorPick)));
 	}
 
 	/**
-	 * Sets the number of times that the book was rated.
+	 * Checks if at least <code>numCopies</code> of the book are available.
 	 *
-	 * @param numTimesRated
-	 *            the new number of times rated
+	 * @param numCopies
+	 *            the number of copies
+	 * @return true, if successful
 	 */
-	private void setNumTimesRated(long numTimesRated) {
-		this.numTimesRated = numTimesRated;
+	public boolean areCopiesInStore(int numCopies) {
+		return getNumCopies() >= numCopies;
 	}
 
 	/**
-	 * Sets the number of copies of a book in stock.
+	 * Reduces the number of copies of the books.
 	 *
 	 * @param numCopies
-	 *            the new number of copies
+	 *            the number of copies
+	 * @return true, if successful
 	 */
-	private void setNumCopies(int numCopies) {
-		this.numCopies = numCopies;
+	public boolean buyCopies(int numCopies) {
+		return !BookStoreUtility.isInvalidNoCopies(numCopies) && tryBuyCopies(numCopies) == 0;
 	}
 
 	/**
-	 * Sets the number of times that a client wanted to buy a book when it was
-	 * not in stock, also known as the number of sale misses.
+	 * Atomically reduces the number of copies of the book if at least
+	 * <code>numCopies</code> are available, otherwise leaves the book
+	 * unchanged.
 	 *
-	 * @param saleMisses
-	 *            the new sale misses
+	 * @param numCopies
+	 *            the number of copies
+	 * @return 0 if the copies were bought, otherwise the number of copies that
+	 *         were missing
 	 */
-	private void setNumSaleMisses(long numSaleMisses) {
-		this.numSaleMisses = numSaleMisses;
+	public int tryBuyCopies(int numCopies) {
+		if (ESCROW_ENABLED) {
+			sampleHeat();
+		}
+
+		while (true) {
+			int moves = copyMoves;
+			CopyEscrow current = escrow;
+
+			if (current != null) {
+				if (current.tryTake(numCopies)) {
+					return 0;
+				}
+
+				int numMissing = buyFromEscrow(current, numCopies);
+
+				if (numMissing >= 0) {
+					return numMissing;
+				}
+			} else {
+				int numMissing = buyFromVersion(numCopies);
+
+				// The book is only short if no copies were on their way into an
+				// escrow while we looked.
+				if (numMissing == 0 || ((moves & 1) == 0 && copyMoves == moves)) {
+					return numMissing;
+				}
+
+				Thread.onSpinWait();
+			}
+		}
 	}
 
 	/**
-	 * Sets the book to be an editor pick if <code>editorPick</code> is true,
-	 * otherwise the book is not an editor pick.
+	 * Atomically reduces the number of copies of the book by as many of
+	 * <code>numCopies</code> as are available.
 	 *
-	 * @param editorPick
-	 *            the new editor pick
+	 * @param numCopies
+	 *            the number of copies
+	 * @return the number of copies bought, between 0 and
+	 *         <code>numCopies</code>
 	 */
-	public void setEditorPick(boolean editorPick) {
-		this.editorPick = editorPick;
+	public int buyAvailableCopies(int numCopies) {
+		int numWanted = numCopies;
+
+		// A short purchase reports how many copies were there, so it is
+		// retried for those until it goes through or none are left.
+		while (numWanted > 0) {
+			int numMissing = tryBuyCopies(numWanted);
+
+			if (numMissing == 0) {
+				return numWanted;
+			}
+
+			numWanted -= numMissing;
+		}
+
+		return 0;
 	}
 
 	/**
-	 * Checks if at least <code>numCopies</code> of the book are available.
+	 * Takes the copies from the version if at least <code>numCopies</code> are
+	 * there, cf. {@link #tryBuyCopies(int)}.
+	 */
+	private int buyFromVersion(int numCopies) {
+		ImmutableStockBook current;
+
+		do {
+			current = version;
+
+			if (current.getNumCopies() < numCopies) {
+				return numCopies - current.getNumCopies();
+			}
+		} while (!VERSION.compareAndSet(this, current, newVersion(current.getNumCopies() - numCopies,
+				current.getNumSaleMisses(), current.getNumTimesRated(), current.getTotalRating(),
+				current.isEditorPick())));
+
+		return 0;
+	}
+
+	/**
+	 * Rebalances the escrow after the slot of the caller ran dry: gathers all
+	 * the copies of the book, takes <code>numCopies</code> if there are enough
+	 * and spreads the rest over the slots again.
 	 *
-	 * @param numCopies
-	 *            the number of copies
-	 * @return true, if successful
+	 * @return the number of missing copies as in {@link #tryBuyCopies(int)},
+	 *         or -1 if the escrow was merged back in the meantime
 	 */
-	public boolean areCopiesInStore(int numCopies) {
-		return this.numCopies >= numCopies;
+	private int buyFromEscrow(CopyEscrow current, int numCopies) {
+		current.lock().lock();
+
+		try {
+			if (current.isClosed()) {
+				return -1;
+			}
+
+			COPY_MOVES.incrementAndGet(this);
+
+			try {
+				int available = current.drain() + takeVersionCopies();
+
+				if (available >= numCopies) {
+					current.spread(available - numCopies);
+					return 0;
+				}
+
+				current.spread(available);
+				return numCopies - available;
+			} finally {
+				COPY_MOVES.incrementAndGet(this);
+			}
+		} finally {
+			current.lock().unlock();
+		}
 	}
 
 	/**
-	 * Reduces the number of copies of the books.
+	 * Takes all the copies out of the version.
 	 *
-	 * @param numCopies
-	 *            the number of copies
-	 * @return true, if successful
+	 * @return the copies taken
 	 */
-	public boolean buyCopies(int numCopies) {
-		if (!BookStoreUtility.isInvalidNoCopies(numCopies) && areCopiesInStore(numCopies)) {
-			this.numCopies -= numCopies;
-			return true;
+	private int takeVersionCopies() {
+		ImmutableStockBook current;
+
+		do {
+			current = version;
+
+			if (current.getNumCopies() == 0) {
+				return 0;
+			}
+		} while (!VERSION.compareAndSet(this, current, newVersion(0, current.getNumSaleMisses(),
+				current.getNumTimesRated(), current.getTotalRating(), current.isEditorPick())));
+
+		return current.getNumCopies();
+	}
+
+	/**
+	 * Counts a sample of the purchases of the book, and at the end of each
+	 * heat window escrows the copies of the book if it was bought often or
+	 * merges the escrow back if it was not.
+	 */
+	private void sampleHeat() {
+		if ((ThreadLocalRandom.current().nextInt() & HEAT_SAMPLE_MASK) != 0) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		long windowStart = heatWindowStart;
+
+		if (now - windowStart < HEAT_WINDOW_NANOS) {
+			HEAT.incrementAndGet(this);
+			return;
 		}
 
-		return false;
+		if (!HEAT_WINDOW_START.compareAndSet(this, windowStart, now)) {
+			return;
+		}
+
+		int samples = HEAT.getAndSet(this, 0);
+
+		if (samples >= HOT_SAMPLES && escrow == null) {
+			openEscrow();
+		} else if (samples < COLD_SAMPLES && escrow != null) {
+			closeEscrow();
+		}
+	}
+
+	/**
+	 * Moves the copies of the book into a new escrow, unless there already is
+	 * one.
+	 */
+	private void openEscrow() {
+		CopyEscrow newEscrow = new CopyEscrow(ESCROW_SLOTS);
+		newEscrow.lock().lock();
+
+		try {
+			if (ESCROW.compareAndSet(this, null, newEscrow)) {
+				COPY_MOVES.incrementAndGet(this);
+				newEscrow.spread(takeVersionCopies());
+				COPY_MOVES.incrementAndGet(this);
+			}
+		} finally {
+			newEscrow.lock().unlock();
+		}
+	}
+
+	/**
+	 * Merges the escrow back into the version. The copies are back in the
+	 * version before the escrow is cleared, so buyers that no longer see the
+	 * escrow find them there.
+	 */
+	private void closeEscrow() {
+		CopyEscrow current = escrow;
+
+		if (current == null) {
+			return;
+		}
+
+		current.lock().lock();
+
+		try {
+			if (!current.isClosed()) {
+				COPY_MOVES.incrementAndGet(this);
+				returnCopies(current.close());
+				COPY_MOVES.incrementAndGet(this);
+				ESCROW.compareAndSet(this, current, null);
+			}
+		} finally {
+			current.lock().unlock();
+		}
+	}
+
+	/**
+	 * Waits until no copies are moving between the version and the escrow.
+	 *
+	 * @return the even number of copy moves
+	 */
+	private int awaitCopyMoves() {
+		int moves;
+
+		while (((moves = copyMoves) & 1) != 0) {
+			Thread.onSpinWait();
+		}
+
+		return moves;
+	}
+
+	/**
+	 * Gets the copies in the escrow, if any.
+	 */
+	private int getEscrowedCopies() {
+		CopyEscrow current = escrow;
+		return current == null ? 0 : current.getNumCopies();
+	}
+
+	/**
+	 * Gives back copies taken by {@link #tryBuyCopies(int)} when the purchase
+	 * they were part of is rolled back. Unlike {@link #addCopies(int)}, the
+	 * sale misses are left untouched.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	public void returnCopies(int numCopies) {
+		ImmutableStockBook current;
+
+		do {
+			current = version;
+		} while (!VERSION.compareAndSet(this, current, newVersion(current.getNumCopies() + numCopies,
+				current.getNumSaleMisses(), current.getNumTimesRated(), current.getTotalRating(),
+				current.isEditorPick())));
 	}
 
 	/**
@@ -210,19 +604,29 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addCopies(int numNewCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(numNewCopies)) {
-			this.numCopies += numNewCopies;
-			this.numSaleMisses = 0;
+			ImmutableStockBook current;
+
+			do {
+				current = version;
+			} while (!VERSION.compareAndSet(this, current, newVersion(current.getNumCopies() + numNewCopies, 0,
+					current.getNumTimesRated(), current.getTotalRating(), current.isEditorPick())));
 		}
 	}
 
 	/**
 	 * Increments the amount of missed sales of the book.
-	 * 
+	 *
 	 * @param numSaleMisses
 	 *            the number of sales misses encountered
 	 */
 	public void addSaleMiss(int numSaleMisses) {
-		this.numSaleMisses += numSaleMisses;
+		ImmutableStockBook current;
+
+		do {
+			current = version;
+		} while (!VERSION.compareAndSet(this, current, newVersion(current.getNumCopies(),
+				current.getNumSaleMisses() + numSaleMisses, current.getNumTimesRated(), current.getTotalRating(),
+				current.isEditorPick())));
 	}
 
 	/**
@@ -233,8 +637,81 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addRating(int rating) {
 		if (!BookStoreUtility.isInvalidRating(rating)) {
-			this.totalRating += rating;
-			this.numTimesRated++;
+			ratings.add((1L << RATING_TOTAL_BITS) + rating);
+		}
+	}
+
+	/**
+	 * Gets the packed sum of the ratings added so far. Two equal sums mean
+	 * that no rating was added in between.
+	 *
+	 * @return the packed sum
+	 */
+	long getRatingsSum() {
+		return ratings.sum();
+	}
+
+	/**
+	 * Claims the right to move the book in the rating index. Threads that
+	 * fail to claim it leave the move to the claiming thread, which checks for
+	 * new ratings after {@link #releaseRatingIndex()}.
+	 *
+	 * @return true, if the claim succeeded
+	 */
+	boolean claimRatingIndex() {
+		return ratingIndexClaim == 0 && RATING_INDEX_CLAIM.compareAndSet(this, 0, 1);
+	}
+
+	/**
+	 * Releases the claim taken by {@link #claimRatingIndex()}.
+	 */
+	void releaseRatingIndex() {
+		ratingIndexClaim = 0;
+	}
+
+	/**
+	 * Claims the right to move the book in the copies index, like
+	 * {@link #claimRatingIndex()}. The claiming thread checks for new copies
+	 * after {@link #releaseCopiesIndex()}.
+	 *
+	 * @return true, if the claim succeeded
+	 */
+	boolean claimCopiesIndex() {
+		return copiesIndexClaim == 0 && COPIES_INDEX_CLAIM.compareAndSet(this, 0, 1);
+	}
+
+	/**
+	 * Releases the claim taken by {@link #claimCopiesIndex()}.
+	 */
+	void releaseCopiesIndex() {
+		copiesIndexClaim = 0;
+	}
+
+	/**
+	 * Gets the store version of the last change to the book.
+	 *
+	 * @return the change version
+	 */
+	long getChangeVersion() {
+		return changeVersion;
+	}
+
+	/**
+	 * Stamps the book as changed at the store version. The change version
+	 * only moves forward, and it is written only when the store version moved
+	 * since the last stamp, so that books changed by many threads at once are
+	 * not contended for it.
+	 *
+	 * @param storeVersion
+	 *            the store version
+	 */
+	void stampChange(long storeVersion) {
+		long current;
+
+		while ((current = changeVersion) < storeVersion) {
+			if (CHANGE_VERSION.compareAndSet(this, current, storeVersion)) {
+				return;
+			}
 		}
 	}
 
@@ -245,7 +722,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return true, if successful
 	 */
 	public boolean hadSaleMiss() {
-		return this.numSaleMisses > 0;
+		return version.getNumSaleMisses() > 0;
 	}
 
 	/**
@@ -260,24 +737,54 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	/**
-	 * Returns a {@link ImmutableBook} copy of the book.
+	 * Returns the {@link ImmutableBook} view of the book. The view is shared
+	 * by all readers; the parts of a book it holds never change.
 	 *
 	 * @return the immutable book
 	 */
 	public ImmutableBook immutableBook() {
-		return new ImmutableBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice());
+		return bookView;
 	}
 
 	/**
-	 * Returns a {@link StockBook} copy of the book.
+	 * Returns the published {@link StockBook} version of the book with the
+	 * ratings and the escrowed copies folded in. The result is immutable and
+	 * shared by all readers until the book is changed or rated again.
 	 *
 	 * @return the stock book
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.numSaleMisses, this.numTimesRated, this.totalRating,
-				this.editorPick);
+		int moves;
+		ImmutableStockBook current;
+		int escrowedCopies;
+
+		do {
+			moves = awaitCopyMoves();
+			current = version;
+			escrowedCopies = getEscrowedCopies();
+		} while (copyMoves != moves);
+
+		long currentRatings = ratings.sum();
+
+		if (currentRatings == 0 && escrowedCopies == 0) {
+			return current;
+		}
+
+		// Reuse the last folded version unless the book, its ratings or its
+		// escrowed copies changed.
+		FoldedVersion folded = foldedVersion;
+
+		if (folded == null || folded.version != current || folded.ratings != currentRatings
+				|| folded.escrowedCopies != escrowedCopies) {
+			folded = new FoldedVersion(current, currentRatings, escrowedCopies,
+					new ImmutableStockBook(getISBN(), getTitle(), getAuthor(), getPrice(),
+							current.getNumCopies() + escrowedCopies, current.getNumSaleMisses(),
+							current.getNumTimesRated() + (currentRatings >>> RATING_TOTAL_BITS),
+							current.getTotalRating() + (currentRatings & RATING_TOTAL_MASK), current.isEditorPick()));
+			foldedVersion = folded;
+		}
+
+		return folded.folded;
 	}
 
 	/**
@@ -287,6 +794,6 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public BookStoreBook copy() {
 		return new BookStoreBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies);
+				this.getPrice(), getNumCopies());
 	}
 }
@@ -0,0 +1,52 @@
+package com.acertainbookstore.business;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreOperation} is one operation of a batch, cf.
+ * {@link com.acertainbookstore.interfaces.StockManager#runBatch(java.util.List, boolean)}.
+ * It is the message tag of the operation together with the arguments the
+ * operation takes, in the order of the parameters of its method, e.g.
+ * {@link BookStoreMessageTag#BUYBOOKS} with the set of {@link BookCopy} to
+ * buy, or {@link BookStoreMessageTag#LISTBOOKSPAGE} with the page size and
+ * the continuation token.
+ */
+public final class BookStoreOperation {
+
+	/** The message tag of the operation. */
+	private final BookStoreMessageTag tag;
+
+	/** The arguments of the operation. */
+	private final Object[] arguments;
+
+	/**
+	 * Instantiates a new {@link BookStoreOperation}.
+	 *
+	 * @param tag
+	 *            the message tag of the operation
+	 * @param arguments
+	 *            the arguments of the operation
+	 */
+	public BookStoreOperation(BookStoreMessageTag tag, Object... arguments) {
+		this.tag = tag;
+		this.arguments = arguments;
+	}
+
+	/**
+	 * Gets the message tag of the operation.
+	 *
+	 * @return the message tag
+	 */
+	public BookStoreMessageTag getTag() {
+		return tag;
+	}
+
+	/**
+	 * Gets the arguments of the operation.
+	 *
+	 * @return the arguments
+	 */
+	public Object[] getArguments() {
+		return arguments;
+	}
+}
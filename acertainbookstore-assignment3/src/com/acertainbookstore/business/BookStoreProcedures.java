@@ -0,0 +1,212 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.BookStoreProcedure;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link BookStoreProcedures} is the registry of the named procedures of the
+ * server process, cf. {@link BookStore#callProcedure(String, Object...)}. A
+ * procedure is registered with the types of its parameters, and a call is
+ * only run if its arguments match them. The procedures are not atomic, each
+ * call they make to the store is.
+ * 
+ * {@link #BUY_EDITOR_PICKS} and {@link #RESTOCK_BOOKS_IN_DEMAND} are
+ * registered from the start.
+ */
+public final class BookStoreProcedures {
+
+	/**
+	 * The procedure buying copies of a random sample of the editor picks. It
+	 * takes the number of editor picks to sample from, the number of books to
+	 * buy and the number of copies of each, and returns the ISBNs bought.
+	 */
+	public static final String BUY_EDITOR_PICKS = "buyEditorPicks";
+
+	/**
+	 * The procedure restocking the books with sale misses. It takes the number
+	 * of copies to add to each book, and returns the ISBNs restocked.
+	 */
+	public static final String RESTOCK_BOOKS_IN_DEMAND = "restockBooksInDemand";
+
+	/** The registered procedures by name. */
+	private static final ConcurrentHashMap<String, Registration> procedures = new ConcurrentHashMap<>();
+
+	static {
+		register(BUY_EDITOR_PICKS, BookStoreProcedures::buyEditorPicks, Integer.class, Integer.class, Integer.class);
+		register(RESTOCK_BOOKS_IN_DEMAND, BookStoreProcedures::restockBooksInDemand, Integer.class);
+	}
+
+	/**
+	 * A procedure together with the types of its parameters.
+	 */
+	private static final class Registration {
+
+		/** The procedure. */
+		private final BookStoreProcedure procedure;
+
+		/** The types of the parameters. */
+		private final Class<?>[] parameterTypes;
+
+		private Registration(BookStoreProcedure procedure, Class<?>[] parameterTypes) {
+			this.procedure = procedure;
+			this.parameterTypes = parameterTypes;
+		}
+	}
+
+	/**
+	 * Prevents the instantiation of a new {@link BookStoreProcedures}.
+	 */
+	private BookStoreProcedures() {
+		// Prevent instantiation.
+	}
+
+	/**
+	 * Registers a procedure, replacing any procedure registered under the
+	 * same name.
+	 *
+	 * @param name
+	 *            the name of the procedure
+	 * @param procedure
+	 *            the procedure
+	 * @param parameterTypes
+	 *            the types of the parameters of the procedure
+	 */
+	public static void register(String name, BookStoreProcedure procedure, Class<?>... parameterTypes) {
+		if (name == null || procedure == null || parameterTypes == null) {
+			throw new IllegalArgumentException(BookStoreConstants.NULL_INPUT);
+		}
+
+		procedures.put(name, new Registration(procedure, parameterTypes.clone()));
+	}
+
+	/**
+	 * Calls a procedure on the store.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param name
+	 *            the name of the procedure
+	 * @param arguments
+	 *            the arguments
+	 * @return the result of the procedure
+	 * @throws BookStoreException
+	 *             if there is no such procedure, the arguments do not match
+	 *             its parameters, or the procedure fails
+	 */
+	static Object call(BookStore bookStore, StockManager stockManager, String name, Object[] arguments)
+			throws BookStoreException {
+		Registration registration = name == null ? null : procedures.get(name);
+
+		if (registration == null) {
+			throw new BookStoreException(BookStoreConstants.PROCEDURE + name + BookStoreConstants.INVALID);
+		}
+
+		if (arguments == null) {
+			arguments = new Object[0];
+		}
+
+		if (arguments.length != registration.parameterTypes.length) {
+			throw new BookStoreException(BookStoreConstants.PROCEDURE + name + BookStoreConstants.INVALID_ARGUMENTS);
+		}
+
+		for (int i = 0; i < arguments.length; i++) {
+			if (!registration.parameterTypes[i].isInstance(arguments[i])) {
+				throw new BookStoreException(
+						BookStoreConstants.PROCEDURE + name + BookStoreConstants.INVALID_ARGUMENTS);
+			}
+		}
+
+		return registration.procedure.run(bookStore, stockManager, arguments);
+	}
+
+	/**
+	 * Buys copies of a random sample of the editor picks, cf.
+	 * {@link #BUY_EDITOR_PICKS}.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param arguments
+	 *            the number of editor picks, of books to buy and of copies
+	 * @return the ISBNs bought
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static Object buyEditorPicks(BookStore bookStore, StockManager stockManager, Object[] arguments)
+			throws BookStoreException {
+		int numEditorPicks = (Integer) arguments[0];
+		int numBooksToBuy = (Integer) arguments[1];
+		int numCopies = (Integer) arguments[2];
+
+		if (numBooksToBuy < 0) {
+			throw new BookStoreException("numBooks = " + numBooksToBuy + ", but it must be positive");
+		}
+
+		List<Integer> editorPickIsbns = new ArrayList<>();
+
+		for (Book book : bookStore.getEditorPicks(numEditorPicks)) {
+			editorPickIsbns.add(book.getISBN());
+		}
+
+		Collections.shuffle(editorPickIsbns, ThreadLocalRandom.current());
+		List<Integer> boughtIsbns = new ArrayList<>(
+				editorPickIsbns.subList(0, Math.min(numBooksToBuy, editorPickIsbns.size())));
+		Set<BookCopy> bookCopies = new HashSet<>();
+
+		for (int isbn : boughtIsbns) {
+			bookCopies.add(new BookCopy(isbn, numCopies));
+		}
+
+		bookStore.buyBooks(bookCopies);
+		return boughtIsbns;
+	}
+
+	/**
+	 * Restocks the books with sale misses, cf.
+	 * {@link #RESTOCK_BOOKS_IN_DEMAND}.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param arguments
+	 *            the number of copies
+	 * @return the ISBNs restocked
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static Object restockBooksInDemand(BookStore bookStore, StockManager stockManager, Object[] arguments)
+			throws BookStoreException {
+		int numCopies = (Integer) arguments[0];
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+
+		List<Integer> restockedIsbns = new ArrayList<>();
+		Set<BookCopy> bookCopies = new HashSet<>();
+
+		for (StockBook book : stockManager.getBooksInDemand()) {
+			restockedIsbns.add(book.getISBN());
+			bookCopies.add(new BookCopy(book.getISBN(), numCopies));
+		}
+
+		stockManager.addCopies(bookCopies);
+		return restockedIsbns;
+	}
+}
@@ -2,33 +2,110 @@ package com.acertainbookstore.business;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link CertainBookStore} implements the {@link BookStore} and
  * {@link StockManager} functionalities.
  * 
+ * Concurrency control is two-level. Operations that change the set of books in
+ * the store (adding and removing books) take the store lock exclusively, while
+ * every other update takes it shared and then locks only the ISBNs it touches.
+ * ISBNs are mapped onto a fixed array of lock stripes, and the stripes are
+ * always acquired in ascending order, so that concurrent multi-book operations
+ * cannot deadlock. Purchases do not take ISBN locks at all; they check that
+ * every book of the order has the copies, then take them with compare-and-set
+ * and give them back if a concurrent purchase took some in between, cf.
+ * {@link BookStoreBook#tryBuyCopies(int)}. Only that race can make copies look
+ * sold for a moment to another purchase, which may then miss them. Ratings take
+ * no ISBN locks either; they add to contention-free counters of the books, cf.
+ * {@link BookStoreBook#addRating(int)}.
+ * 
+ * Reads take no locks. The book map is copy-on-write: adding or removing books
+ * publishes a new map, and every book publishes a new immutable version of its
+ * state on each change. A reader works on the map that was published when it
+ * started and on the versions of the books it finds there. The editor picks
+ * are kept in a copy-on-write index of their own, cf. {@link EditorPickIndex},
+ * and the rated books in a concurrent rating order, cf. {@link TopRatedIndex},
+ * as are all the books in order of their copies, cf. {@link LeastCopiesIndex}.
+ * 
+ * Every change stamps the books it changed with the store version, so that
+ * stock managers can sync only the books changed since their last sync, cf.
+ * {@link BookChangeLog}.
+ * 
  * @see BookStore
  * @see StockManager
  */
 public class CertainBookStore implements BookStore, StockManager {
 
-	/** The mapping of books from ISBN to {@link BookStoreBook}. */
-	private Map<Integer, BookStoreBook> bookMap = null;
+	/** The number of ISBN lock stripes, must be a power of two. */
+	private static final int NUM_LOCK_STRIPES = 1024;
+
+	/**
+	 * The published mapping of books from ISBN to {@link BookStoreBook}. It is
+	 * never modified in place; writers holding the store lock exclusively
+	 * replace it with a modified copy.
+	 */
+	private volatile BookMap bookMap = null;
+
+	/** The store lock, held exclusively while the book map is modified. */
+	private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+	/** The lock stripes protecting the state of the individual books. */
+	private final IsbnLockStripes isbnLocks = new IsbnLockStripes(NUM_LOCK_STRIPES);
+
+	/** The editor picks, kept in step with the editor pick flags. */
+	private final EditorPickIndex editorPickIndex = new EditorPickIndex();
+
+	/**
+	 * The rated books in rating order, kept in step with the ratings. It is
+	 * replaced rather than cleared when all books are removed.
+	 */
+	private volatile TopRatedIndex topRatedIndex = new TopRatedIndex();
+
+	/**
+	 * The books in order of their copies, a concurrent skip list read without
+	 * locks. The updates that change copies hold the store lock shared and
+	 * move each book they touch, cf. repositionStocked: the per-book claim
+	 * flag lets one thread at a time move a book, and that thread moves it
+	 * again if its copies changed meanwhile, so the last change is always
+	 * indexed. Adding and removing books index them under the exclusive lock.
+	 */
+	private final LeastCopiesIndex leastCopiesIndex = new LeastCopiesIndex();
+
+	/**
+	 * The books with sale misses by ISBN. Purchases add the books they miss
+	 * and restocking removes them. A purchase racing with a restock may leave
+	 * a book without misses in the map; it is skipped when read and dropped on
+	 * its next restock.
+	 */
+	private final ConcurrentHashMap<Integer, BookStoreBook> booksInDemand = new ConcurrentHashMap<>();
+
+	/** The versions of the changes to the books. */
+	private final BookChangeLog changeLog = new BookChangeLog();
+
+	/** The backorders waiting for copies of the books. */
+	private final Backorders backorders = new Backorders();
+
+	/** The holds on copies of the books. */
+	private final BookHolds<BookHolds.HeldCopies> holds = new BookHolds<>("book-store-holds",
+			this::releaseHeldCopies);
 
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
@@ -36,9 +113,10 @@ public class CertainBookStore implements BookStore, StockManager {
 	public CertainBookStore() {
 
 		// Constructors are not synchronized
-		bookMap = new HashMap<>();
+		bookMap = new BookMap();
 	}
-	private synchronized void validate(StockBook book) throws BookStoreException {
+
+	private void validate(StockBook book) throws BookStoreException {
 		int isbn = book.getISBN();
 		String bookTitle = book.getTitle();
 		String bookAuthor = book.getAuthor();
@@ -70,7 +148,7 @@ public class CertainBookStore implements BookStore, StockManager {
 		}
 	}
 
-	private synchronized void validate(BookCopy bookCopy) throws BookStoreException {
+	private void validate(BookCopy bookCopy) throws BookStoreException {
 		int isbn = bookCopy.getISBN();
 		int numCopies = bookCopy.getNumCopies();
 
@@ -81,16 +159,20 @@ public class CertainBookStore implements BookStore, StockManager {
 		}
 	}
 
-	private synchronized void validate(BookEditorPick editorPickArg) throws BookStoreException {
+	private void validate(BookEditorPick editorPickArg) throws BookStoreException {
 		int isbn = editorPickArg.getISBN();
 		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
 	}
 
-	private synchronized void validateISBNInStock(Integer ISBN) throws BookStoreException {
+	private void validateISBNInStock(int ISBN) throws BookStoreException {
+		validateISBNInStock(bookMap, ISBN);
+	}
+
+	private static void validateISBNInStock(BookMap books, int ISBN) throws BookStoreException {
 		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
 			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
 		}
-		if (!bookMap.containsKey(ISBN)) {// Check if the book is in stock
+		if (!books.containsKey(ISBN)) {// Check if the book is in stock
 			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
 		}
 	}
@@ -100,19 +182,84 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * @see
 	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
 	 */
-	public synchronized void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
 		if (bookSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		// Check if all are there
-		for (StockBook book : bookSet) {
-			validate(book);
+		storeLock.writeLock().lock();
+
+		try {
+
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			putBooks(bookSet);
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Restores a book of another store into this one, e.g. a scratch store
+	 * checking an atomic batch, cf. {@link BookStoreBatch}, with the
+	 * backorders queued for it there. The backorders are queued as they are,
+	 * without taking copies for them.
+	 *
+	 * @param book
+	 *            the book
+	 * @param backorderedCopies
+	 *            the copies of the backorders queued for the book, in order
+	 */
+	void restoreBook(StockBook book, int[] backorderedCopies) {
+		storeLock.writeLock().lock();
+
+		try {
+			putBooks(Collections.singleton(book));
+
+			for (int numCopies : backorderedCopies) {
+				backorders.place(book.getISBN(), numCopies);
+			}
+		} finally {
+			storeLock.writeLock().unlock();
 		}
+	}
+
+	/**
+	 * Puts the books into the store and its indexes, replacing the books with
+	 * their ISBNs. The caller holds the write lock and validated the books.
+	 *
+	 * @param bookSet
+	 *            the books
+	 */
+	private void putBooks(Set<StockBook> bookSet) {
+		BookMap newBookMap = new BookMap(bookMap);
+		List<BookStoreBook> newEditorPicks = new ArrayList<>();
 
 		for (StockBook book : bookSet) {
 			int isbn = book.getISBN();
-			bookMap.put(isbn, new BookStoreBook(book));
+			BookStoreBook newBook = new BookStoreBook(book);
+			newBookMap.put(isbn, newBook);
+			newBook.stampChange(changeLog.getVersion());
+			changeLog.added(isbn);
+			leastCopiesIndex.reposition(newBook, newBook.getNumCopies());
+
+			if (newBook.isEditorPick()) {
+				newEditorPicks.add(newBook);
+			}
+
+			if (newBook.hadSaleMiss()) {
+				booksInDemand.put(isbn, newBook);
+			}
+		}
+
+		bookMap = newBookMap;
+		editorPickIndex.add(newEditorPicks);
+
+		for (StockBook book : bookSet) {
+			repositionRated(newBookMap.get(book.getISBN()));
 		}
 	}
 
@@ -122,27 +269,59 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * @see
 	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
 	 */
-	public synchronized void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
-		int isbn;
-		int numCopies;
-
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
 		if (bookCopiesSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		for (BookCopy bookCopy : bookCopiesSet) {
-			validate(bookCopy);
+		storeLock.readLock().lock();
+
+		try {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(bookCopy);
+			}
+
+			int[] lockedStripes = isbnLocks.lock(bookCopiesSet.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+
+			try {
+
+				// Update the number of copies
+				for (BookCopy bookCopy : bookCopiesSet) {
+					restock(bookMap.get(bookCopy.getISBN()), bookCopy.getNumCopies());
+				}
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
 		}
+	}
+
+	/**
+	 * Adds the copies to the book and moves it in the indexes. The caller
+	 * must hold the store lock, and the ISBN lock of the book unless it holds
+	 * the store lock exclusively.
+	 *
+	 * @param book
+	 *            the book
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	private void restock(BookStoreBook book, int numCopies) {
+		book.addCopies(numCopies);
+		changeLog.stamp(book);
+		repositionStocked(book);
 
-		BookStoreBook book;
+		// Restocking clears the misses. A miss recorded since then puts the
+		// book back.
+		booksInDemand.remove(book.getISBN());
 
-		// Update the number of copies
-		for (BookCopy bookCopy : bookCopiesSet) {
-			isbn = bookCopy.getISBN();
-			numCopies = bookCopy.getNumCopies();
-			book = bookMap.get(isbn);
-			book.addCopies(numCopies);
+		if (book.hadSaleMiss()) {
+			booksInDemand.put(book.getISBN(), book);
 		}
+
+		// The backorders waiting for the book are filled first.
+		backorders.drain(book.getISBN(), this::takeBackorderedCopies);
 	}
 
 	/*
@@ -150,12 +329,77 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * 
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
 	 */
-	public synchronized List<StockBook> getBooks() {
+	public List<StockBook> getBooks() {
 		Collection<BookStoreBook> bookMapValues = bookMap.values();
 
-		return bookMapValues.stream()
-				.map(book -> book.immutableStockBook())
-				.collect(Collectors.toList());
+		// The books are the shared published versions, only the list is new.
+		List<StockBook> books = new ArrayList<>(bookMapValues.size());
+
+		for (BookStoreBook book : bookMapValues) {
+			books.add(book.immutableStockBook());
+		}
+
+		return books;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksPage(int,
+	 * java.lang.String)
+	 */
+	public StockBookPage getBooksPage(int pageSize, String continuationToken) throws BookStoreException {
+		StockBookPage.validatePageSize(pageSize);
+		int isbnAfter = StockBookPage.isbnAfter(continuationToken);
+
+		// The sorted ISBNs of the published map are shared by all the pages.
+		BookMap books = bookMap;
+		int[] isbns = books.isbnsAfter(isbnAfter, pageSize + 1);
+		List<StockBook> pageBooks = new ArrayList<>(isbns.length);
+
+		for (int isbn : isbns) {
+			pageBooks.add(books.get(isbn).immutableStockBook());
+		}
+
+		return StockBookPage.of(pageBooks, pageSize);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		BookChangeLog.validateVersion(version);
+		long nextVersion;
+		boolean reset;
+		List<Integer> removedIsbns;
+		BookMap books;
+
+		// Adding and removing books waits for the tombstones and the map to
+		// be read, the other changes are caught by their stamps.
+		storeLock.readLock().lock();
+
+		try {
+			nextVersion = changeLog.advance();
+			reset = changeLog.isReset(version, nextVersion);
+			removedIsbns = reset ? new ArrayList<>() : changeLog.removedSince(version);
+			books = bookMap;
+		} finally {
+			storeLock.readLock().unlock();
+		}
+
+		long changedSince = reset ? 0 : version;
+		List<StockBook> changedBooks = new ArrayList<>();
+
+		for (BookStoreBook book : books.values()) {
+			if (book.getChangeVersion() >= changedSince) {
+				changedBooks.add(book.immutableStockBook());
+			}
+		}
+
+		return new BookChanges(nextVersion, reset, changedBooks, removedIsbns);
 	}
 
 	/*
@@ -165,21 +409,54 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
 	 * .Set)
 	 */
-	public synchronized void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
 
 		// Check that all ISBNs that we add/remove are there first.
 		if (editorPicks == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		int isbnValue;
+		storeLock.readLock().lock();
 
-		for (BookEditorPick editorPickArg : editorPicks) {
-			validate(editorPickArg);
-		}
+		try {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validate(editorPickArg);
+			}
+
+			int[] lockedStripes = isbnLocks.lock(
+					editorPicks.stream().map(BookEditorPick::getISBN).collect(Collectors.toList()));
+
+			try {
+				Map<Integer, Boolean> wasEditorPick = new HashMap<>();
+
+				for (BookEditorPick editorPickArg : editorPicks) {
+					BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+					wasEditorPick.putIfAbsent(book.getISBN(), book.isEditorPick());
+					book.setEditorPick(editorPickArg.isEditorPick());
+					changeLog.stamp(book);
+				}
+
+				// Only the books whose flag ended up changed move in the index.
+				List<BookStoreBook> newEditorPicks = new ArrayList<>();
+				List<Integer> oldEditorPicks = new ArrayList<>();
 
-		for (BookEditorPick editorPickArg : editorPicks) {
-			bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+				for (Map.Entry<Integer, Boolean> wasEditorPickEntry : wasEditorPick.entrySet()) {
+					BookStoreBook book = bookMap.get(wasEditorPickEntry.getKey());
+
+					if (book.isEditorPick() && !wasEditorPickEntry.getValue()) {
+						newEditorPicks.add(book);
+					} else if (!book.isEditorPick() && wasEditorPickEntry.getValue()) {
+						oldEditorPicks.add(book.getISBN());
+					}
+				}
+
+				editorPickIndex.add(newEditorPicks);
+				editorPickIndex.remove(oldEditorPicks);
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
 		}
 	}
 
@@ -188,46 +465,308 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * 
 	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
 	 */
-	public synchronized void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (!tryBuyBooks(bookCopiesToBuy).isBought()) {
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#tryBuyBooks(java.util.Set)
+	 */
+	@Override
+	public PurchaseResult tryBuyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
 		if (bookCopiesToBuy == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		// Check that all ISBNs that we buy are there first.
-		int isbn;
-		BookStoreBook book;
-		Boolean saleMiss = false;
+		storeLock.readLock().lock();
+
+		try {
 
-		Map<Integer, Integer> salesMisses = new HashMap<>();
+			// Check that all ISBNs that we buy are there first.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				validate(bookCopyToBuy);
+			}
+
+			int isbn;
+			int numMissing;
+			BookStoreBook book;
+			Boolean saleMiss = false;
 
-		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-			isbn = bookCopyToBuy.getISBN();
-			
-			validate(bookCopyToBuy);
+			Map<Integer, Integer> salesMisses = new HashMap<>();
+			List<BookCopy> boughtCopies = new ArrayList<>(bookCopiesToBuy.size());
 
-			book = bookMap.get(isbn);
+			// Check that all the copies are there before taking any, so that an
+			// order that cannot be filled does not make the copies it would
+			// take look sold to the other purchases.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				isbn = bookCopyToBuy.getISBN();
+				numMissing = bookCopyToBuy.getNumCopies() - bookMap.get(isbn).getNumCopies();
 
-			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
-				// If we cannot sell the copies of the book, it is a miss.
-				salesMisses.put(isbn, bookCopyToBuy.getNumCopies() - book.getNumCopies());
-				saleMiss = true;
+				if (numMissing > 0) {
+					salesMisses.put(isbn, numMissing);
+					saleMiss = true;
+				}
+			}
+
+			// The copies are taken one book at a time with compare-and-set, so
+			// no ISBN locks are held. If a concurrent purchase took the copies
+			// of a book since the check, the remaining books are only checked
+			// for misses and the books already taken are given back.
+			if (!saleMiss) {
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					isbn = bookCopyToBuy.getISBN();
+					book = bookMap.get(isbn);
+
+					if (saleMiss) {
+						numMissing = bookCopyToBuy.getNumCopies() - book.getNumCopies();
+					} else {
+						numMissing = book.tryBuyCopies(bookCopyToBuy.getNumCopies());
+
+						if (numMissing <= 0) {
+							boughtCopies.add(bookCopyToBuy);
+							changeLog.stamp(book);
+							repositionStocked(book);
+						}
+					}
+
+					if (numMissing > 0) {
+						// If we cannot sell the copies of the book, it is a miss.
+						salesMisses.put(isbn, numMissing);
+						saleMiss = true;
+					}
+				}
+			}
+
+			if (!saleMiss) {
+				return PurchaseResult.bought(bookCopiesToBuy);
+			}
+
+			// Give back the copies taken, and record the misses of all the books
+			// in the order, they are used by books in demand.
+			for (BookCopy boughtCopy : boughtCopies) {
+				book = bookMap.get(boughtCopy.getISBN());
+				book.returnCopies(boughtCopy.getNumCopies());
+				changeLog.stamp(book);
+				repositionStocked(book);
 			}
-		}
 
-		// We throw exception now since we want to see how many books in the
-		// order incurred misses which is used by books in demand
-		if (saleMiss) {
 			for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
 				book = bookMap.get(saleMissEntry.getKey());
 				book.addSaleMiss(saleMissEntry.getValue());
+				changeLog.stamp(book);
+				booksInDemand.put(saleMissEntry.getKey(), book);
 			}
-			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+
+			return PurchaseResult.missed(salesMisses);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#buyAvailableBooks(java.util.
+	 * Set)
+	 */
+	@Override
+	public PurchaseResult buyAvailableBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				validate(bookCopyToBuy);
+			}
+
+			// Each book is bought on its own with compare-and-set, and only
+			// the copies it was short of are a sale miss.
+			List<BookCopy> boughtCopies = new ArrayList<>(bookCopiesToBuy.size());
+			List<BookCopy> missedCopies = new ArrayList<>();
+
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				int isbn = bookCopyToBuy.getISBN();
+				BookStoreBook book = bookMap.get(isbn);
+				int numBought = book.buyAvailableCopies(bookCopyToBuy.getNumCopies());
+				int numMissing = bookCopyToBuy.getNumCopies() - numBought;
+
+				if (numBought > 0) {
+					boughtCopies.add(new BookCopy(isbn, numBought));
+					repositionStocked(book);
+				}
+
+				if (numMissing > 0) {
+					missedCopies.add(new BookCopy(isbn, numMissing));
+					book.addSaleMiss(numMissing);
+					booksInDemand.put(isbn, book);
+				}
+
+				changeLog.stamp(book);
+			}
+
+			return new PurchaseResult(boughtCopies, missedCopies);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#placeBackorder(com.
+	 * acertainbookstore.business.BookCopy)
+	 */
+	@Override
+	public long placeBackorder(BookCopy bookCopy) throws BookStoreException {
+		if (bookCopy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			validate(bookCopy);
+
+			long backorderId = backorders.place(bookCopy.getISBN(), bookCopy.getNumCopies());
+			backorders.drain(bookCopy.getISBN(), this::takeBackorderedCopies);
+			return backorderId;
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBackorder(long,
+	 * long)
+	 */
+	@Override
+	public BackorderStatus awaitBackorder(long backorderId, long timeoutMillis) throws BookStoreException {
+		return backorders.await(backorderId, timeoutMillis);
+	}
+
+	/**
+	 * Buys copies of a book for a backorder, cf. {@link Backorders.CopyTaker}.
+	 * The caller must hold the store lock.
+	 */
+	private boolean takeBackorderedCopies(int isbn, int numCopies) {
+		BookStoreBook book = bookMap.get(isbn);
+
+		if (book.tryBuyCopies(numCopies) != 0) {
+			return false;
+		}
+
+		changeLog.stamp(book);
+		repositionStocked(book);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToHold, long ttlMillis) throws BookStoreException {
+		if (bookCopiesToHold == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		// Then make the purchase.
-		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-			book = bookMap.get(bookCopyToBuy.getISBN());
-			book.buyCopies(bookCopyToBuy.getNumCopies());
+		BookHolds.validateTtl(ttlMillis);
+		storeLock.readLock().lock();
+
+		try {
+			for (BookCopy bookCopyToHold : bookCopiesToHold) {
+				validate(bookCopyToHold);
+			}
+
+			// The copies are taken out of stock now, confirming the hold keeps
+			// them sold. A hold that cannot be placed is not a sale, so it
+			// records no sale misses.
+			List<BookHolds.HeldCopies> heldCopies = new ArrayList<>(bookCopiesToHold.size());
+
+			for (BookCopy bookCopyToHold : bookCopiesToHold) {
+				BookStoreBook book = bookMap.get(bookCopyToHold.getISBN());
+
+				if (book.tryBuyCopies(bookCopyToHold.getNumCopies()) != 0) {
+					returnHeldCopies(heldCopies);
+					throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+				}
+
+				heldCopies.add(new BookHolds.HeldCopies(book, bookCopyToHold.getNumCopies()));
+				changeLog.stamp(book);
+				repositionStocked(book);
+			}
+
+			// The hold is placed before the store lock is let go, so the copies
+			// are never out of stock without a hold.
+			return holds.hold(heldCopies, ttlMillis);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#confirmHold(long)
+	 */
+	@Override
+	public void confirmHold(long holdId) throws BookStoreException {
+		holds.confirm(holdId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#cancelHold(long)
+	 */
+	@Override
+	public void cancelHold(long holdId) throws BookStoreException {
+		holds.cancel(holdId);
+	}
+
+	/**
+	 * Gives back the copies of a hold that was cancelled or expired, cf.
+	 * {@link BookHolds.CopyReleaser}.
+	 */
+	private void releaseHeldCopies(List<BookHolds.HeldCopies> heldCopies) {
+		storeLock.readLock().lock();
+
+		try {
+			returnHeldCopies(heldCopies);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gives back held copies to the books they were taken from. The copies of
+	 * a book removed meanwhile are dropped, even if a book with its ISBN was
+	 * added since. The caller must hold the store lock.
+	 */
+	private void returnHeldCopies(List<BookHolds.HeldCopies> heldCopies) {
+		for (BookHolds.HeldCopies heldCopy : heldCopies) {
+			BookStoreBook book = heldCopy.book;
+
+			if (bookMap.get(book.getISBN()) == book) {
+				book.returnCopies(heldCopy.numCopies);
+				changeLog.stamp(book);
+				repositionStocked(book);
+				backorders.drain(book.getISBN(), this::takeBackorderedCopies);
+			}
 		}
 	}
 
@@ -238,19 +777,25 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
 	 * Set)
 	 */
-	public synchronized List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		BookMap books = bookMap;
+
 		for (Integer ISBN : isbnSet) {
-			validateISBNInStock(ISBN);
+			validateISBNInStock(books, ISBN);
 		}
 
 		// Return the set of books matching isbns in the validated set.
-		return isbnSet.stream()
-				.map(isbn -> bookMap.get(isbn).immutableStockBook())
-				.collect(Collectors.toList());
+		List<StockBook> stockBooks = new ArrayList<>(isbnSet.size());
+
+		for (int isbn : isbnSet) {
+			stockBooks.add(books.get(isbn).immutableStockBook());
+		}
+
+		return stockBooks;
 	}
 
 	/*
@@ -258,19 +803,25 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * 
 	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
 	 */
-	public synchronized List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		BookMap books = bookMap;
+
 		// Check that all ISBNs that we rate are there to start with.
 		for (Integer ISBN : isbnSet) {
-			validateISBNInStock(ISBN);
+			validateISBNInStock(books, ISBN);
 		}
 
-		return isbnSet.stream()
-				.map(isbn -> bookMap.get(isbn).immutableBook())
-				.collect(Collectors.toList());
+		List<Book> bookList = new ArrayList<>(isbnSet.size());
+
+		for (int isbn : isbnSet) {
+			bookList.add(books.get(isbn).immutableBook());
+		}
+
+		return bookList;
 	}
 
 	/*
@@ -278,73 +829,218 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * 
 	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
 	 */
-	public synchronized List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
 		if (numBooks < 0) {
 			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 		}
 
-		// Query for all books with the Editor Pick boolean set.
-		List<BookStoreBook> listAllEditorPicks = bookMap.entrySet().stream()
-				.map(pair -> pair.getValue())
-				.filter(book -> book.isEditorPick())
+		// Sample the published editor picks, the catalog is not scanned.
+		return editorPickIndex.sample(numBooks, ThreadLocalRandom.current());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// Read the head of the rating order, unrated books are not in it.
+		return topRatedIndex.top(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+
+		// Only the books that had misses are looked at, not the catalog.
+		return booksInDemand.values().stream()
+				.map(book -> book.immutableStockBook())
+				.filter(book -> book.getNumSaleMisses() > 0)
 				.collect(Collectors.toList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Ratings only add to the rating counters of the books, so they take
+		// the store lock shared, which keeps them out of atomic batches, and
+		// no ISBN locks.
+		storeLock.readLock().lock();
+
+		try {
+			rateBooks(bookMap, bookRating);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rates the books of the map. The caller holds the store lock shared.
+	 *
+	 * @param books
+	 *            the published books
+	 * @param bookRating
+	 *            the ratings
+	 * @throws BookStoreException
+	 *             if a book is not in the map or a rating is invalid
+	 */
+	private void rateBooks(BookMap books, Set<BookRating> bookRating) throws BookStoreException {
+
+		// Check that all ISBNs that we rate are there, and all the ratings are
+		// valid, before rating any book.
+		for (BookRating rating : bookRating) {
+			validateISBNInStock(books, rating.getISBN());
+
+			if (BookStoreUtility.isInvalidRating(rating.getRating())) {
+				throw new BookStoreException(BookStoreConstants.RATING + rating.getRating() + BookStoreConstants.INVALID);
+			}
+		}
 
-		// Find numBooks random indices of books that will be picked.
-		Random rand = new Random();
-		Set<Integer> tobePicked = new HashSet<>();
-		int rangePicks = listAllEditorPicks.size();
+		for (BookRating rating : bookRating) {
+			BookStoreBook book = books.get(rating.getISBN());
+			book.addRating(rating.getRating());
+			changeLog.stamp(book);
+		}
+
+		for (BookRating rating : bookRating) {
+			repositionRated(books.get(rating.getISBN()));
+		}
+	}
+
+	/**
+	 * Moves the book to the position of its current rating in the rating
+	 * index, unless another thread is moving it. That thread checks for new
+	 * ratings when it is done, so no rating is left out of the index.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	private void repositionRated(BookStoreBook book) {
+		while (book.claimRatingIndex()) {
+			long ratingsSum = book.getRatingsSum();
 
-		if (rangePicks <= numBooks) {
+			// A book that is no longer published must stay out of the index.
+			TopRatedIndex index = topRatedIndex;
 
-			// We need to add all books.
-			for (int i = 0; i < listAllEditorPicks.size(); i++) {
-				tobePicked.add(i);
+			if (bookMap.get(book.getISBN()) == book) {
+				index.reposition(book);
 			}
-		} else {
 
-			// We need to pick randomly the books that need to be returned.
-			int randNum;
+			book.releaseRatingIndex();
 
-			while (tobePicked.size() < numBooks) {
-				randNum = rand.nextInt(rangePicks);
-				tobePicked.add(randNum);
+			if (book.getRatingsSum() == ratingsSum) {
+				return;
 			}
 		}
+	}
 
-		// Return all the books by the randomly chosen indices.
-		return tobePicked.stream()
-				.map(index -> listAllEditorPicks.get(index).immutableBook())
-				.collect(Collectors.toList());
+	/**
+	 * Moves the book to the position of its current copies in the copies
+	 * index, unless another thread is moving it, like
+	 * {@link #repositionRated(BookStoreBook)}. The caller holds the store lock,
+	 * so the book is still published.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	private void repositionStocked(BookStoreBook book) {
+		while (book.claimCopiesIndex()) {
+			int numCopies = book.getNumCopies();
+			leastCopiesIndex.reposition(book, numCopies);
+			book.releaseCopiesIndex();
+
+			if (book.getNumCopies() == numCopies) {
+				return;
+			}
+		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	/**
+	 * Removes a book that is no longer published from the rating index,
+	 * waiting for a thread that may be moving it.
+	 *
+	 * @param book
+	 *            the book
 	 */
-	@Override
-	public synchronized List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		throw new BookStoreException();
+	private void unindexRated(BookStoreBook book) {
+		while (!book.claimRatingIndex()) {
+			Thread.yield();
+		}
+
+		try {
+			topRatedIndex.remove(book);
+		} finally {
+			book.releaseRatingIndex();
+		}
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksWithLeastCopies(int)
 	 */
 	@Override
-	public synchronized List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException();
+	public List<StockBook> getBooksWithLeastCopies(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// Read the head of the copies order.
+		return leastCopiesIndex.least(numBooks);
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 * @see com.acertainbookstore.interfaces.StockManager#
+	 * restockBooksWithLeastCopies(int, int)
 	 */
 	@Override
-	public synchronized void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		throw new BookStoreException();
+	public List<StockBook> restockBooksWithLeastCopies(int numBooks, int numCopies) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+
+		// Purchases take no ISBN locks, so only the exclusive store lock keeps
+		// them from moving books in the copies order meanwhile.
+		storeLock.writeLock().lock();
+
+		try {
+			List<StockBook> leastCopies = leastCopiesIndex.least(numBooks);
+			List<StockBook> restockedBooks = new ArrayList<>(leastCopies.size());
+
+			for (StockBook leastCopiesBook : leastCopies) {
+				BookStoreBook book = bookMap.get(leastCopiesBook.getISBN());
+				restock(book, numCopies);
+				restockedBooks.add(book.immutableStockBook());
+			}
+
+			return restockedBooks;
+		} finally {
+			storeLock.writeLock().unlock();
+		}
 	}
 
 	/*
@@ -352,8 +1048,20 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * 
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
-	public synchronized void removeAllBooks() throws BookStoreException {
-		bookMap.clear();
+	public void removeAllBooks() throws BookStoreException {
+		storeLock.writeLock().lock();
+
+		try {
+			bookMap = new BookMap();
+			editorPickIndex.clear();
+			topRatedIndex = new TopRatedIndex();
+			booksInDemand.clear();
+			changeLog.removedAll();
+			backorders.cancelAll();
+			leastCopiesIndex.clear();
+		} finally {
+			storeLock.writeLock().unlock();
+		}
 	}
 
 	/*
@@ -362,23 +1070,88 @@ public class CertainBookStore implements BookStore, StockManager {
 	 * @see
 	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
 	 */
-	public synchronized void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		for (Integer ISBN : isbnSet) {
-			if (BookStoreUtility.isInvalidISBN(ISBN)) {
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		storeLock.writeLock().lock();
+
+		try {
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+				}
+
+				if (!bookMap.containsKey(ISBN)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+				}
 			}
 
-			if (!bookMap.containsKey(ISBN)) {
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+			BookMap newBookMap = new BookMap(bookMap);
+			List<Integer> oldEditorPicks = new ArrayList<>();
+
+			List<BookStoreBook> removedBooks = new ArrayList<>(isbnSet.size());
+
+			for (int isbn : isbnSet) {
+				BookStoreBook removedBook = newBookMap.remove(isbn);
+				removedBooks.add(removedBook);
+				booksInDemand.remove(isbn);
+				changeLog.removed(isbn);
+				backorders.cancel(isbn);
+				leastCopiesIndex.remove(removedBook);
+
+				if (removedBook.isEditorPick()) {
+					oldEditorPicks.add(isbn);
+				}
 			}
+
+			bookMap = newBookMap;
+			editorPickIndex.remove(oldEditorPicks);
+
+			// The books leave the rating index only once they are no longer
+			// published, cf. repositionRated.
+			for (BookStoreBook removedBook : removedBooks) {
+				unindexRated(removedBook);
+			}
+		} finally {
+			storeLock.writeLock().unlock();
 		}
+	}
 
-		for (int isbn : isbnSet) {
-			bookMap.remove(isbn);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#runBatch(java.util.
+	 * List, boolean)
+	 */
+	@Override
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException {
+		if (!atomic) {
+			return BookStoreBatch.run(this, this, operations);
 		}
+
+		// The updates take the shared store lock for their updates, so the
+		// exclusive one keeps them from the check to the end of the batch.
+		storeLock.writeLock().lock();
+
+		try {
+			return BookStoreBatch.runAtomically(this, this, backorders, operations);
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#callProcedure(java.lang.
+	 * String, java.lang.Object[])
+	 */
+	@Override
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException {
+		return BookStoreProcedures.call(this, this, name, arguments);
 	}
 }
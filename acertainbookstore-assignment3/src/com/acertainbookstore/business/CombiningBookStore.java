@@ -0,0 +1,371 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+
+/**
+ * {@link CombiningBookStore} runs a book store in single writer mode. The
+ * updates of the stock (purchases, backorders, holds and their cancellation,
+ * adding books and copies, restocking the books with the least copies, editor
+ * picks, removals and atomic batches) are published to a {@link FlatCombiner}
+ * and applied to the underlying store one at a time by whichever caller holds
+ * the combiner lock, while the callers of the other updates wait for the
+ * outcome of their own. The underlying store therefore sees a single writer,
+ * and its locks are never contended by updates of the stock.
+ * 
+ * Some calls bypass the combiner and go to the underlying store directly,
+ * which serves them under its own locks: reads, ratings, waits on backorders
+ * and confirmations of holds. None of them changes the copies in stock. A
+ * batch that is not atomic and a procedure run their operations through this
+ * store, so each of their updates is combined on its own. Expired holds give
+ * their copies back on the thread of the underlying store, also bypassing the
+ * combiner.
+ * 
+ * @see BookStore
+ * @see StockManager
+ */
+public class CombiningBookStore implements BookStore, StockManager {
+
+	/** The capacity of the ring buffer of updates. */
+	private static final int UPDATE_BUFFER_CAPACITY = 1024;
+
+	/** The maximum number of updates applied per turn of a combiner. */
+	private static final int MAX_UPDATE_BATCH = 256;
+
+	/** The underlying book store. */
+	private final BookStore myBookStore;
+
+	/** The underlying stock manager, the same store as myBookStore. */
+	private final StockManager myStockManager;
+
+	/** The combiner applying the updates. */
+	private final FlatCombiner combiner = new FlatCombiner(UPDATE_BUFFER_CAPACITY, MAX_UPDATE_BATCH);
+
+	/**
+	 * Instantiates a new {@link CombiningBookStore} on a new
+	 * {@link CertainBookStore}.
+	 */
+	public CombiningBookStore() {
+		this(new CertainBookStore());
+	}
+
+	/**
+	 * Instantiates a new {@link CombiningBookStore}.
+	 *
+	 * @param <T>
+	 *            the type of the underlying store
+	 * @param store
+	 *            the underlying store
+	 */
+	public <T extends BookStore & StockManager> CombiningBookStore(T store) {
+		myBookStore = store;
+		myStockManager = store;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	@Override
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		combiner.apply(() -> myStockManager.addBooks(bookSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	@Override
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		combiner.apply(() -> myStockManager.addCopies(bookCopiesSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() throws BookStoreException {
+		return myStockManager.getBooks();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksPage(int,
+	 * java.lang.String)
+	 */
+	@Override
+	public StockBookPage getBooksPage(int pageSize, String continuationToken) throws BookStoreException {
+		return myStockManager.getBooksPage(pageSize, continuationToken);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	@Override
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		return myStockManager.getBooksChangedSince(version);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksWithLeastCopies(int)
+	 */
+	@Override
+	public List<StockBook> getBooksWithLeastCopies(int numBooks) throws BookStoreException {
+		return myStockManager.getBooksWithLeastCopies(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#
+	 * restockBooksWithLeastCopies(int, int)
+	 */
+	@Override
+	public List<StockBook> restockBooksWithLeastCopies(int numBooks, int numCopies) throws BookStoreException {
+		AtomicReference<List<StockBook>> result = new AtomicReference<>();
+		combiner.apply(() -> result.set(myStockManager.restockBooksWithLeastCopies(numBooks, numCopies)));
+		return result.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		return myStockManager.getBooksByISBN(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return myStockManager.getBooksInDemand();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	@Override
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		combiner.apply(() -> myStockManager.updateEditorPicks(editorPicks));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	@Override
+	public void removeAllBooks() throws BookStoreException {
+		combiner.apply(() -> myStockManager.removeAllBooks());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	@Override
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		combiner.apply(() -> myStockManager.removeBooks(isbnSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	@Override
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		combiner.apply(() -> myBookStore.buyBooks(bookCopiesToBuy));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#tryBuyBooks(java.util.Set)
+	 */
+	@Override
+	public PurchaseResult tryBuyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		PurchaseResult[] result = new PurchaseResult[1];
+		combiner.apply(() -> result[0] = myBookStore.tryBuyBooks(bookCopiesToBuy));
+		return result[0];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#buyAvailableBooks(java.util.
+	 * Set)
+	 */
+	@Override
+	public PurchaseResult buyAvailableBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		PurchaseResult[] result = new PurchaseResult[1];
+		combiner.apply(() -> result[0] = myBookStore.buyAvailableBooks(bookCopiesToBuy));
+		return result[0];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#placeBackorder(com.
+	 * acertainbookstore.business.BookCopy)
+	 */
+	@Override
+	public long placeBackorder(BookCopy bookCopy) throws BookStoreException {
+		long[] result = new long[1];
+		combiner.apply(() -> result[0] = myBookStore.placeBackorder(bookCopy));
+		return result[0];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBackorder(long,
+	 * long)
+	 */
+	@Override
+	public BackorderStatus awaitBackorder(long backorderId, long timeoutMillis) throws BookStoreException {
+		return myBookStore.awaitBackorder(backorderId, timeoutMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToHold, long ttlMillis) throws BookStoreException {
+		long[] result = new long[1];
+		combiner.apply(() -> result[0] = myBookStore.reserveBooks(bookCopiesToHold, ttlMillis));
+		return result[0];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#confirmHold(long)
+	 */
+	@Override
+	public void confirmHold(long holdId) throws BookStoreException {
+		myBookStore.confirmHold(holdId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#cancelHold(long)
+	 */
+	@Override
+	public void cancelHold(long holdId) throws BookStoreException {
+		combiner.apply(() -> myBookStore.cancelHold(holdId));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		myBookStore.rateBooks(bookRating);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@Override
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return myBookStore.getBooks(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		return myBookStore.getTopRatedBooks(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@Override
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		return myBookStore.getEditorPicks(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#runBatch(java.util.
+	 * List, boolean)
+	 */
+	@Override
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException {
+		if (!atomic) {
+			return BookStoreBatch.run(this, this, operations);
+		}
+
+		// An atomic batch is combined in order with the other updates, but its
+		// operations run on the store itself, they would otherwise wait on the
+		// combiner running them.
+		AtomicReference<List<BookStoreResponse>> result = new AtomicReference<>();
+		combiner.apply(() -> result.set(myStockManager.runBatch(operations, true)));
+		return result.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#callProcedure(java.lang.
+	 * String, java.lang.Object[])
+	 */
+	@Override
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException {
+		return BookStoreProcedures.call(this, this, name, arguments);
+	}
+}
@@ -0,0 +1,150 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link CopyEscrow} splits the copies of a hot book into slots, each on its
+ * own cache line, so that concurrent buyers take copies from different slots
+ * instead of all contending on the version of the book. A buyer takes copies
+ * from the slot of its thread with compare-and-set; when that slot runs dry
+ * the buyer rebalances the escrow under its lock, cf.
+ * {@link BookStoreBook#tryBuyCopies(int)}.
+ * 
+ * Copies are only added to the slots under the lock; outside of it they are
+ * only taken. A closed escrow is empty and stays empty.
+ */
+final class CopyEscrow {
+
+	/** The distance between two slots in ints, a 64 byte cache line. */
+	private static final int SLOT_STRIDE = 16;
+
+	/** The copies of each slot, one every SLOT_STRIDE ints. */
+	private final AtomicIntegerArray slots;
+
+	/** The number of slots, a power of two. */
+	private final int numSlots;
+
+	/** The lock held while copies are added or the escrow is closed. */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** True once the escrow was merged back into its book. */
+	private boolean closed = false;
+
+	/**
+	 * Instantiates a new, empty {@link CopyEscrow}.
+	 *
+	 * @param numSlots
+	 *            the number of slots, must be a power of two
+	 */
+	CopyEscrow(int numSlots) {
+		this.numSlots = numSlots;
+		this.slots = new AtomicIntegerArray(numSlots * SLOT_STRIDE);
+	}
+
+	/**
+	 * Gets the lock of the escrow.
+	 *
+	 * @return the lock
+	 */
+	ReentrantLock lock() {
+		return lock;
+	}
+
+	/**
+	 * Checks if the escrow is closed, the lock must be held.
+	 *
+	 * @return true, if closed
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes the escrow and takes all its copies, the lock must be held.
+	 *
+	 * @return the copies that were in the escrow
+	 */
+	int close() {
+		closed = true;
+		return drain();
+	}
+
+	/**
+	 * Takes copies from the slot of the calling thread if it has enough.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @return true, if the copies were taken
+	 */
+	boolean tryTake(int numCopies) {
+		int index = homeSlot() * SLOT_STRIDE;
+		int current;
+
+		do {
+			current = slots.get(index);
+
+			if (current < numCopies) {
+				return false;
+			}
+		} while (!slots.compareAndSet(index, current, current - numCopies));
+
+		return true;
+	}
+
+	/**
+	 * Takes all the copies of all the slots, the lock must be held.
+	 *
+	 * @return the copies taken
+	 */
+	int drain() {
+		int numCopies = 0;
+
+		for (int i = 0; i < numSlots; i++) {
+			numCopies += slots.getAndSet(i * SLOT_STRIDE, 0);
+		}
+
+		return numCopies;
+	}
+
+	/**
+	 * Spreads copies evenly over the slots, the lock must be held and the
+	 * escrow must be open.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	void spread(int numCopies) {
+		int share = numCopies / numSlots;
+		int remainder = numCopies % numSlots;
+
+		for (int i = 0; i < numSlots; i++) {
+			slots.addAndGet(i * SLOT_STRIDE, share + (i < remainder ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Gets the copies in the slots. Copies being moved between slots are not
+	 * counted.
+	 *
+	 * @return the number of copies
+	 */
+	int getNumCopies() {
+		int numCopies = 0;
+
+		for (int i = 0; i < numSlots; i++) {
+			numCopies += slots.get(i * SLOT_STRIDE);
+		}
+
+		return numCopies;
+	}
+
+	/**
+	 * Gets the slot of the calling thread.
+	 */
+	private int homeSlot() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (numSlots - 1);
+	}
+}
@@ -0,0 +1,161 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@link EditorPickIndex} keeps the editor picks of a {@link CertainBookStore}
+ * so that picking some of them at random does not scan the catalog. Like the
+ * book map, the index is copy-on-write: writers build a new array of picks and
+ * publish it, readers sample the array that was published when they started
+ * without taking a lock. Writers are serialized on the index.
+ * 
+ * @see CertainBookStore#getEditorPicks(int)
+ */
+final class EditorPickIndex {
+
+	/** The Constant NO_PICKS. */
+	private static final BookStoreBook[] NO_PICKS = new BookStoreBook[0];
+
+	/** The published editor picks. */
+	private volatile BookStoreBook[] picks = NO_PICKS;
+
+	/**
+	 * Adds books that just became editor picks.
+	 *
+	 * @param books
+	 *            the books, none of them in the index
+	 */
+	synchronized void add(Collection<BookStoreBook> books) {
+		if (books.isEmpty()) {
+			return;
+		}
+
+		BookStoreBook[] current = picks;
+		BookStoreBook[] updated = Arrays.copyOf(current, current.length + books.size());
+		int count = current.length;
+
+		for (BookStoreBook book : books) {
+			updated[count++] = book;
+		}
+
+		picks = updated;
+	}
+
+	/**
+	 * Removes the books with the given ISBNs, ISBNs that are not editor picks
+	 * are ignored.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 */
+	synchronized void remove(Collection<Integer> isbns) {
+		if (isbns.isEmpty()) {
+			return;
+		}
+
+		BookMap removed = new BookMap(isbns.size());
+
+		for (Integer isbn : isbns) {
+			removed.put(isbn, null);
+		}
+
+		BookStoreBook[] current = picks;
+		BookStoreBook[] updated = new BookStoreBook[current.length];
+		int count = 0;
+
+		for (BookStoreBook book : current) {
+			if (!removed.containsKey(book.getISBN())) {
+				updated[count++] = book;
+			}
+		}
+
+		if (count < current.length) {
+			picks = Arrays.copyOf(updated, count);
+		}
+	}
+
+	/**
+	 * Removes all the editor picks.
+	 */
+	synchronized void clear() {
+		picks = NO_PICKS;
+	}
+
+	/**
+	 * Gets the number of editor picks.
+	 *
+	 * @return the number of editor picks
+	 */
+	int size() {
+		return picks.length;
+	}
+
+	/**
+	 * Picks <code>numBooks</code> distinct editor picks uniformly at random,
+	 * or all of them if there are not that many. Uses Floyd's algorithm, so
+	 * the cost is linear in <code>numBooks</code>, not in the number of picks.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @param rand
+	 *            the random source
+	 * @return the books
+	 */
+	List<Book> sample(int numBooks, Random rand) {
+		BookStoreBook[] current = picks;
+		int rangePicks = current.length;
+
+		if (rangePicks <= numBooks) {
+			List<Book> allPicks = new ArrayList<>(rangePicks);
+
+			for (BookStoreBook book : current) {
+				allPicks.add(book.immutableBook());
+			}
+
+			return allPicks;
+		}
+
+		// An open addressing set of the chosen indices, stored plus one so
+		// that zero marks an empty entry.
+		int[] chosen = new int[Integer.highestOneBit(Math.max(numBooks, 1)) << 2];
+		int mask = chosen.length - 1;
+		List<Book> sampled = new ArrayList<>(numBooks);
+
+		for (int j = rangePicks - numBooks; j < rangePicks; j++) {
+			int index = rand.nextInt(j + 1);
+
+			if (!addIndex(chosen, mask, index)) {
+				index = j;
+				addIndex(chosen, mask, index);
+			}
+
+			sampled.add(current[index].immutableBook());
+		}
+
+		return sampled;
+	}
+
+	/**
+	 * Adds the index to the set of chosen indices.
+	 *
+	 * @return false, if the index was already chosen
+	 */
+	private static boolean addIndex(int[] chosen, int mask, int index) {
+		int hash = index * 0x9E3779B9;
+
+		for (int entry = (hash ^ (hash >>> 16)) & mask;; entry = (entry + 1) & mask) {
+			if (chosen[entry] == index + 1) {
+				return false;
+			}
+
+			if (chosen[entry] == 0) {
+				chosen[entry] = index + 1;
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package com.acertainbookstore.business;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+
+/**
+ * {@link EpochBookStore} runs the purchases, backorders, holds and restocks of
+ * a book store as deterministic transactions, cf. {@link EpochScheduler}.
+ * They are collected into short epochs, ordered by arrival, and run in
+ * parallel wherever their ISBNs do not overlap; each only waits for the
+ * earlier ones of its epoch that touch the same books. Restocking the books
+ * with the least copies and cancelling a hold touch books only known when they
+ * run, so they run alone in their epoch. The other operations go to the
+ * underlying store directly and are not ordered with the epochs; expired holds
+ * give their copies back on the thread of the underlying store.
+ * 
+ * @see BookStore
+ * @see StockManager
+ */
+public class EpochBookStore implements BookStore, StockManager {
+
+	/** The default length of an epoch in microseconds. */
+	public static final long DEFAULT_EPOCH_MICROS = 2000;
+
+	/** The underlying book store. */
+	private final BookStore myBookStore;
+
+	/** The underlying stock manager, the same store as myBookStore. */
+	private final StockManager myStockManager;
+
+	/** The scheduler of the purchases and restocks. */
+	private final EpochScheduler scheduler;
+
+	/**
+	 * Instantiates a new {@link EpochBookStore} on a new
+	 * {@link CertainBookStore}, with epochs of the default length and one
+	 * worker per core.
+	 */
+	public EpochBookStore() {
+		this(new CertainBookStore(), DEFAULT_EPOCH_MICROS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiates a new {@link EpochBookStore}.
+	 *
+	 * @param <T>
+	 *            the type of the underlying store
+	 * @param store
+	 *            the underlying store
+	 * @param epochMicros
+	 *            the length of an epoch in microseconds
+	 * @param numWorkers
+	 *            the number of threads running the transactions
+	 */
+	public <T extends BookStore & StockManager> EpochBookStore(T store, long epochMicros, int numWorkers) {
+		myBookStore = store;
+		myStockManager = store;
+		scheduler = new EpochScheduler(epochMicros, numWorkers);
+	}
+
+	/**
+	 * Stops the scheduler. The store must not be used afterwards.
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	@Override
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		myStockManager.addBooks(bookSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	@Override
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		scheduler.run(bookCopiesSet.stream().map(BookCopy::getISBN).collect(Collectors.toList()),
+				() -> myStockManager.addCopies(bookCopiesSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() throws BookStoreException {
+		return myStockManager.getBooks();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksPage(int,
+	 * java.lang.String)
+	 */
+	@Override
+	public StockBookPage getBooksPage(int pageSize, String continuationToken) throws BookStoreException {
+		return myStockManager.getBooksPage(pageSize, continuationToken);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	@Override
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		return myStockManager.getBooksChangedSince(version);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksWithLeastCopies(int)
+	 */
+	@Override
+	public List<StockBook> getBooksWithLeastCopies(int numBooks) throws BookStoreException {
+		return myStockManager.getBooksWithLeastCopies(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#
+	 * restockBooksWithLeastCopies(int, int)
+	 */
+	@Override
+	public List<StockBook> restockBooksWithLeastCopies(int numBooks, int numCopies) throws BookStoreException {
+		// The books restocked are only known when it runs, so it runs alone.
+		AtomicReference<List<StockBook>> result = new AtomicReference<>();
+		scheduler.runExclusive(() -> result.set(myStockManager.restockBooksWithLeastCopies(numBooks, numCopies)));
+		return result.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		return myStockManager.getBooksByISBN(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return myStockManager.getBooksInDemand();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	@Override
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		myStockManager.updateEditorPicks(editorPicks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	@Override
+	public void removeAllBooks() throws BookStoreException {
+		myStockManager.removeAllBooks();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	@Override
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		myStockManager.removeBooks(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	@Override
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		scheduler.run(bookCopiesToBuy.stream().map(BookCopy::getISBN).collect(Collectors.toList()),
+				() -> myBookStore.buyBooks(bookCopiesToBuy));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#tryBuyBooks(java.util.Set)
+	 */
+	@Override
+	public PurchaseResult tryBuyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		PurchaseResult[] result = new PurchaseResult[1];
+		scheduler.run(bookCopiesToBuy.stream().map(BookCopy::getISBN).collect(Collectors.toList()),
+				() -> result[0] = myBookStore.tryBuyBooks(bookCopiesToBuy));
+		return result[0];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#buyAvailableBooks(java.util.
+	 * Set)
+	 */
+	@Override
+	public PurchaseResult buyAvailableBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		PurchaseResult[] result = new PurchaseResult[1];
+		scheduler.run(bookCopiesToBuy.stream().map(BookCopy::getISBN).collect(Collectors.toList()),
+				() -> result[0] = myBookStore.buyAvailableBooks(bookCopiesToBuy));
+		return result[0];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#placeBackorder(com.
+	 * acertainbookstore.business.BookCopy)
+	 */
+	@Override
+	public long placeBackorder(BookCopy bookCopy) throws BookStoreException {
+		if (bookCopy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// A backorder is filled at once if the copies are there.
+		long[] result = new long[1];
+		scheduler.run(Collections.singletonList(bookCopy.getISBN()),
+				() -> result[0] = myBookStore.placeBackorder(bookCopy));
+		return result[0];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBackorder(long,
+	 * long)
+	 */
+	@Override
+	public BackorderStatus awaitBackorder(long backorderId, long timeoutMillis) throws BookStoreException {
+		return myBookStore.awaitBackorder(backorderId, timeoutMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToHold, long ttlMillis) throws BookStoreException {
+		if (bookCopiesToHold == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long[] result = new long[1];
+		scheduler.run(bookCopiesToHold.stream().map(BookCopy::getISBN).collect(Collectors.toList()),
+				() -> result[0] = myBookStore.reserveBooks(bookCopiesToHold, ttlMillis));
+		return result[0];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#confirmHold(long)
+	 */
+	@Override
+	public void confirmHold(long holdId) throws BookStoreException {
+		myBookStore.confirmHold(holdId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#cancelHold(long)
+	 */
+	@Override
+	public void cancelHold(long holdId) throws BookStoreException {
+		// The books held are only known to the underlying store, so it runs
+		// alone.
+		scheduler.runExclusive(() -> myBookStore.cancelHold(holdId));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		myBookStore.rateBooks(bookRating);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@Override
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return myBookStore.getBooks(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		return myBookStore.getTopRatedBooks(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@Override
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		return myBookStore.getEditorPicks(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#runBatch(java.util.
+	 * List, boolean)
+	 */
+	@Override
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException {
+		if (!atomic) {
+			return BookStoreBatch.run(this, this, operations);
+		}
+
+		// An atomic batch runs alone in its epoch, but its operations run on
+		// the store itself, they would otherwise wait on the epoch running them.
+		AtomicReference<List<BookStoreResponse>> result = new AtomicReference<>();
+		scheduler.runExclusive(() -> result.set(myStockManager.runBatch(operations, true)));
+		return result.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#callProcedure(java.lang.
+	 * String, java.lang.Object[])
+	 */
+	@Override
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException {
+		return BookStoreProcedures.call(this, this, name, arguments);
+	}
+}
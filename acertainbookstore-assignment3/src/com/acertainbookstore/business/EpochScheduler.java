@@ -0,0 +1,318 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link EpochScheduler} runs transactions on books in deterministic epochs.
+ * Transactions submitted during an epoch are queued in arrival order, which
+ * is their serial order. When the epoch closes, the sequencer thread plans
+ * them: a transaction waits only for the transactions before it in the epoch
+ * that touch one of its ISBNs, and starts on the worker pool as soon as the
+ * last of those is done. Transactions on disjoint ISBNs therefore never wait
+ * for each other, and conflicting ones run in their serial order, so there is
+ * nothing to deadlock and nothing to abort. The next epoch is planned once all
+ * the transactions of the previous one are done.
+ * 
+ * A transaction whose ISBNs are not known up front, cf.
+ * {@link #runExclusive(Transaction)}, waits for all the transactions before it
+ * in the epoch, and all the ones after it wait for it.
+ * 
+ * A transaction waits for the rest of its epoch to be submitted, so the epoch
+ * length trades latency for the size of the batches.
+ * 
+ * @see EpochBookStore
+ */
+final class EpochScheduler {
+
+	/**
+	 * A transaction run by the scheduler.
+	 */
+	@FunctionalInterface
+	interface Transaction {
+
+		/**
+		 * Runs the transaction.
+		 *
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		void run() throws BookStoreException;
+	}
+
+	/**
+	 * A submitted transaction and its place in the plan of its epoch.
+	 */
+	private static final class Entry {
+
+		/** The transaction. */
+		private final Transaction transaction;
+
+		/** The distinct ISBNs the transaction touches, or null for all. */
+		private final Set<Integer> isbns;
+
+		/** The outcome of the transaction. */
+		private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+		/** The transactions that wait for this one. */
+		private final List<Entry> successors = new ArrayList<>();
+
+		/** The number of transactions this one still waits for. */
+		private final AtomicInteger numPredecessors = new AtomicInteger();
+
+		private Entry(Transaction transaction, Set<Integer> isbns) {
+			this.transaction = transaction;
+			this.isbns = isbns;
+		}
+	}
+
+	/** The length of an epoch in nanoseconds. */
+	private final long epochNanos;
+
+	/** The transactions submitted in the current epoch, in arrival order. */
+	private final ConcurrentLinkedQueue<Entry> submitted = new ConcurrentLinkedQueue<>();
+
+	/** The workers running the transactions. */
+	private final ExecutorService workers;
+
+	/** The sequencer closing the epochs. */
+	private final Thread sequencer;
+
+	/**
+	 * Instantiates a new {@link EpochScheduler} and starts its sequencer.
+	 *
+	 * @param epochMicros
+	 *            the length of an epoch in microseconds
+	 * @param numWorkers
+	 *            the number of worker threads
+	 */
+	EpochScheduler(long epochMicros, int numWorkers) {
+		if (epochMicros <= 0 || numWorkers <= 0) {
+			throw new IllegalArgumentException(
+					"epochMicros = " + epochMicros + ", numWorkers = " + numWorkers + ", but they must be positive");
+		}
+
+		epochNanos = TimeUnit.MICROSECONDS.toNanos(epochMicros);
+		workers = Executors.newFixedThreadPool(numWorkers, runnable -> {
+			Thread worker = new Thread(runnable, "book-store-epoch-worker");
+			worker.setDaemon(true);
+			return worker;
+		});
+		sequencer = new Thread(this::sequence, "book-store-epoch-sequencer");
+		sequencer.setDaemon(true);
+		sequencer.start();
+	}
+
+	/**
+	 * Stops the sequencer and the workers, transactions not yet planned are
+	 * never run.
+	 */
+	void shutdown() {
+		sequencer.interrupt();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Submits the transaction to the current epoch and waits until it has
+	 * run.
+	 *
+	 * @param isbns
+	 *            the ISBNs the transaction touches
+	 * @param transaction
+	 *            the transaction
+	 * @throws BookStoreException
+	 *             the exception thrown by the transaction
+	 */
+	void run(Iterable<Integer> isbns, Transaction transaction) throws BookStoreException {
+		Set<Integer> distinctIsbns = new LinkedHashSet<>();
+
+		for (Integer isbn : isbns) {
+			distinctIsbns.add(isbn);
+		}
+
+		await(new Entry(transaction, distinctIsbns));
+	}
+
+	/**
+	 * Submits a transaction that may touch any book to the current epoch, and
+	 * waits until it has run. It runs alone, after the transactions submitted
+	 * before it and before the ones submitted after it.
+	 *
+	 * @param transaction
+	 *            the transaction
+	 * @throws BookStoreException
+	 *             the exception thrown by the transaction
+	 */
+	void runExclusive(Transaction transaction) throws BookStoreException {
+		await(new Entry(transaction, null));
+	}
+
+	/**
+	 * Submits the entry and waits until its transaction has run.
+	 */
+	private void await(Entry entry) throws BookStoreException {
+		submitted.add(entry);
+
+		try {
+			entry.result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			} else if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			} else if (ex.getCause() instanceof Error) {
+				throw (Error) ex.getCause();
+			}
+
+			throw new BookStoreException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Closes an epoch every epochNanos and runs its transactions, until
+	 * interrupted.
+	 */
+	private void sequence() {
+		long epochEnd = System.nanoTime() + epochNanos;
+
+		while (!Thread.currentThread().isInterrupted()) {
+			long waitNanos = epochEnd - System.nanoTime();
+
+			if (waitNanos > 0) {
+				LockSupport.parkNanos(this, waitNanos);
+				continue;
+			}
+
+			List<Entry> epoch = new ArrayList<>();
+			Entry entry;
+
+			while ((entry = submitted.poll()) != null) {
+				epoch.add(entry);
+			}
+
+			if (!epoch.isEmpty()) {
+				try {
+					runEpoch(epoch);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+
+			epochEnd = Math.max(epochEnd + epochNanos, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Plans the transactions of an epoch and waits until all of them have
+	 * run.
+	 */
+	private void runEpoch(List<Entry> epoch) throws InterruptedException {
+		Map<Integer, Entry> lastByIsbn = new HashMap<>();
+
+		// The last exclusive transaction, and the transactions after it.
+		Entry lastExclusive = null;
+		List<Entry> sinceExclusive = new ArrayList<>();
+
+		for (Entry entry : epoch) {
+			if (entry.isbns == null) {
+				if (sinceExclusive.isEmpty() && lastExclusive != null) {
+					addPredecessor(entry, lastExclusive);
+				}
+
+				for (Entry predecessor : sinceExclusive) {
+					addPredecessor(entry, predecessor);
+				}
+
+				lastByIsbn.clear();
+				lastExclusive = entry;
+				sinceExclusive.clear();
+				continue;
+			}
+
+			if (lastExclusive != null) {
+				addPredecessor(entry, lastExclusive);
+			}
+
+			for (Integer isbn : entry.isbns) {
+				Entry predecessor = lastByIsbn.put(isbn, entry);
+
+				if (predecessor != null) {
+					addPredecessor(entry, predecessor);
+				}
+			}
+
+			sinceExclusive.add(entry);
+		}
+
+		// Find all the roots before starting any, a started root may already
+		// have released its successors.
+		List<Entry> roots = new ArrayList<>();
+
+		for (Entry entry : epoch) {
+			if (entry.numPredecessors.get() == 0) {
+				roots.add(entry);
+			}
+		}
+
+		CountDownLatch done = new CountDownLatch(epoch.size());
+
+		for (Entry root : roots) {
+			workers.execute(() -> runEntry(root, done));
+		}
+
+		done.await();
+	}
+
+	/**
+	 * Makes the entry wait for the predecessor.
+	 */
+	private static void addPredecessor(Entry entry, Entry predecessor) {
+		predecessor.successors.add(entry);
+		entry.numPredecessors.incrementAndGet();
+	}
+
+	/**
+	 * Runs the transaction, then starts the successors that no longer wait
+	 * for any transaction. The successors are started and the epoch counted
+	 * down whatever the transaction throws, so that an error does not stall
+	 * the sequencer.
+	 */
+	private void runEntry(Entry entry, CountDownLatch done) {
+		try {
+			entry.transaction.run();
+			entry.result.complete(null);
+		} catch (Throwable ex) {
+			entry.result.completeExceptionally(ex);
+
+			if (ex instanceof Error) {
+				throw (Error) ex;
+			}
+		} finally {
+			for (Entry successor : entry.successors) {
+				if (successor.numPredecessors.decrementAndGet() == 0) {
+					workers.execute(() -> runEntry(successor, done));
+				}
+			}
+
+			done.countDown();
+		}
+	}
+}
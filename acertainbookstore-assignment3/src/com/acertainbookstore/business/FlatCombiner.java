@@ -0,0 +1,214 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link FlatCombiner} applies updates one at a time on behalf of many
+ * threads. A caller publishes its update to a bounded ring buffer and then
+ * either becomes the combiner, by taking the combiner lock without waiting,
+ * or parks until the current combiner has applied the update. The combiner
+ * applies the published updates in order, in batches, and hands every caller
+ * the outcome of its own update through the caller's request.
+ * 
+ * Only the combiner touches the updated state, so the updates never contend
+ * with each other, and callers that lose the race for the lock wait on their
+ * own request rather than in the queue of a monitor.
+ * 
+ * @see CombiningBookStore
+ */
+final class FlatCombiner {
+
+	/** The longest a caller parks before it tries to combine again. */
+	private static final long MAX_PARK_NANOS = 1000000L;
+
+	/**
+	 * An update applied by the combiner.
+	 */
+	@FunctionalInterface
+	interface Update {
+
+		/**
+		 * Applies the update.
+		 *
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		void apply() throws BookStoreException;
+	}
+
+	/**
+	 * An update published by a caller, and the slot where the combiner puts
+	 * its outcome.
+	 */
+	private static final class Request {
+
+		/** The update. */
+		private final Update update;
+
+		/** The caller waiting for the update. */
+		private final Thread caller;
+
+		/** The failure of the update, null if it succeeded. */
+		private Throwable failure;
+
+		/** True once the update is applied, publishes the failure. */
+		private volatile boolean done;
+
+		private Request(Update update, Thread caller) {
+			this.update = update;
+			this.caller = caller;
+		}
+	}
+
+	/** The ring buffer of published requests, the length is a power of two. */
+	private final AtomicReferenceArray<Request> slots;
+
+	/** The mask of the ring buffer indices. */
+	private final int mask;
+
+	/** The maximum number of updates applied per turn of a combiner. */
+	private final int maxBatch;
+
+	/** The sequence number of the next request to publish. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** The sequence number of the next request to apply. */
+	private volatile long head = 0;
+
+	/** The combiner lock, held by the thread applying the updates. */
+	private final ReentrantLock combinerLock = new ReentrantLock();
+
+	/**
+	 * Instantiates a new {@link FlatCombiner}.
+	 *
+	 * @param capacity
+	 *            the capacity of the ring buffer, must be a power of two
+	 * @param maxBatch
+	 *            the maximum number of updates applied per turn
+	 */
+	FlatCombiner(int capacity, int maxBatch) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity = " + capacity + ", but it must be a power of two");
+		}
+
+		slots = new AtomicReferenceArray<>(capacity);
+		mask = capacity - 1;
+		this.maxBatch = maxBatch;
+	}
+
+	/**
+	 * Applies the update after all the updates published before it, and
+	 * returns once it is applied.
+	 *
+	 * @param update
+	 *            the update
+	 * @throws BookStoreException
+	 *             the exception thrown by the update
+	 */
+	void apply(Update update) throws BookStoreException {
+		Request request = new Request(update, Thread.currentThread());
+		publish(request);
+
+		while (!request.done) {
+			if (!tryCombine()) {
+				LockSupport.parkNanos(this, MAX_PARK_NANOS);
+			}
+		}
+
+		Throwable failure = request.failure;
+
+		if (failure instanceof BookStoreException) {
+			throw (BookStoreException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+	}
+
+	/**
+	 * Publishes the request in the ring buffer, helping to drain it while it
+	 * is full.
+	 */
+	private void publish(Request request) {
+		while (true) {
+			long sequence = tail.get();
+
+			if (sequence - head >= slots.length()) {
+				if (!tryCombine()) {
+					Thread.yield();
+				}
+			} else if (tail.compareAndSet(sequence, sequence + 1)) {
+				slots.set((int) sequence & mask, request);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Applies the published requests if no other thread is doing it.
+	 *
+	 * @return false, if another thread is the combiner
+	 */
+	private boolean tryCombine() {
+		if (!combinerLock.tryLock()) {
+			return false;
+		}
+
+		try {
+			combine();
+		} finally {
+			combinerLock.unlock();
+		}
+
+		// Callers that published while the lock was held may have parked
+		// after failing to take it, so the oldest one is woken to combine.
+		if (tail.get() != head) {
+			Request next = slots.get((int) head & mask);
+
+			if (next != null) {
+				LockSupport.unpark(next.caller);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Applies up to maxBatch published requests in order, the combiner lock
+	 * must be held.
+	 */
+	private void combine() {
+		long next = head;
+
+		for (int count = 0; count < maxBatch; count++) {
+			int index = (int) next & mask;
+			Request request = slots.get(index);
+
+			// Claimed but not published yet, its caller combines it.
+			if (request == null) {
+				break;
+			}
+
+			slots.set(index, null);
+			head = ++next;
+
+			try {
+				request.update.apply();
+			} catch (Throwable failure) {
+				request.failure = failure;
+			}
+
+			request.done = true;
+
+			if (request.caller != Thread.currentThread()) {
+				LockSupport.unpark(request.caller);
+			}
+		}
+	}
+}
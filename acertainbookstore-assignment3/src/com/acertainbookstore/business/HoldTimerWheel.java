@@ -0,0 +1,181 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link HoldTimerWheel} expires the holds of a store, cf.
+ * {@link BookHolds}, with a hashed timer wheel: one thread advances over a
+ * ring of buckets one tick at a time and expires the timeouts of the bucket
+ * it reaches, so there is no timer per hold. A timeout further away than one
+ * turn of the wheel waits in its bucket for the turns that are left.
+ * 
+ * Scheduling is lock-free: new timeouts are queued and only moved into their
+ * bucket by the wheel thread, which is the only one touching the buckets. A
+ * timeout that is settled before it expires is not removed, the wheel drops it
+ * when it reaches its bucket. So scheduling and settling cost O(1), and a tick
+ * costs the number of timeouts in one bucket. A timeout never expires early,
+ * and at most one tick late unless the thread falls behind.
+ * 
+ * The thread is only started with the first timeout.
+ */
+final class HoldTimerWheel {
+
+	/** The duration of a tick. */
+	static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/** The number of buckets, a power of two. */
+	static final int NUM_BUCKETS = 512;
+
+	/** The mask of a tick into the buckets. */
+	private static final int BUCKET_MASK = NUM_BUCKETS - 1;
+
+	/**
+	 * A timeout on the wheel.
+	 */
+	abstract static class Timeout {
+
+		/** The deadline, in nanoseconds since the wheel started. */
+		private long deadlineNanos;
+
+		/** The turns of the wheel left before the timeout expires. */
+		private long remainingRounds;
+
+		/**
+		 * Checks if the timeout no longer needs to expire.
+		 *
+		 * @return true, if it is settled
+		 */
+		abstract boolean isSettled();
+
+		/**
+		 * Expires the timeout, on the wheel thread.
+		 */
+		abstract void expire();
+	}
+
+	/** The buckets of timeouts, touched by the wheel thread only. */
+	private final ArrayDeque<Timeout>[] buckets;
+
+	/** The timeouts scheduled and not yet moved into their bucket. */
+	private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+
+	/** The start of the wheel, ticks are counted from it. */
+	private final long startNanos = System.nanoTime();
+
+	/** The name of the wheel thread. */
+	private final String name;
+
+	/** The wheel thread, or null before the first timeout. */
+	private volatile Thread worker;
+
+	/**
+	 * Instantiates a new {@link HoldTimerWheel}.
+	 *
+	 * @param name
+	 *            the name of the wheel thread
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	HoldTimerWheel(String name) {
+		this.name = name;
+		buckets = new ArrayDeque[NUM_BUCKETS];
+
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			buckets[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * Schedules the timeout to expire after the delay.
+	 *
+	 * @param timeout
+	 *            the timeout
+	 * @param delayMillis
+	 *            the delay in milliseconds
+	 */
+	void schedule(Timeout timeout, long delayMillis) {
+		timeout.deadlineNanos = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		scheduled.add(timeout);
+
+		if (worker == null) {
+			start();
+		}
+	}
+
+	/**
+	 * Starts the wheel thread, unless it was started meanwhile.
+	 */
+	private synchronized void start() {
+		if (worker == null) {
+			Thread thread = new Thread(this::run, name);
+			thread.setDaemon(true);
+			thread.start();
+			worker = thread;
+		}
+	}
+
+	/**
+	 * Advances the wheel one tick at a time, forever.
+	 */
+	private void run() {
+		for (long tick = 0;; tick++) {
+			long tickEndNanos = startNanos + (tick + 1) * TICK_NANOS;
+			long sleepNanos;
+
+			while ((sleepNanos = tickEndNanos - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, sleepNanos);
+			}
+
+			moveScheduled(tick);
+			expireBucket(tick);
+		}
+	}
+
+	/**
+	 * Moves the scheduled timeouts into their buckets. A deadline already
+	 * passed lands in the bucket of the current tick.
+	 */
+	private void moveScheduled(long tick) {
+		Timeout timeout;
+
+		while ((timeout = scheduled.poll()) != null) {
+			if (timeout.isSettled()) {
+				continue;
+			}
+
+			long deadlineTick = Math.max(timeout.deadlineNanos / TICK_NANOS, tick);
+			timeout.remainingRounds = (deadlineTick - tick) / NUM_BUCKETS;
+			buckets[(int) (deadlineTick & BUCKET_MASK)].add(timeout);
+		}
+	}
+
+	/**
+	 * Expires the timeouts of the bucket of the tick that are due, and drops
+	 * the settled ones.
+	 */
+	private void expireBucket(long tick) {
+		Iterator<Timeout> timeouts = buckets[(int) (tick & BUCKET_MASK)].iterator();
+
+		while (timeouts.hasNext()) {
+			Timeout timeout = timeouts.next();
+
+			if (timeout.isSettled()) {
+				timeouts.remove();
+			} else if (timeout.remainingRounds <= 0) {
+				timeouts.remove();
+
+				try {
+					timeout.expire();
+				} catch (RuntimeException ex) {
+					// One failed expiry must not stop the wheel.
+					ex.printStackTrace();
+				}
+			} else {
+				timeout.remainingRounds--;
+			}
+		}
+	}
+}
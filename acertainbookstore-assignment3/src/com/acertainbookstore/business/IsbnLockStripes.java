@@ -0,0 +1,103 @@
+package com.acertainbookstore.business;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link IsbnLockStripes} maps ISBNs onto a fixed array of locks. Operations
+ * touching several books lock all their stripes in ascending stripe order, so
+ * that concurrent multi-book operations cannot deadlock.
+ */
+final class IsbnLockStripes {
+
+	/** The locks, the length is a power of two. */
+	private final Lock[] locks;
+
+	/**
+	 * Instantiates a new {@link IsbnLockStripes}.
+	 *
+	 * @param numStripes
+	 *            the number of stripes, must be a power of two
+	 */
+	IsbnLockStripes(int numStripes) {
+		locks = new Lock[numStripes];
+
+		for (int i = 0; i < numStripes; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Gets the index of the lock stripe guarding the given ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the stripe index
+	 */
+	private int stripeOf(int isbn) {
+
+		// Spread the bits so that consecutive ISBNs do not share stripes.
+		int hash = isbn * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (locks.length - 1);
+	}
+
+	/**
+	 * Gets the lock guarding a single ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the lock
+	 */
+	Lock lockOf(int isbn) {
+		return locks[stripeOf(isbn)];
+	}
+
+	/**
+	 * Locks the stripes of all the given ISBNs in ascending stripe order.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the locked stripes, to be passed to {@link #unlock(int[])}
+	 */
+	int[] lock(Collection<Integer> isbns) {
+		int[] stripes = new int[isbns.size()];
+		int numStripes = 0;
+
+		for (Integer isbn : isbns) {
+			stripes[numStripes++] = stripeOf(isbn);
+		}
+
+		Arrays.sort(stripes);
+
+		// Drop the duplicates, ISBNs may share a stripe.
+		int numDistinct = 0;
+
+		for (int i = 0; i < numStripes; i++) {
+			if (numDistinct == 0 || stripes[numDistinct - 1] != stripes[i]) {
+				stripes[numDistinct++] = stripes[i];
+			}
+		}
+
+		int[] lockedStripes = Arrays.copyOf(stripes, numDistinct);
+
+		for (int stripe : lockedStripes) {
+			locks[stripe].lock();
+		}
+
+		return lockedStripes;
+	}
+
+	/**
+	 * Unlocks the stripes locked by {@link #lock(Collection)}.
+	 *
+	 * @param lockedStripes
+	 *            the locked stripes
+	 */
+	void unlock(int[] lockedStripes) {
+		for (int i = lockedStripes.length - 1; i >= 0; i--) {
+			locks[lockedStripes[i]].unlock();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * {@link LeastCopiesIndex} keeps the books of a {@link CertainBookStore}
+ * ordered by increasing number of copies, ties broken by ISBN, so that the
+ * books to restock are found without looking at the rest of the catalog.
+ * 
+ * Repositioning a book costs O(log n) and reading the k books with the least
+ * copies costs O(k log n); readers take no lock. Callers must not reposition
+ * or remove the same book concurrently. A book is inserted at its new
+ * position before it is removed from the old one, so a reader may meet it
+ * twice and skips the second occurrence.
+ * 
+ * @see CertainBookStore#getBooksWithLeastCopies(int)
+ */
+final class LeastCopiesIndex {
+
+	/** The order of the entries, least copies first. */
+	private static final Comparator<Entry> ORDER = Comparator.comparingInt((Entry entry) -> entry.numCopies)
+			.thenComparingInt(entry -> entry.book.getISBN());
+
+	/** The entries in copies order. */
+	private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>(ORDER);
+
+	/** The entry of each indexed book by ISBN. */
+	private final ConcurrentHashMap<Integer, Entry> indexed = new ConcurrentHashMap<>();
+
+	/**
+	 * A number of copies of a book at the time it was indexed.
+	 */
+	private static final class Entry {
+
+		/** The number of copies. */
+		private final int numCopies;
+
+		/** The book. */
+		private final BookStoreBook book;
+
+		private Entry(int numCopies, BookStoreBook book) {
+			this.numCopies = numCopies;
+			this.book = book;
+		}
+	}
+
+	/**
+	 * Moves the book to the position of the number of copies, or adds it if
+	 * it was not indexed yet.
+	 *
+	 * @param book
+	 *            the book
+	 * @param numCopies
+	 *            the number of copies the book had when it was read
+	 */
+	void reposition(BookStoreBook book, int numCopies) {
+		Entry entry = new Entry(numCopies, book);
+		Entry previous = indexed.put(book.getISBN(), entry);
+
+		if (previous == null || ORDER.compare(previous, entry) != 0) {
+			entries.add(entry);
+
+			if (previous != null) {
+				entries.remove(previous);
+			}
+		}
+	}
+
+	/**
+	 * Removes the book from the index, if it is there.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	void remove(BookStoreBook book) {
+		Entry previous = indexed.remove(book.getISBN());
+
+		if (previous != null) {
+			entries.remove(previous);
+		}
+	}
+
+	/**
+	 * Removes all the books.
+	 */
+	void clear() {
+		indexed.clear();
+		entries.clear();
+	}
+
+	/**
+	 * Gets the <code>numBooks</code> books with the least copies, or all the
+	 * books if there are not that many.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the books, least copies first
+	 */
+	List<StockBook> least(int numBooks) {
+		List<StockBook> leastCopies = new ArrayList<>(Math.min(numBooks, indexed.size()));
+		Set<Integer> seen = new HashSet<>();
+
+		for (Entry entry : entries) {
+			if (leastCopies.size() >= numBooks) {
+				break;
+			}
+
+			if (seen.add(entry.book.getISBN())) {
+				leastCopies.add(entry.book.immutableStockBook());
+			}
+		}
+
+		return leastCopies;
+	}
+}
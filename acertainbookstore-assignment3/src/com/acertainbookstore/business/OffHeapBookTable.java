@@ -0,0 +1,693 @@
+package com.acertainbookstore.business;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link OffHeapBookTable} stores books in direct memory. Every book occupies
+ * a fixed-size record, addressed by its slot number, that holds the ISBN, the
+ * price and the mutable stock fields. The UTF-8 bytes of the title and the
+ * author are appended to a separate text arena that the record points into.
+ * The only per-book state on the heap is the index mapping ISBNs to slots, two
+ * primitive arrays probed like {@link BookMap}.
+ * 
+ * Records and text are allocated in chunks so that no single buffer comes near
+ * the 2 GB limit of a {@link ByteBuffer}. Freed records are reused through a
+ * free list threaded through the records themselves. The text of removed books
+ * stays in the arena until it makes up half of it, when the live text is
+ * copied into fresh chunks.
+ * 
+ * The table is not thread-safe. Inserting, removing and clearing require
+ * exclusive access; reading and updating the fields of a slot only require
+ * that no other thread updates the same slot at the same time.
+ * 
+ * @see OffHeapCertainBookStore
+ */
+final class OffHeapBookTable {
+
+	/** The Constant EMPTY marking an unused index entry. */
+	private static final int EMPTY = 0;
+
+	/** The Constant NO_SLOT ending the free list. */
+	private static final int NO_SLOT = -1;
+
+	/** The Constant MIN_CAPACITY of the index, must be a power of two. */
+	private static final int MIN_CAPACITY = 16;
+
+	/** The maximum fill ratio, as numerator over 4, before the index grows. */
+	private static final int MAX_LOAD_QUARTERS = 3;
+
+	/** The number of records per chunk, as a power of two. */
+	private static final int RECORDS_PER_CHUNK_SHIFT = 16;
+
+	/** The number of bytes per text chunk. */
+	private static final int TEXT_CHUNK_SIZE = 1 << 22;
+
+	// The layout of a record
+
+	private static final int ISBN_OFFSET = 0;
+	private static final int NUM_COPIES_OFFSET = 4;
+	private static final int PRICE_OFFSET = 8;
+	private static final int EDITOR_PICK_OFFSET = 12;
+	private static final int TITLE_LENGTH_OFFSET = 16;
+	private static final int AUTHOR_LENGTH_OFFSET = 20;
+	private static final int NUM_SALE_MISSES_OFFSET = 24;
+	private static final int NUM_TIMES_RATED_OFFSET = 32;
+	private static final int TOTAL_RATING_OFFSET = 40;
+	private static final int TEXT_ADDRESS_OFFSET = 48;
+	private static final int CHANGE_VERSION_OFFSET = 56;
+	private static final int RECORD_SIZE = 64;
+
+	/** The ISBNs of the index, {@link #EMPTY} for unused entries. */
+	private int[] keys;
+
+	/** The slots of the index, aligned with the keys. */
+	private int[] slots;
+
+	/** The number of books. */
+	private int size;
+
+	/** The ISBNs in ascending order, built on demand until they change. */
+	private volatile SortedIsbns sortedIsbns;
+
+	/** The record chunks. */
+	private final List<ByteBuffer> recordChunks = new ArrayList<>();
+
+	/** The number of slots handed out so far, freed ones included. */
+	private int numSlots;
+
+	/** The first free slot, or {@link #NO_SLOT}. */
+	private int freeSlot = NO_SLOT;
+
+	/**
+	 * The number of times each slot was handed out, kept across clears, so
+	 * that the books a slot held one after the other are told apart.
+	 */
+	private int[] generations = new int[MIN_CAPACITY];
+
+	/** The text chunks, only the last one is appended to. */
+	private List<ByteBuffer> textChunks = new ArrayList<>();
+
+	/** The number of bytes used in the last text chunk. */
+	private int textPosition;
+
+	/** The number of text bytes belonging to books in the table. */
+	private long liveTextBytes;
+
+	/** The number of text bytes belonging to removed books. */
+	private long deadTextBytes;
+
+	/**
+	 * Instantiates a new empty {@link OffHeapBookTable}.
+	 */
+	OffHeapBookTable() {
+		keys = new int[MIN_CAPACITY];
+		slots = new int[MIN_CAPACITY];
+	}
+
+	/**
+	 * Gets the number of books in the table.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the index entry where a probe for the ISBN starts.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the index entry
+	 */
+	private int entryOf(int isbn) {
+		int hash = isbn * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (keys.length - 1);
+	}
+
+	/**
+	 * Finds the index entry holding the ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the index entry, or -1 if the ISBN is not in the table
+	 */
+	private int findEntry(int isbn) {
+		if (isbn == EMPTY) {
+			return -1;
+		}
+
+		int mask = keys.length - 1;
+
+		for (int entry = entryOf(isbn);; entry = (entry + 1) & mask) {
+			int key = keys[entry];
+
+			if (key == isbn) {
+				return entry;
+			}
+
+			if (key == EMPTY) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Finds the slot of the book with the ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the slot, or -1 if the book is not in the table
+	 */
+	int find(int isbn) {
+		int entry = findEntry(isbn);
+		return entry < 0 ? -1 : slots[entry];
+	}
+
+	/**
+	 * Checks whether a book with the ISBN is in the table.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return true, if the book is in the table
+	 */
+	boolean contains(int isbn) {
+		return findEntry(isbn) >= 0;
+	}
+
+	/**
+	 * Gets the slots of all the books, in no particular order.
+	 *
+	 * @return the slots
+	 */
+	int[] slots() {
+		int[] result = new int[size];
+		int count = 0;
+
+		for (int entry = 0; entry < keys.length; entry++) {
+			if (keys[entry] != EMPTY) {
+				result[count++] = slots[entry];
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Gets the ISBNs greater than <code>isbn</code> in ascending order. The
+	 * ISBNs are sorted once and reused until a book is inserted or removed, so
+	 * readers sharing the table may call this concurrently.
+	 *
+	 * @param isbn
+	 *            the ISBN to start after
+	 * @param maxIsbns
+	 *            the maximum number of ISBNs
+	 * @return the ISBNs
+	 */
+	int[] isbnsAfter(int isbn, int maxIsbns) {
+		SortedIsbns sorted = sortedIsbns;
+
+		if (sorted == null) {
+			sorted = new SortedIsbns(keys, size);
+			sortedIsbns = sorted;
+		}
+
+		return sorted.after(isbn, maxIsbns);
+	}
+
+	/**
+	 * Inserts a copy of the book. The ISBN must be valid and not in the table.
+	 *
+	 * @param book
+	 *            the book
+	 * @return the slot of the book
+	 */
+	int insert(StockBook book) {
+		int isbn = book.getISBN();
+
+		if (isbn == EMPTY) {
+			throw new IllegalArgumentException("ISBN " + isbn + " cannot be stored");
+		}
+
+		if ((size + 1) * 4L > (long) keys.length * MAX_LOAD_QUARTERS) {
+			resize(keys.length << 1);
+		}
+
+		int slot = allocateSlot();
+		byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+		byte[] author = book.getAuthor().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer chunk = recordChunk(slot);
+		int offset = recordOffset(slot);
+
+		chunk.putInt(offset + ISBN_OFFSET, isbn);
+		chunk.putInt(offset + NUM_COPIES_OFFSET, book.getNumCopies());
+		chunk.putFloat(offset + PRICE_OFFSET, book.getPrice());
+		chunk.put(offset + EDITOR_PICK_OFFSET, (byte) (book.isEditorPick() ? 1 : 0));
+		chunk.putInt(offset + TITLE_LENGTH_OFFSET, title.length);
+		chunk.putInt(offset + AUTHOR_LENGTH_OFFSET, author.length);
+		chunk.putLong(offset + NUM_SALE_MISSES_OFFSET, book.getNumSaleMisses());
+		chunk.putLong(offset + NUM_TIMES_RATED_OFFSET, book.getNumTimesRated());
+		chunk.putLong(offset + TOTAL_RATING_OFFSET, book.getTotalRating());
+		chunk.putLong(offset + TEXT_ADDRESS_OFFSET, appendText(title, author));
+		chunk.putLong(offset + CHANGE_VERSION_OFFSET, 0);
+
+		int mask = keys.length - 1;
+		int entry = entryOf(isbn);
+
+		while (keys[entry] != EMPTY) {
+			entry = (entry + 1) & mask;
+		}
+
+		keys[entry] = isbn;
+		slots[entry] = slot;
+		size++;
+		sortedIsbns = null;
+		return slot;
+	}
+
+	/**
+	 * Removes the book with the ISBN and frees its slot.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 */
+	void remove(int isbn) {
+		int entry = findEntry(isbn);
+
+		if (entry < 0) {
+			return;
+		}
+
+		int slot = slots[entry];
+		int mask = keys.length - 1;
+		int hole = entry;
+
+		// Shift back the entries of the probe sequence that follows the hole.
+		for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+			int home = entryOf(keys[next]);
+
+			// Move the entry unless its home lies cyclically in (hole, next].
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				slots[hole] = slots[next];
+				hole = next;
+			}
+		}
+
+		keys[hole] = EMPTY;
+		size--;
+		sortedIsbns = null;
+
+		long textBytes = textLength(slot);
+		liveTextBytes -= textBytes;
+		deadTextBytes += textBytes;
+		freeSlot(slot);
+
+		if (deadTextBytes > TEXT_CHUNK_SIZE && deadTextBytes > liveTextBytes) {
+			compactText();
+		}
+	}
+
+	/**
+	 * Removes all the books and releases the direct memory.
+	 */
+	void clear() {
+		keys = new int[MIN_CAPACITY];
+		slots = new int[MIN_CAPACITY];
+		size = 0;
+		sortedIsbns = null;
+		recordChunks.clear();
+		numSlots = 0;
+		freeSlot = NO_SLOT;
+		textChunks = new ArrayList<>();
+		textPosition = 0;
+		liveTextBytes = 0;
+		deadTextBytes = 0;
+	}
+
+	/**
+	 * Rehashes the index into a table of the given capacity.
+	 *
+	 * @param capacity
+	 *            the new capacity, a power of two
+	 */
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		int[] oldSlots = slots;
+
+		keys = new int[capacity];
+		slots = new int[capacity];
+
+		int mask = capacity - 1;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int entry = entryOf(oldKeys[i]);
+
+				while (keys[entry] != EMPTY) {
+					entry = (entry + 1) & mask;
+				}
+
+				keys[entry] = oldKeys[i];
+				slots[entry] = oldSlots[i];
+			}
+		}
+	}
+
+	/**
+	 * Takes a slot from the free list, or a new one if the list is empty.
+	 *
+	 * @return the slot
+	 */
+	private int allocateSlot() {
+		int slot;
+
+		if (freeSlot != NO_SLOT) {
+			slot = freeSlot;
+
+			// The next free slot is kept in the number of copies field.
+			freeSlot = recordChunk(slot).getInt(recordOffset(slot) + NUM_COPIES_OFFSET);
+		} else {
+			if ((numSlots >>> RECORDS_PER_CHUNK_SHIFT) == recordChunks.size()) {
+				recordChunks.add(ByteBuffer.allocateDirect(RECORD_SIZE << RECORDS_PER_CHUNK_SHIFT)
+						.order(ByteOrder.nativeOrder()));
+			}
+
+			slot = numSlots++;
+		}
+
+		if (slot >= generations.length) {
+			generations = Arrays.copyOf(generations, generations.length << 1);
+		}
+
+		generations[slot]++;
+		return slot;
+	}
+
+	/**
+	 * Puts the slot on the free list.
+	 *
+	 * @param slot
+	 *            the slot
+	 */
+	private void freeSlot(int slot) {
+		ByteBuffer chunk = recordChunk(slot);
+		int offset = recordOffset(slot);
+
+		chunk.putInt(offset + ISBN_OFFSET, EMPTY);
+		chunk.putInt(offset + NUM_COPIES_OFFSET, freeSlot);
+		freeSlot = slot;
+	}
+
+	private ByteBuffer recordChunk(int slot) {
+		return recordChunks.get(slot >>> RECORDS_PER_CHUNK_SHIFT);
+	}
+
+	private static int recordOffset(int slot) {
+		return (slot & ((1 << RECORDS_PER_CHUNK_SHIFT) - 1)) * RECORD_SIZE;
+	}
+
+	/**
+	 * Appends the title and the author to the text arena. Both always end up
+	 * in the same chunk.
+	 *
+	 * @param title
+	 *            the title bytes
+	 * @param author
+	 *            the author bytes
+	 * @return the address of the text, the chunk in the high and the position
+	 *         in the low 32 bits
+	 */
+	private long appendText(byte[] title, byte[] author) {
+		int length = title.length + author.length;
+
+		if (textChunks.isEmpty() || textPosition + length > textChunks.get(textChunks.size() - 1).capacity()) {
+			textChunks.add(ByteBuffer.allocateDirect(Math.max(TEXT_CHUNK_SIZE, length)));
+			textPosition = 0;
+		}
+
+		ByteBuffer chunk = textChunks.get(textChunks.size() - 1);
+		int position = textPosition;
+
+		for (int i = 0; i < title.length; i++) {
+			chunk.put(position + i, title[i]);
+		}
+
+		for (int i = 0; i < author.length; i++) {
+			chunk.put(position + title.length + i, author[i]);
+		}
+
+		textPosition += length;
+		liveTextBytes += length;
+		return ((long) (textChunks.size() - 1) << 32) | position;
+	}
+
+	/**
+	 * Copies the text of the books in the table into fresh chunks, dropping
+	 * the text of removed books.
+	 */
+	private void compactText() {
+		List<ByteBuffer> oldChunks = textChunks;
+
+		textChunks = new ArrayList<>();
+		textPosition = 0;
+		liveTextBytes = 0;
+		deadTextBytes = 0;
+
+		for (int entry = 0; entry < keys.length; entry++) {
+			if (keys[entry] != EMPTY) {
+				int slot = slots[entry];
+				ByteBuffer chunk = recordChunk(slot);
+				int offset = recordOffset(slot);
+				long address = chunk.getLong(offset + TEXT_ADDRESS_OFFSET);
+				ByteBuffer oldChunk = oldChunks.get((int) (address >>> 32));
+				int position = (int) address;
+				byte[] title = readBytes(oldChunk, position, chunk.getInt(offset + TITLE_LENGTH_OFFSET));
+				byte[] author = readBytes(oldChunk, position + title.length,
+						chunk.getInt(offset + AUTHOR_LENGTH_OFFSET));
+
+				chunk.putLong(offset + TEXT_ADDRESS_OFFSET, appendText(title, author));
+			}
+		}
+	}
+
+	private long textLength(int slot) {
+		ByteBuffer chunk = recordChunk(slot);
+		int offset = recordOffset(slot);
+		return chunk.getInt(offset + TITLE_LENGTH_OFFSET) + chunk.getInt(offset + AUTHOR_LENGTH_OFFSET);
+	}
+
+	private static byte[] readBytes(ByteBuffer chunk, int position, int length) {
+		byte[] bytes = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			bytes[i] = chunk.get(position + i);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Decodes the title and the author of the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the title and the author
+	 */
+	private String[] readText(int slot) {
+		ByteBuffer chunk = recordChunk(slot);
+		int offset = recordOffset(slot);
+		long address = chunk.getLong(offset + TEXT_ADDRESS_OFFSET);
+		ByteBuffer textChunk = textChunks.get((int) (address >>> 32));
+		int position = (int) address;
+		int titleLength = chunk.getInt(offset + TITLE_LENGTH_OFFSET);
+		int authorLength = chunk.getInt(offset + AUTHOR_LENGTH_OFFSET);
+
+		return new String[] { new String(readBytes(textChunk, position, titleLength), StandardCharsets.UTF_8),
+				new String(readBytes(textChunk, position + titleLength, authorLength), StandardCharsets.UTF_8) };
+	}
+
+	/**
+	 * Gets the ISBN of the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the ISBN
+	 */
+	int getISBN(int slot) {
+		return recordChunk(slot).getInt(recordOffset(slot) + ISBN_OFFSET);
+	}
+
+	/**
+	 * Gets the number of copies of the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the number of copies
+	 */
+	int getNumCopies(int slot) {
+		return recordChunk(slot).getInt(recordOffset(slot) + NUM_COPIES_OFFSET);
+	}
+
+	/**
+	 * Sets the number of copies of the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	void setNumCopies(int slot, int numCopies) {
+		recordChunk(slot).putInt(recordOffset(slot) + NUM_COPIES_OFFSET, numCopies);
+	}
+
+	/**
+	 * Gets the number of sale misses of the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the number of sale misses
+	 */
+	long getNumSaleMisses(int slot) {
+		return recordChunk(slot).getLong(recordOffset(slot) + NUM_SALE_MISSES_OFFSET);
+	}
+
+	/**
+	 * Sets the number of sale misses of the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param numSaleMisses
+	 *            the number of sale misses
+	 */
+	void setNumSaleMisses(int slot, long numSaleMisses) {
+		recordChunk(slot).putLong(recordOffset(slot) + NUM_SALE_MISSES_OFFSET, numSaleMisses);
+	}
+
+	/**
+	 * Adds a rating to the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param rating
+	 *            the rating
+	 */
+	void addRating(int slot, int rating) {
+		ByteBuffer chunk = recordChunk(slot);
+		int offset = recordOffset(slot);
+
+		chunk.putLong(offset + NUM_TIMES_RATED_OFFSET, chunk.getLong(offset + NUM_TIMES_RATED_OFFSET) + 1);
+		chunk.putLong(offset + TOTAL_RATING_OFFSET, chunk.getLong(offset + TOTAL_RATING_OFFSET) + rating);
+	}
+
+	/**
+	 * Gets the average rating of the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the average rating, or -1 if the book was never rated
+	 */
+	float getAverageRating(int slot) {
+		ByteBuffer chunk = recordChunk(slot);
+		int offset = recordOffset(slot);
+		long numTimesRated = chunk.getLong(offset + NUM_TIMES_RATED_OFFSET);
+
+		return (numTimesRated == 0 ? -1.0f
+				: (float) chunk.getLong(offset + TOTAL_RATING_OFFSET) / numTimesRated);
+	}
+
+	/**
+	 * Gets the generation of the slot, which changes each time the slot is
+	 * given to a book, e.g. to tell a book from one added with the same ISBN
+	 * after it was removed.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the generation
+	 */
+	int getGeneration(int slot) {
+		return generations[slot];
+	}
+
+	/**
+	 * Gets the store version of the last change to the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the change version
+	 */
+	long getChangeVersion(int slot) {
+		return recordChunk(slot).getLong(recordOffset(slot) + CHANGE_VERSION_OFFSET);
+	}
+
+	/**
+	 * Sets the store version of the last change to the book in the slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param changeVersion
+	 *            the change version
+	 */
+	void setChangeVersion(int slot, long changeVersion) {
+		recordChunk(slot).putLong(recordOffset(slot) + CHANGE_VERSION_OFFSET, changeVersion);
+	}
+
+	/**
+	 * Checks if the book in the slot is an editor pick.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return true, if it is an editor pick
+	 */
+	boolean isEditorPick(int slot) {
+		return recordChunk(slot).get(recordOffset(slot) + EDITOR_PICK_OFFSET) != 0;
+	}
+
+	/**
+	 * Sets whether the book in the slot is an editor pick.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param editorPick
+	 *            the editor pick
+	 */
+	void setEditorPick(int slot, boolean editorPick) {
+		recordChunk(slot).put(recordOffset(slot) + EDITOR_PICK_OFFSET, (byte) (editorPick ? 1 : 0));
+	}
+
+	/**
+	 * Materializes the book in the slot as an {@link ImmutableBook}.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the immutable book
+	 */
+	ImmutableBook immutableBook(int slot) {
+		String[] text = readText(slot);
+		return new ImmutableBook(getISBN(slot), text[0], text[1],
+				recordChunk(slot).getFloat(recordOffset(slot) + PRICE_OFFSET));
+	}
+
+	/**
+	 * Materializes the book in the slot as an {@link ImmutableStockBook}.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the immutable stock book
+	 */
+	ImmutableStockBook immutableStockBook(int slot) {
+		String[] text = readText(slot);
+		ByteBuffer chunk = recordChunk(slot);
+		int offset = recordOffset(slot);
+
+		return new ImmutableStockBook(chunk.getInt(offset + ISBN_OFFSET), text[0], text[1],
+				chunk.getFloat(offset + PRICE_OFFSET), chunk.getInt(offset + NUM_COPIES_OFFSET),
+				chunk.getLong(offset + NUM_SALE_MISSES_OFFSET), chunk.getLong(offset + NUM_TIMES_RATED_OFFSET),
+				chunk.getLong(offset + TOTAL_RATING_OFFSET), chunk.get(offset + EDITOR_PICK_OFFSET) != 0);
+	}
+}
@@ -0,0 +1,1112 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link OffHeapCertainBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities like {@link CertainBookStore}, but keeps
+ * the books in direct memory, cf. {@link OffHeapBookTable}. The heap holds
+ * only the ISBN index, so the garbage collector does not have to trace one
+ * object graph per book and its pauses do not grow with the catalog. Books
+ * handed out to clients are materialized from direct memory on every read.
+ * 
+ * Concurrency control is two-level like in {@link CertainBookStore}. Adding
+ * and removing books takes the store lock exclusively. Every other operation
+ * takes it shared and then locks the ISBN stripes of the books it touches,
+ * reads included, since the records in direct memory are updated in place
+ * rather than replaced by new versions. Purchases lock all the books of the
+ * order at once, so an order that cannot be filled changes nothing but the
+ * sale misses. Changes stamp the records of their books with the store version
+ * while holding the ISBN locks, cf. {@link BookChangeLog}.
+ * 
+ * @see BookStore
+ * @see StockManager
+ * @see OffHeapBookTable
+ */
+public class OffHeapCertainBookStore implements BookStore, StockManager {
+
+	/** The number of ISBN lock stripes, must be a power of two. */
+	private static final int NUM_LOCK_STRIPES = 1024;
+
+	/**
+	 * Copies held of the book in a slot, of the generation the slot had when
+	 * they were taken.
+	 */
+	private static final class HeldCopies {
+
+		/** The ISBN. */
+		private final int isbn;
+
+		/** The slot the copies were taken from. */
+		private final int slot;
+
+		/** The generation of the slot. */
+		private final int generation;
+
+		/** The number of copies. */
+		private final int numCopies;
+
+		private HeldCopies(int isbn, int slot, int generation, int numCopies) {
+			this.isbn = isbn;
+			this.slot = slot;
+			this.generation = generation;
+			this.numCopies = numCopies;
+		}
+	}
+
+	/** The books, guarded by the store lock. */
+	private final OffHeapBookTable books = new OffHeapBookTable();
+
+	/** The store lock, held exclusively while books are added or removed. */
+	private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+	/** The lock stripes protecting the records of the individual books. */
+	private final IsbnLockStripes isbnLocks = new IsbnLockStripes(NUM_LOCK_STRIPES);
+
+	/** The versions of the changes to the books. */
+	private final BookChangeLog changeLog = new BookChangeLog();
+
+	/** The backorders waiting for copies of the books. */
+	private final Backorders backorders = new Backorders();
+
+	/** The holds on copies of the books. */
+	private final BookHolds<HeldCopies> holds = new BookHolds<>("book-store-holds", this::releaseHeldCopies);
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (books.contains(isbn)) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private void validate(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+	}
+
+	private void validateISBNInStock(int ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+		if (!books.contains(ISBN)) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/**
+	 * Materializes the book in the slot as an {@link ImmutableStockBook} while
+	 * holding its ISBN lock. The caller must hold the store lock.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the stock book
+	 */
+	private StockBook readStockBook(int slot) {
+		Lock lock = isbnLocks.lockOf(books.getISBN(slot));
+		lock.lock();
+
+		try {
+			return books.immutableStockBook(slot);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Materializes the book in the slot like {@link #readStockBook(int)} if it
+	 * changed since the version.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param version
+	 *            the version
+	 * @return the stock book, or null if it did not change
+	 */
+	private StockBook readStockBookChangedSince(int slot, long version) {
+		Lock lock = isbnLocks.lockOf(books.getISBN(slot));
+		lock.lock();
+
+		try {
+			return books.getChangeVersion(slot) >= version ? books.immutableStockBook(slot) : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stamps the book in the slot as changed. The caller must hold its ISBN
+	 * lock, which orders the stamp with the syncs reading it.
+	 *
+	 * @param slot
+	 *            the slot
+	 */
+	private void stampChange(int slot) {
+		books.setChangeVersion(slot, changeLog.getVersion());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.writeLock().lock();
+
+		try {
+
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			for (StockBook book : bookSet) {
+				stampChange(books.insert(book));
+				changeLog.added(book.getISBN());
+			}
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(bookCopy);
+			}
+
+			int[] lockedStripes = isbnLocks.lock(bookCopiesSet.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+
+			try {
+
+				// Update the number of copies, restocking clears the sale misses
+				for (BookCopy bookCopy : bookCopiesSet) {
+					int slot = books.find(bookCopy.getISBN());
+					books.setNumCopies(slot, books.getNumCopies(slot) + bookCopy.getNumCopies());
+					books.setNumSaleMisses(slot, 0);
+					stampChange(slot);
+
+					// The backorders waiting for the book are filled first.
+					backorders.drain(bookCopy.getISBN(), this::takeBackorderedCopies);
+				}
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() {
+		storeLock.readLock().lock();
+
+		try {
+			int[] slots = books.slots();
+			List<StockBook> result = new ArrayList<>(slots.length);
+
+			for (int slot : slots) {
+				result.add(readStockBook(slot));
+			}
+
+			return result;
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksPage(int,
+	 * java.lang.String)
+	 */
+	public StockBookPage getBooksPage(int pageSize, String continuationToken) throws BookStoreException {
+		StockBookPage.validatePageSize(pageSize);
+		int isbnAfter = StockBookPage.isbnAfter(continuationToken);
+
+		storeLock.readLock().lock();
+
+		try {
+			int[] isbns = books.isbnsAfter(isbnAfter, pageSize + 1);
+			List<StockBook> pageBooks = new ArrayList<>(isbns.length);
+
+			for (int isbn : isbns) {
+				pageBooks.add(readStockBook(books.find(isbn)));
+			}
+
+			return StockBookPage.of(pageBooks, pageSize);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		BookChangeLog.validateVersion(version);
+
+		storeLock.readLock().lock();
+
+		try {
+			long nextVersion = changeLog.advance();
+			boolean reset = changeLog.isReset(version, nextVersion);
+			List<Integer> removedIsbns = reset ? new ArrayList<>() : changeLog.removedSince(version);
+			long changedSince = reset ? 0 : version;
+			List<StockBook> changedBooks = new ArrayList<>();
+
+			for (int slot : books.slots()) {
+				StockBook book = readStockBookChangedSince(slot, changedSince);
+
+				if (book != null) {
+					changedBooks.add(book);
+				}
+			}
+
+			return new BookChanges(nextVersion, reset, changedBooks, removedIsbns);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validateISBNInStock(editorPickArg.getISBN());
+			}
+
+			int[] lockedStripes = isbnLocks.lock(
+					editorPicks.stream().map(BookEditorPick::getISBN).collect(Collectors.toList()));
+
+			try {
+				for (BookEditorPick editorPickArg : editorPicks) {
+					int slot = books.find(editorPickArg.getISBN());
+					books.setEditorPick(slot, editorPickArg.isEditorPick());
+					stampChange(slot);
+				}
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (!tryBuyBooks(bookCopiesToBuy).isBought()) {
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#tryBuyBooks(java.util.Set)
+	 */
+	@Override
+	public PurchaseResult tryBuyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+
+			// Check that all ISBNs that we buy are there first.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				validate(bookCopyToBuy);
+			}
+
+			int[] lockedStripes = isbnLocks.lock(
+					bookCopiesToBuy.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+
+			try {
+				Map<Integer, Integer> salesMisses = new HashMap<>();
+
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					int numMissing = bookCopyToBuy.getNumCopies()
+							- books.getNumCopies(books.find(bookCopyToBuy.getISBN()));
+
+					if (numMissing > 0) {
+						// If we cannot sell the copies of the book, it is a miss.
+						salesMisses.put(bookCopyToBuy.getISBN(), numMissing);
+					}
+				}
+
+				// The misses of all the books in the order are recorded, they
+				// are used by books in demand.
+				if (!salesMisses.isEmpty()) {
+					for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+						int slot = books.find(saleMissEntry.getKey());
+						books.setNumSaleMisses(slot, books.getNumSaleMisses(slot) + saleMissEntry.getValue());
+						stampChange(slot);
+					}
+
+					return PurchaseResult.missed(salesMisses);
+				}
+
+				// Then make the purchase.
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					int slot = books.find(bookCopyToBuy.getISBN());
+					books.setNumCopies(slot, books.getNumCopies(slot) - bookCopyToBuy.getNumCopies());
+					stampChange(slot);
+				}
+
+				return PurchaseResult.bought(bookCopiesToBuy);
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#buyAvailableBooks(java.util.
+	 * Set)
+	 */
+	@Override
+	public PurchaseResult buyAvailableBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				validate(bookCopyToBuy);
+			}
+
+			int[] lockedStripes = isbnLocks.lock(
+					bookCopiesToBuy.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+
+			try {
+				List<BookCopy> boughtCopies = new ArrayList<>(bookCopiesToBuy.size());
+				List<BookCopy> missedCopies = new ArrayList<>();
+
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					int slot = books.find(bookCopyToBuy.getISBN());
+					int numBought = Math.min(bookCopyToBuy.getNumCopies(), books.getNumCopies(slot));
+					int numMissing = bookCopyToBuy.getNumCopies() - numBought;
+
+					if (numBought > 0) {
+						books.setNumCopies(slot, books.getNumCopies(slot) - numBought);
+						boughtCopies.add(new BookCopy(bookCopyToBuy.getISBN(), numBought));
+					}
+
+					// Only the copies the book was short of are a sale miss.
+					if (numMissing > 0) {
+						books.setNumSaleMisses(slot, books.getNumSaleMisses(slot) + numMissing);
+						missedCopies.add(new BookCopy(bookCopyToBuy.getISBN(), numMissing));
+					}
+
+					stampChange(slot);
+				}
+
+				return new PurchaseResult(boughtCopies, missedCopies);
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#placeBackorder(com.
+	 * acertainbookstore.business.BookCopy)
+	 */
+	@Override
+	public long placeBackorder(BookCopy bookCopy) throws BookStoreException {
+		if (bookCopy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			validate(bookCopy);
+
+			int[] lockedStripes = isbnLocks.lock(Collections.singletonList(bookCopy.getISBN()));
+
+			try {
+				long backorderId = backorders.place(bookCopy.getISBN(), bookCopy.getNumCopies());
+				backorders.drain(bookCopy.getISBN(), this::takeBackorderedCopies);
+				return backorderId;
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBackorder(long,
+	 * long)
+	 */
+	@Override
+	public BackorderStatus awaitBackorder(long backorderId, long timeoutMillis) throws BookStoreException {
+		return backorders.await(backorderId, timeoutMillis);
+	}
+
+	/**
+	 * Buys copies of a book for a backorder, cf. {@link Backorders.CopyTaker}.
+	 * The caller must hold the store lock, and the ISBN lock of the book
+	 * unless it holds the store lock exclusively.
+	 */
+	private boolean takeBackorderedCopies(int isbn, int numCopies) {
+		int slot = books.find(isbn);
+
+		if (books.getNumCopies(slot) < numCopies) {
+			return false;
+		}
+
+		books.setNumCopies(slot, books.getNumCopies(slot) - numCopies);
+		stampChange(slot);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToHold, long ttlMillis) throws BookStoreException {
+		if (bookCopiesToHold == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BookHolds.validateTtl(ttlMillis);
+		storeLock.readLock().lock();
+
+		try {
+			for (BookCopy bookCopyToHold : bookCopiesToHold) {
+				validate(bookCopyToHold);
+			}
+
+			int[] lockedStripes = isbnLocks.lock(
+					bookCopiesToHold.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+
+			try {
+				// A hold that cannot be placed is not a sale, so it records no
+				// sale misses.
+				for (BookCopy bookCopyToHold : bookCopiesToHold) {
+					if (books.getNumCopies(books.find(bookCopyToHold.getISBN())) < bookCopyToHold.getNumCopies()) {
+						throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+					}
+				}
+
+				// The copies are taken out of stock now, confirming the hold
+				// keeps them sold.
+				List<HeldCopies> heldCopies = new ArrayList<>(bookCopiesToHold.size());
+
+				for (BookCopy bookCopyToHold : bookCopiesToHold) {
+					int slot = books.find(bookCopyToHold.getISBN());
+					books.setNumCopies(slot, books.getNumCopies(slot) - bookCopyToHold.getNumCopies());
+					stampChange(slot);
+					heldCopies.add(new HeldCopies(bookCopyToHold.getISBN(), slot, books.getGeneration(slot),
+							bookCopyToHold.getNumCopies()));
+				}
+
+				// The hold is placed before the locks are let go, so the copies
+				// are never out of stock without a hold.
+				return holds.hold(heldCopies, ttlMillis);
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#confirmHold(long)
+	 */
+	@Override
+	public void confirmHold(long holdId) throws BookStoreException {
+		holds.confirm(holdId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#cancelHold(long)
+	 */
+	@Override
+	public void cancelHold(long holdId) throws BookStoreException {
+		holds.cancel(holdId);
+	}
+
+	/**
+	 * Gives back the copies of a hold that was cancelled or expired, cf.
+	 * {@link BookHolds.CopyReleaser}. The copies of a book removed meanwhile
+	 * are dropped, even if a book with its ISBN was added since.
+	 */
+	private void releaseHeldCopies(List<HeldCopies> heldCopies) {
+		storeLock.readLock().lock();
+
+		try {
+			int[] lockedStripes = isbnLocks.lock(heldCopies.stream().map(heldCopy -> heldCopy.isbn)
+					.collect(Collectors.toList()));
+
+			try {
+				for (HeldCopies heldCopy : heldCopies) {
+					int slot = heldCopy.slot;
+
+					if (books.find(heldCopy.isbn) == slot && books.getGeneration(slot) == heldCopy.generation) {
+						books.setNumCopies(slot, books.getNumCopies(slot) + heldCopy.numCopies);
+						stampChange(slot);
+						backorders.drain(heldCopy.isbn, this::takeBackorderedCopies);
+					}
+				}
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			// Return the set of books matching isbns in the validated set.
+			return isbnSet.stream()
+					.map(isbn -> readStockBook(books.find(isbn)))
+					.collect(Collectors.toList());
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			// Title, author and price never change, no ISBN lock is needed.
+			return isbnSet.stream()
+					.map(isbn -> books.immutableBook(books.find(isbn)))
+					.collect(Collectors.toList());
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+
+			// Query for all books with the Editor Pick boolean set.
+			List<Integer> listAllEditorPicks = new ArrayList<>();
+
+			for (int slot : books.slots()) {
+				Lock lock = isbnLocks.lockOf(books.getISBN(slot));
+				lock.lock();
+
+				try {
+					if (books.isEditorPick(slot)) {
+						listAllEditorPicks.add(slot);
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			// Find numBooks random indices of books that will be picked.
+			Random rand = ThreadLocalRandom.current();
+			Set<Integer> tobePicked = new HashSet<>();
+			int rangePicks = listAllEditorPicks.size();
+
+			if (rangePicks <= numBooks) {
+
+				// We need to add all books.
+				for (int i = 0; i < listAllEditorPicks.size(); i++) {
+					tobePicked.add(i);
+				}
+			} else {
+
+				// We need to pick randomly the books that need to be returned.
+				while (tobePicked.size() < numBooks) {
+					tobePicked.add(rand.nextInt(rangePicks));
+				}
+			}
+
+			// Return all the books by the randomly chosen indices.
+			return tobePicked.stream()
+					.map(index -> (Book) books.immutableBook(listAllEditorPicks.get(index)))
+					.collect(Collectors.toList());
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+
+			// Keep the best numBooks rated books of a scan in a min-heap. The
+			// ratings are non-negative, so the float bits order like the
+			// floats; ties go to the smaller ISBN.
+			PriorityQueue<Long> best = new PriorityQueue<>();
+
+			for (int slot : books.slots()) {
+				int isbn = books.getISBN(slot);
+				Lock lock = isbnLocks.lockOf(isbn);
+				float averageRating;
+				lock.lock();
+
+				try {
+					averageRating = books.getAverageRating(slot);
+				} finally {
+					lock.unlock();
+				}
+
+				if (averageRating >= 0 && numBooks > 0) {
+					best.add(((long) Float.floatToIntBits(averageRating) << 32) | (Integer.MAX_VALUE - isbn));
+
+					if (best.size() > numBooks) {
+						best.poll();
+					}
+				}
+			}
+
+			List<Book> topRated = new ArrayList<>(best.size());
+
+			while (!best.isEmpty()) {
+				int isbn = Integer.MAX_VALUE - (int) (best.poll() & 0xffffffffL);
+				topRated.add(books.immutableBook(books.find(isbn)));
+			}
+
+			Collections.reverse(topRated);
+			return topRated;
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		storeLock.readLock().lock();
+
+		try {
+			List<StockBook> result = new ArrayList<>();
+
+			for (int slot : books.slots()) {
+				Lock lock = isbnLocks.lockOf(books.getISBN(slot));
+				lock.lock();
+
+				try {
+					if (books.getNumSaleMisses(slot) > 0) {
+						result.add(books.immutableStockBook(slot));
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			return result;
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+
+			// Check that all ISBNs that we rate are there, and all the ratings
+			// are valid, before rating any book.
+			for (BookRating rating : bookRating) {
+				validateISBNInStock(rating.getISBN());
+
+				if (BookStoreUtility.isInvalidRating(rating.getRating())) {
+					throw new BookStoreException(
+							BookStoreConstants.RATING + rating.getRating() + BookStoreConstants.INVALID);
+				}
+			}
+
+			int[] lockedStripes = isbnLocks.lock(
+					bookRating.stream().map(BookRating::getISBN).collect(Collectors.toList()));
+
+			try {
+				for (BookRating rating : bookRating) {
+					int slot = books.find(rating.getISBN());
+					books.addRating(slot, rating.getRating());
+					stampChange(slot);
+				}
+			} finally {
+				isbnLocks.unlock(lockedStripes);
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksWithLeastCopies(int)
+	 */
+	@Override
+	public List<StockBook> getBooksWithLeastCopies(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			int[] slots = slotsWithLeastCopies(numBooks);
+			List<StockBook> leastCopies = new ArrayList<>(slots.length);
+
+			for (int slot : slots) {
+				leastCopies.add(readStockBook(slot));
+			}
+
+			return leastCopies;
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#
+	 * restockBooksWithLeastCopies(int, int)
+	 */
+	@Override
+	public List<StockBook> restockBooksWithLeastCopies(int numBooks, int numCopies) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+
+		// The exclusive store lock keeps every other update out between the
+		// scan and the restock, so no ISBN locks are needed.
+		storeLock.writeLock().lock();
+
+		try {
+			int[] slots = slotsWithLeastCopies(numBooks);
+			List<StockBook> restockedBooks = new ArrayList<>(slots.length);
+
+			for (int slot : slots) {
+				books.setNumCopies(slot, books.getNumCopies(slot) + numCopies);
+				books.setNumSaleMisses(slot, 0);
+				stampChange(slot);
+				backorders.drain(books.getISBN(slot), this::takeBackorderedCopies);
+				restockedBooks.add(books.immutableStockBook(slot));
+			}
+
+			return restockedBooks;
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the numBooks books with the least copies, ties broken by ISBN.
+	 * The caller must hold the store lock.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the slots of the books, least copies first
+	 */
+	private int[] slotsWithLeastCopies(int numBooks) {
+
+		// Keep the numBooks books with the least copies of a scan in a
+		// max-heap, there is no index to keep in step with the records.
+		PriorityQueue<Long> least = new PriorityQueue<>(Collections.reverseOrder());
+
+		for (int slot : books.slots()) {
+			int isbn = books.getISBN(slot);
+			Lock lock = isbnLocks.lockOf(isbn);
+			int numCopies;
+			lock.lock();
+
+			try {
+				numCopies = books.getNumCopies(slot);
+			} finally {
+				lock.unlock();
+			}
+
+			if (numBooks > 0) {
+				least.add(((long) numCopies << 32) | isbn);
+
+				if (least.size() > numBooks) {
+					least.poll();
+				}
+			}
+		}
+
+		int[] slots = new int[least.size()];
+
+		for (int i = slots.length - 1; i >= 0; i--) {
+			slots[i] = books.find((int) (least.poll() & 0xffffffffL));
+		}
+
+		return slots;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		storeLock.writeLock().lock();
+
+		try {
+			books.clear();
+			changeLog.removedAll();
+			backorders.cancelAll();
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storeLock.writeLock().lock();
+
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			for (int isbn : isbnSet) {
+				books.remove(isbn);
+				changeLog.removed(isbn);
+				backorders.cancel(isbn);
+			}
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#runBatch(java.util.
+	 * List, boolean)
+	 */
+	@Override
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException {
+		if (!atomic) {
+			return BookStoreBatch.run(this, this, operations);
+		}
+
+		// The updates take the shared store lock for their updates, so the
+		// exclusive one keeps them from the check to the end of the batch.
+		storeLock.writeLock().lock();
+
+		try {
+			return BookStoreBatch.runAtomically(this, this, backorders, operations);
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#callProcedure(java.lang.
+	 * String, java.lang.Object[])
+	 */
+	@Override
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException {
+		return BookStoreProcedures.call(this, this, name, arguments);
+	}
+}
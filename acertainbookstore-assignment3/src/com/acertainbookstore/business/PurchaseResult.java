@@ -0,0 +1,95 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link PurchaseResult} is the outcome of a purchase, cf.
+ * {@link com.acertainbookstore.interfaces.BookStore#tryBuyBooks(java.util.Set)}
+ * and
+ * {@link com.acertainbookstore.interfaces.BookStore#buyAvailableBooks(java.util.Set)}.
+ * It lists the copies bought of each book, and the books that were short with
+ * the number of copies missing, which is the sale miss recorded for them. A
+ * purchase of all or nothing has either list empty, a partial purchase may
+ * list a book in both.
+ */
+public final class PurchaseResult {
+
+	/** The copies bought of each book. */
+	private final List<BookCopy> boughtCopies;
+
+	/** The copies missing of each book that was short. */
+	private final List<BookCopy> missedCopies;
+
+	/**
+	 * Instantiates a new {@link PurchaseResult}.
+	 *
+	 * @param boughtCopies
+	 *            the copies bought of each book
+	 * @param missedCopies
+	 *            the copies missing of each book that was short, empty if
+	 *            all the copies were bought
+	 */
+	public PurchaseResult(List<BookCopy> boughtCopies, List<BookCopy> missedCopies) {
+		this.boughtCopies = boughtCopies;
+		this.missedCopies = missedCopies;
+	}
+
+	/**
+	 * Creates the result of a purchase of all the copies.
+	 *
+	 * @param bookCopies
+	 *            the copies bought
+	 * @return the result
+	 */
+	static PurchaseResult bought(Collection<BookCopy> bookCopies) {
+		return new PurchaseResult(new ArrayList<>(bookCopies), Collections.emptyList());
+	}
+
+	/**
+	 * Creates the result of a purchase of all or nothing that missed copies.
+	 *
+	 * @param salesMisses
+	 *            the copies missing by ISBN
+	 * @return the result
+	 */
+	static PurchaseResult missed(Map<Integer, Integer> salesMisses) {
+		List<BookCopy> missedCopies = new ArrayList<>(salesMisses.size());
+
+		for (Map.Entry<Integer, Integer> saleMiss : salesMisses.entrySet()) {
+			missedCopies.add(new BookCopy(saleMiss.getKey(), saleMiss.getValue()));
+		}
+
+		return new PurchaseResult(Collections.emptyList(), missedCopies);
+	}
+
+	/**
+	 * Checks if all the copies were bought.
+	 *
+	 * @return true, if the copies were bought
+	 */
+	public boolean isBought() {
+		return missedCopies.isEmpty();
+	}
+
+	/**
+	 * Gets the copies bought of each book.
+	 *
+	 * @return the copies bought
+	 */
+	public List<BookCopy> getBoughtCopies() {
+		return boughtCopies;
+	}
+
+	/**
+	 * Gets the copies missing of each book that was short.
+	 *
+	 * @return the copies missing, empty if the copies were bought
+	 */
+	public List<BookCopy> getMissedCopies() {
+		return missedCopies;
+	}
+}
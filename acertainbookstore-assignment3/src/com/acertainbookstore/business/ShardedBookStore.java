@@ -0,0 +1,1114 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+import com.acertainbookstore.business.BookShard.ShardTask;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link ShardedBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities on ISBN partitions owned by threads,
+ * one {@link BookShard} per core by default. A shard keeps its books private
+ * and serves the requests posted to its mailbox one at a time, so the books
+ * are never locked; operations on books of different shards run in parallel
+ * on the owners of those shards.
+ * 
+ * An operation on several shards posts its part to each shard at once and then
+ * waits for all of them. Updates that must be rejected as a whole if one book
+ * is not in stock first check their books on every shard they touch, and only
+ * then apply; updates within one shard do both in a single request. Purchases
+ * take the copies on every shard that has all of its copies and give them back
+ * if another shard is short, recording the misses of the short books, as
+ * {@link CertainBookStore} does. Adding and removing books holds the store
+ * lock exclusively, and the other updates hold it shared, so that the books a
+ * check found are still there when the update is applied. The shards stamp the
+ * books they change with the store version, cf. {@link BookChangeLog}.
+ * 
+ * @see BookStore
+ * @see StockManager
+ * @see BookShard
+ */
+public class ShardedBookStore implements BookStore, StockManager {
+
+	/** The order of the top rated books of the shards, best rated first. */
+	private static final Comparator<StockBook> RATING_ORDER = Comparator
+			.comparingDouble((StockBook book) -> -book.getAverageRating()).thenComparingInt(StockBook::getISBN);
+
+	/** The order of the books with the least copies of the shards, least first. */
+	private static final Comparator<StockBook> COPIES_ORDER = Comparator.comparingInt(StockBook::getNumCopies)
+			.thenComparingInt(StockBook::getISBN);
+
+	/** The shards. */
+	private final BookShard[] shards;
+
+	/** The store lock, held exclusively while books are added or removed. */
+	private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+	/** The versions of the changes to the books, shared by the shards. */
+	private final BookChangeLog changeLog = new BookChangeLog();
+
+	/** The backorders waiting for copies of the books, shared by the shards. */
+	private final Backorders backorders = new Backorders();
+
+	/** The holds on copies of the books. */
+	private final BookHolds<BookHolds.HeldCopies> holds = new BookHolds<>("book-store-holds",
+			this::releaseHeldCopies);
+
+	/**
+	 * Instantiates a new {@link ShardedBookStore} with one shard per core.
+	 */
+	public ShardedBookStore() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiates a new {@link ShardedBookStore}.
+	 *
+	 * @param numShards
+	 *            the number of shards
+	 */
+	public ShardedBookStore(int numShards) {
+		if (numShards < 1) {
+			throw new IllegalArgumentException("numShards = " + numShards + ", but it must be positive");
+		}
+
+		shards = new BookShard[numShards];
+
+		for (int i = 0; i < numShards; i++) {
+			shards[i] = new BookShard("book-store-shard-" + i, changeLog, backorders);
+		}
+	}
+
+	/**
+	 * Stops the owners of the shards. The store must not be used afterwards.
+	 */
+	public void shutdown() {
+		for (BookShard shard : shards) {
+			shard.shutdown();
+		}
+	}
+
+	/**
+	 * Gets the index of the shard owning the given ISBN.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the shard index
+	 */
+	private int shardOf(int isbn) {
+		int hash = isbn * 0x9E3779B9;
+		return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+	}
+
+	/**
+	 * Splits the items by the shard owning their ISBN, keeping their order.
+	 *
+	 * @return the items of each shard, empty for the shards not touched
+	 */
+	private <X> List<List<X>> partition(Collection<X> items, ToIntFunction<X> isbnOf) {
+		List<List<X>> parts = new ArrayList<>(shards.length);
+
+		for (int i = 0; i < shards.length; i++) {
+			parts.add(new ArrayList<>());
+		}
+
+		for (X item : items) {
+			parts.get(shardOf(isbnOf.applyAsInt(item))).add(item);
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Posts a task to every shard touched by the parts.
+	 *
+	 * @return the results of each shard, null for the shards not touched
+	 */
+	private <X, T> List<CompletableFuture<T>> askEach(List<List<X>> parts,
+			BiFunction<BookShard, List<X>, ShardTask<T>> task) {
+		List<CompletableFuture<T>> results = new ArrayList<>(shards.length);
+
+		for (int i = 0; i < shards.length; i++) {
+			List<X> part = parts.get(i);
+			results.add(part.isEmpty() ? null : shards[i].ask(task.apply(shards[i], part)));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Posts a task to every shard.
+	 *
+	 * @return the results of each shard
+	 */
+	private <T> List<CompletableFuture<T>> askAll(Function<BookShard, ShardTask<T>> task) {
+		List<CompletableFuture<T>> results = new ArrayList<>(shards.length);
+
+		for (BookShard shard : shards) {
+			results.add(shard.ask(task.apply(shard)));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Waits for the result of a shard.
+	 *
+	 * @return the result
+	 * @throws BookStoreException
+	 *             the exception of the shard
+	 */
+	private static <T> T await(CompletableFuture<T> result) throws BookStoreException {
+		try {
+			return result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+
+			throw new BookStoreException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Waits for the results of all the shards, even if one of them fails.
+	 *
+	 * @return the results, null for the shards not asked
+	 * @throws BookStoreException
+	 *             the first exception of the shards
+	 */
+	private static <T> List<T> awaitAll(List<CompletableFuture<T>> results) throws BookStoreException {
+		List<T> values = new ArrayList<>(results.size());
+		BookStoreException failure = null;
+
+		for (CompletableFuture<T> result : results) {
+			T value = null;
+
+			if (result != null) {
+				try {
+					value = await(result);
+				} catch (BookStoreException ex) {
+					failure = (failure == null) ? ex : failure;
+				}
+			}
+
+			values.add(value);
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+
+		return values;
+	}
+
+	/**
+	 * Applies an update that is rejected as a whole if the check of one shard
+	 * fails. The check is skipped for a single shard, whose update checks its
+	 * books itself before changing any of them.
+	 *
+	 * @return the results of the update, null for the shards not touched
+	 */
+	private <X, T> List<T> checkThenApply(List<List<X>> parts, BiFunction<BookShard, List<X>, ShardTask<Void>> check,
+			BiFunction<BookShard, List<X>, ShardTask<T>> update) throws BookStoreException {
+		if (parts.stream().filter(part -> !part.isEmpty()).count() > 1) {
+			awaitAll(askEach(parts, check));
+		}
+
+		return awaitAll(askEach(parts, update));
+	}
+
+	private static void validateISBN(int isbn) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+	}
+
+	private static void validate(StockBook book) throws BookStoreException {
+		validateISBN(book.getISBN());
+
+		if (BookStoreUtility.isEmpty(book.getTitle()) || BookStoreUtility.isEmpty(book.getAuthor())
+				|| BookStoreUtility.isInvalidNoCopies(book.getNumCopies()) || book.getPrice() < 0.0) {
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+	}
+
+	private static void validate(BookCopy bookCopy) throws BookStoreException {
+		validateISBN(bookCopy.getISBN());
+
+		if (BookStoreUtility.isInvalidNoCopies(bookCopy.getNumCopies())) {
+			throw new BookStoreException(
+					BookStoreConstants.NUM_COPIES + bookCopy.getNumCopies() + BookStoreConstants.INVALID);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	@Override
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (StockBook book : bookSet) {
+			validate(book);
+		}
+
+		storeLock.writeLock().lock();
+
+		try {
+			checkThenApply(partition(bookSet, StockBook::getISBN),
+					(shard, part) -> () -> {
+						shard.checkNotInStock(part);
+						return null;
+					},
+					(shard, part) -> () -> shard.addBooks(part));
+
+			for (StockBook book : bookSet) {
+				changeLog.added(book.getISBN());
+			}
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	@Override
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (BookCopy bookCopy : bookCopiesSet) {
+			validate(bookCopy);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			checkThenApply(partition(bookCopiesSet, BookCopy::getISBN),
+					(shard, part) -> () -> {
+						shard.checkInStock(part.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+						return null;
+					},
+					(shard, part) -> () -> shard.addCopies(part));
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() throws BookStoreException {
+		List<StockBook> books = new ArrayList<>();
+
+		for (List<StockBook> shardBooks : awaitAll(askAll(shard -> shard::getAllStockBooks))) {
+			books.addAll(shardBooks);
+		}
+
+		return books;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksPage(int,
+	 * java.lang.String)
+	 */
+	@Override
+	public StockBookPage getBooksPage(int pageSize, String continuationToken) throws BookStoreException {
+		StockBookPage.validatePageSize(pageSize);
+		int isbnAfter = StockBookPage.isbnAfter(continuationToken);
+
+		// The page is among the first books after the token of each shard.
+		List<StockBook> candidates = new ArrayList<>();
+
+		for (List<StockBook> shardBooks : awaitAll(
+				askAll(shard -> () -> shard.getStockBooksAfter(isbnAfter, pageSize + 1)))) {
+			candidates.addAll(shardBooks);
+		}
+
+		return StockBookPage.of(candidates.stream()
+				.sorted(Comparator.comparingInt(StockBook::getISBN))
+				.limit(pageSize + 1)
+				.collect(Collectors.toCollection(ArrayList::new)), pageSize);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	@Override
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		BookChangeLog.validateVersion(version);
+
+		storeLock.readLock().lock();
+
+		try {
+			long nextVersion = changeLog.advance();
+			boolean reset = changeLog.isReset(version, nextVersion);
+			List<Integer> removedIsbns = reset ? new ArrayList<>() : changeLog.removedSince(version);
+			long changedSince = reset ? 0 : version;
+			List<StockBook> changedBooks = new ArrayList<>();
+
+			for (List<StockBook> shardBooks : awaitAll(
+					askAll(shard -> () -> shard.getStockBooksChangedSince(changedSince)))) {
+				changedBooks.addAll(shardBooks);
+			}
+
+			return new BookChanges(nextVersion, reset, changedBooks, removedIsbns);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	@Override
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (BookEditorPick editorPickArg : editorPicks) {
+			validateISBN(editorPickArg.getISBN());
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			checkThenApply(partition(editorPicks, BookEditorPick::getISBN),
+					(shard, part) -> () -> {
+						shard.checkInStock(part.stream().map(BookEditorPick::getISBN).collect(Collectors.toList()));
+						return null;
+					},
+					(shard, part) -> () -> shard.updateEditorPicks(part));
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	@Override
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (!tryBuyBooks(bookCopiesToBuy).isBought()) {
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#tryBuyBooks(java.util.Set)
+	 */
+	@Override
+	public PurchaseResult tryBuyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (BookCopy bookCopy : bookCopiesToBuy) {
+			validate(bookCopy);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			List<List<BookCopy>> parts = partition(bookCopiesToBuy, BookCopy::getISBN);
+
+			// An order spanning shards is checked on all of them before any
+			// takes copies, so that an order that cannot be filled does not
+			// make the copies it would take look sold to the other purchases.
+			if (parts.stream().filter(part -> !part.isEmpty()).count() > 1) {
+				PurchaseResult checkedResult = checkMissingCopies(parts);
+
+				if (checkedResult != null) {
+					return checkedResult;
+				}
+			}
+
+			List<CompletableFuture<Map<Integer, Integer>>> results = askEach(parts,
+					(shard, part) -> () -> shard.tryBuyBooks(part));
+
+			// Every shard either took all of its copies or none of them.
+			BookStoreException failure = null;
+			List<Map<Integer, Integer>> missingCopies = new ArrayList<>(shards.length);
+			boolean saleMiss = false;
+
+			for (CompletableFuture<Map<Integer, Integer>> result : results) {
+				Map<Integer, Integer> shardMissingCopies = null;
+
+				if (result != null) {
+					try {
+						shardMissingCopies = await(result);
+						saleMiss |= !shardMissingCopies.isEmpty();
+					} catch (BookStoreException ex) {
+						failure = (failure == null) ? ex : failure;
+					}
+				}
+
+				missingCopies.add(shardMissingCopies);
+			}
+
+			if (failure == null && !saleMiss) {
+				return PurchaseResult.bought(bookCopiesToBuy);
+			}
+
+			// Give back the copies taken, and record the misses unless the
+			// order was invalid.
+			List<CompletableFuture<Void>> rollbacks = new ArrayList<>(shards.length);
+
+			for (int i = 0; i < shards.length; i++) {
+				BookShard shard = shards[i];
+				List<BookCopy> part = parts.get(i);
+				Map<Integer, Integer> shardMissingCopies = missingCopies.get(i);
+
+				if (shardMissingCopies == null) {
+					continue;
+				}
+
+				if (shardMissingCopies.isEmpty()) {
+					rollbacks.add(shard.ask(() -> shard.returnCopies(part)));
+				} else if (failure == null) {
+					rollbacks.add(shard.ask(() -> shard.addSaleMisses(shardMissingCopies)));
+				}
+			}
+
+			awaitAll(rollbacks);
+
+			if (failure != null) {
+				throw failure;
+			}
+
+			Map<Integer, Integer> salesMisses = new HashMap<>();
+
+			for (Map<Integer, Integer> shardMissingCopies : missingCopies) {
+				if (shardMissingCopies != null) {
+					salesMisses.putAll(shardMissingCopies);
+				}
+			}
+
+			return PurchaseResult.missed(salesMisses);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks the copies of an order on each shard, and records the misses if
+	 * some are missing.
+	 *
+	 * @param parts
+	 *            the copies of each shard
+	 * @return the misses, or null if all the copies are there
+	 * @throws BookStoreException
+	 *             if one of the books is not in the store
+	 */
+	private PurchaseResult checkMissingCopies(List<List<BookCopy>> parts) throws BookStoreException {
+		List<Map<Integer, Integer>> missingCopies = awaitAll(
+				askEach(parts, (shard, part) -> () -> shard.missingCopies(part)));
+		Map<Integer, Integer> salesMisses = new HashMap<>();
+		List<CompletableFuture<Void>> records = new ArrayList<>(shards.length);
+
+		for (int i = 0; i < shards.length; i++) {
+			BookShard shard = shards[i];
+			Map<Integer, Integer> shardMissingCopies = missingCopies.get(i);
+
+			if (shardMissingCopies != null && !shardMissingCopies.isEmpty()) {
+				records.add(shard.ask(() -> shard.addSaleMisses(shardMissingCopies)));
+				salesMisses.putAll(shardMissingCopies);
+			}
+		}
+
+		if (records.isEmpty()) {
+			return null;
+		}
+
+		awaitAll(records);
+		return PurchaseResult.missed(salesMisses);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#buyAvailableBooks(java.util.
+	 * Set)
+	 */
+	@Override
+	public PurchaseResult buyAvailableBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (BookCopy bookCopy : bookCopiesToBuy) {
+			validate(bookCopy);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			// Books are only removed under the exclusive store lock, so the
+			// books checked are still there when the shards buy them.
+			List<PurchaseResult> results = checkThenApply(partition(bookCopiesToBuy, BookCopy::getISBN),
+					(shard, part) -> () -> {
+						shard.checkInStock(part.stream().map(BookCopy::getISBN).collect(Collectors.toList()));
+						return null;
+					},
+					(shard, part) -> () -> shard.buyAvailableBooks(part));
+			List<BookCopy> boughtCopies = new ArrayList<>(bookCopiesToBuy.size());
+			List<BookCopy> missedCopies = new ArrayList<>();
+
+			for (PurchaseResult result : results) {
+				if (result != null) {
+					boughtCopies.addAll(result.getBoughtCopies());
+					missedCopies.addAll(result.getMissedCopies());
+				}
+			}
+
+			return new PurchaseResult(boughtCopies, missedCopies);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#placeBackorder(com.
+	 * acertainbookstore.business.BookCopy)
+	 */
+	@Override
+	public long placeBackorder(BookCopy bookCopy) throws BookStoreException {
+		if (bookCopy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		validate(bookCopy);
+		storeLock.readLock().lock();
+
+		try {
+			BookShard shard = shards[shardOf(bookCopy.getISBN())];
+			return await(shard.ask(() -> shard.placeBackorder(bookCopy)));
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBackorder(long,
+	 * long)
+	 */
+	@Override
+	public BackorderStatus awaitBackorder(long backorderId, long timeoutMillis) throws BookStoreException {
+		return backorders.await(backorderId, timeoutMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToHold, long ttlMillis) throws BookStoreException {
+		if (bookCopiesToHold == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		BookHolds.validateTtl(ttlMillis);
+
+		for (BookCopy bookCopy : bookCopiesToHold) {
+			validate(bookCopy);
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			// The copies are taken out of stock now, confirming the hold keeps
+			// them sold. Every shard either took all of its copies or none.
+			List<CompletableFuture<List<BookHolds.HeldCopies>>> results = askEach(
+					partition(bookCopiesToHold, BookCopy::getISBN), (shard, part) -> () -> shard.holdBooks(part));
+			BookStoreException failure = null;
+			boolean missing = false;
+			List<BookHolds.HeldCopies> heldCopies = new ArrayList<>(bookCopiesToHold.size());
+
+			for (CompletableFuture<List<BookHolds.HeldCopies>> result : results) {
+				if (result != null) {
+					try {
+						List<BookHolds.HeldCopies> shardHeldCopies = await(result);
+
+						if (shardHeldCopies == null) {
+							missing = true;
+						} else {
+							heldCopies.addAll(shardHeldCopies);
+						}
+					} catch (BookStoreException ex) {
+						failure = (failure == null) ? ex : failure;
+					}
+				}
+			}
+
+			// The hold is placed before the store lock is let go, so the copies
+			// are never out of stock without a hold.
+			if (failure == null && !missing) {
+				return holds.hold(heldCopies, ttlMillis);
+			}
+
+			returnHeldCopies(heldCopies);
+
+			if (failure != null) {
+				throw failure;
+			}
+
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#confirmHold(long)
+	 */
+	@Override
+	public void confirmHold(long holdId) throws BookStoreException {
+		holds.confirm(holdId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#cancelHold(long)
+	 */
+	@Override
+	public void cancelHold(long holdId) throws BookStoreException {
+		holds.cancel(holdId);
+	}
+
+	/**
+	 * Gives back the copies of a hold that was cancelled or expired, cf.
+	 * {@link BookHolds.CopyReleaser}. All of them are dropped once the store
+	 * is shut down.
+	 */
+	private void releaseHeldCopies(List<BookHolds.HeldCopies> heldCopies) {
+		storeLock.readLock().lock();
+
+		try {
+			returnHeldCopies(heldCopies);
+		} catch (BookStoreException ex) {
+			// The shards are stopped, there is no stock to give back to.
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gives back held copies to the books they were taken from, cf.
+	 * {@link BookShard#returnHeldCopies(Collection)}. The caller must hold the
+	 * store lock.
+	 *
+	 * @throws BookStoreException
+	 *             if the shards are stopped
+	 */
+	private void returnHeldCopies(List<BookHolds.HeldCopies> heldCopies) throws BookStoreException {
+		awaitAll(askEach(partition(heldCopies, heldCopy -> heldCopy.book.getISBN()),
+				(shard, part) -> () -> shard.returnHeldCopies(part)));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (Integer ISBN : isbnSet) {
+			validateISBN(ISBN);
+		}
+
+		return inOrder(isbnSet, awaitAll(askEach(partition(isbnSet, Integer::intValue),
+				(shard, part) -> () -> shard.getStockBooks(part))));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	@Override
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (Integer ISBN : isbnSet) {
+			validateISBN(ISBN);
+		}
+
+		return inOrder(isbnSet, awaitAll(askEach(partition(isbnSet, Integer::intValue),
+				(shard, part) -> () -> shard.getBooks(part))));
+	}
+
+	/**
+	 * Merges the books returned by the shards back into the order of the
+	 * ISBNs they were asked for.
+	 */
+	private <B> List<B> inOrder(Collection<Integer> isbns, List<List<B>> shardBooks) {
+		List<Iterator<B>> shardIterators = new ArrayList<>(shards.length);
+
+		for (List<B> books : shardBooks) {
+			shardIterators.add(books == null ? null : books.iterator());
+		}
+
+		List<B> books = new ArrayList<>(isbns.size());
+
+		for (int isbn : isbns) {
+			books.add(shardIterators.get(shardOf(isbn)).next());
+		}
+
+		return books;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	@Override
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		List<Integer> numEditorPicks = awaitAll(askAll(shard -> shard::getNumEditorPicks));
+		int rangePicks = numEditorPicks.stream().mapToInt(Integer::intValue).sum();
+
+		// Choose which of all the picks to return, and let every shard sample
+		// as many of its own picks as were chosen from its range.
+		List<Integer> numChosen = new ArrayList<>(numEditorPicks);
+
+		if (rangePicks > numBooks) {
+			Set<Integer> chosen = new HashSet<>();
+			ThreadLocalRandom rand = ThreadLocalRandom.current();
+
+			for (int j = rangePicks - numBooks; j < rangePicks; j++) {
+				int index = rand.nextInt(j + 1);
+				chosen.add(chosen.contains(index) ? j : index);
+			}
+
+			for (int i = 0; i < shards.length; i++) {
+				numChosen.set(i, 0);
+			}
+
+			for (int index : chosen) {
+				int i = 0;
+
+				while (index >= numEditorPicks.get(i)) {
+					index -= numEditorPicks.get(i++);
+				}
+
+				numChosen.set(i, numChosen.get(i) + 1);
+			}
+		}
+
+		List<CompletableFuture<List<Book>>> results = new ArrayList<>(shards.length);
+
+		for (int i = 0; i < shards.length; i++) {
+			BookShard shard = shards[i];
+			int numShardBooks = numChosen.get(i);
+			results.add(numShardBooks == 0 ? null : shard.ask(() -> shard.getEditorPicks(numShardBooks)));
+		}
+
+		List<Book> editorPicks = new ArrayList<>(Math.min(numBooks, rangePicks));
+
+		for (List<Book> shardPicks : awaitAll(results)) {
+			if (shardPicks != null) {
+				editorPicks.addAll(shardPicks);
+			}
+		}
+
+		return editorPicks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// The best books overall are among the best books of each shard.
+		List<StockBook> candidates = new ArrayList<>();
+
+		for (List<StockBook> shardBooks : awaitAll(askAll(shard -> () -> shard.getTopRatedBooks(numBooks)))) {
+			candidates.addAll(shardBooks);
+		}
+
+		return candidates.stream()
+				.sorted(RATING_ORDER)
+				.limit(numBooks)
+				.map(book -> new ImmutableBook(book.getISBN(), book.getTitle(), book.getAuthor(), book.getPrice()))
+				.collect(Collectors.toList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		List<StockBook> booksInDemand = new ArrayList<>();
+
+		for (List<StockBook> shardBooks : awaitAll(askAll(shard -> shard::getBooksInDemand))) {
+			booksInDemand.addAll(shardBooks);
+		}
+
+		return booksInDemand;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (BookRating rating : bookRating) {
+			validateISBN(rating.getISBN());
+
+			if (BookStoreUtility.isInvalidRating(rating.getRating())) {
+				throw new BookStoreException(BookStoreConstants.RATING + rating.getRating() + BookStoreConstants.INVALID);
+			}
+		}
+
+		storeLock.readLock().lock();
+
+		try {
+			checkThenApply(partition(bookRating, BookRating::getISBN),
+					(shard, part) -> () -> {
+						shard.checkInStock(part.stream().map(BookRating::getISBN).collect(Collectors.toList()));
+						return null;
+					},
+					(shard, part) -> () -> shard.rateBooks(part));
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksWithLeastCopies(int)
+	 */
+	@Override
+	public List<StockBook> getBooksWithLeastCopies(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// The books with the least copies overall are among those of each shard.
+		List<StockBook> candidates = new ArrayList<>();
+
+		for (List<StockBook> shardBooks : awaitAll(askAll(shard -> () -> shard.getBooksWithLeastCopies(numBooks)))) {
+			candidates.addAll(shardBooks);
+		}
+
+		return candidates.stream()
+				.sorted(COPIES_ORDER)
+				.limit(numBooks)
+				.collect(Collectors.toList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#
+	 * restockBooksWithLeastCopies(int, int)
+	 */
+	@Override
+	public List<StockBook> restockBooksWithLeastCopies(int numBooks, int numCopies) throws BookStoreException {
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+
+		// The exclusive store lock keeps every other update out between
+		// finding the books on the shards and restocking them.
+		storeLock.writeLock().lock();
+
+		try {
+			List<Integer> isbns = new ArrayList<>();
+			List<BookCopy> bookCopies = new ArrayList<>();
+
+			for (StockBook book : getBooksWithLeastCopies(numBooks)) {
+				isbns.add(book.getISBN());
+				bookCopies.add(new BookCopy(book.getISBN(), numCopies));
+			}
+
+			awaitAll(askEach(partition(bookCopies, BookCopy::getISBN), (shard, part) -> () -> shard.addCopies(part)));
+			return inOrder(isbns, awaitAll(askEach(partition(isbns, Integer::intValue),
+					(shard, part) -> () -> shard.getStockBooks(part))));
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	@Override
+	public void removeAllBooks() throws BookStoreException {
+		storeLock.writeLock().lock();
+
+		try {
+			awaitAll(askAll(shard -> shard::removeAllBooks));
+			changeLog.removedAll();
+			backorders.cancelAll();
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	@Override
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (Integer ISBN : isbnSet) {
+			validateISBN(ISBN);
+		}
+
+		storeLock.writeLock().lock();
+
+		try {
+			checkThenApply(partition(isbnSet, Integer::intValue),
+					(shard, part) -> () -> {
+						shard.checkInStock(part);
+						return null;
+					},
+					(shard, part) -> () -> shard.removeBooks(part));
+
+			for (int isbn : isbnSet) {
+				changeLog.removed(isbn);
+				backorders.cancel(isbn);
+			}
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#runBatch(java.util.
+	 * List, boolean)
+	 */
+	@Override
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException {
+		if (!atomic) {
+			return BookStoreBatch.run(this, this, operations);
+		}
+
+		// The updates take the shared store lock before asking the shards, so
+		// the exclusive one keeps them from the check to the end of the batch.
+		storeLock.writeLock().lock();
+
+		try {
+			return BookStoreBatch.runAtomically(this, this, backorders, operations);
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#callProcedure(java.lang.
+	 * String, java.lang.Object[])
+	 */
+	@Override
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException {
+		return BookStoreProcedures.call(this, this, name, arguments);
+	}
+}
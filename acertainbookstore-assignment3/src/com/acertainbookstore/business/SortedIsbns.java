@@ -0,0 +1,53 @@
+package com.acertainbookstore.business;
+
+import java.util.Arrays;
+
+/**
+ * {@link SortedIsbns} holds the ISBNs of a set of books in ascending order, so
+ * that the books can be walked in ISBN order one page at a time. It is built
+ * from the key array of an open addressing table, cf. {@link BookMap} and
+ * {@link OffHeapBookTable}, which cache it until their ISBNs change.
+ * 
+ * Instances are immutable.
+ */
+final class SortedIsbns {
+
+	/** The ISBNs in ascending order. */
+	private final int[] isbns;
+
+	/**
+	 * Instantiates a new {@link SortedIsbns} from the keys of a table.
+	 *
+	 * @param keys
+	 *            the keys of the table, zero for unused entries
+	 * @param size
+	 *            the number of used entries
+	 */
+	SortedIsbns(int[] keys, int size) {
+		isbns = new int[size];
+		int count = 0;
+
+		for (int key : keys) {
+			if (key != 0) {
+				isbns[count++] = key;
+			}
+		}
+
+		Arrays.sort(isbns);
+	}
+
+	/**
+	 * Gets the ISBNs greater than <code>isbn</code>, in ascending order.
+	 *
+	 * @param isbn
+	 *            the ISBN to start after
+	 * @param maxIsbns
+	 *            the maximum number of ISBNs
+	 * @return the ISBNs
+	 */
+	int[] after(int isbn, int maxIsbns) {
+		int from = Arrays.binarySearch(isbns, isbn);
+		from = from < 0 ? -from - 1 : from + 1;
+		return Arrays.copyOfRange(isbns, from, from + Math.min(maxIsbns, isbns.length - from));
+	}
+}
@@ -0,0 +1,120 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link StockBookPage} is one page of the books in the bookstore listed in
+ * ISBN order, cf.
+ * {@link com.acertainbookstore.interfaces.StockManager#getBooksPage(int, String)}.
+ * It carries the continuation token to request the next page with, which is
+ * null on the last page. Clients must treat the token as opaque.
+ */
+public final class StockBookPage {
+
+	/** The books of the page, in ISBN order. */
+	private final List<StockBook> books;
+
+	/** The token of the next page, or null if this is the last page. */
+	private final String continuationToken;
+
+	/**
+	 * Instantiates a new {@link StockBookPage}.
+	 *
+	 * @param books
+	 *            the books, in ISBN order
+	 * @param continuationToken
+	 *            the token of the next page, or null if this is the last page
+	 */
+	public StockBookPage(List<StockBook> books, String continuationToken) {
+		this.books = books;
+		this.continuationToken = continuationToken;
+	}
+
+	/**
+	 * Gets the books of the page.
+	 *
+	 * @return the books, in ISBN order
+	 */
+	public List<StockBook> getBooks() {
+		return books;
+	}
+
+	/**
+	 * Gets the token to request the next page with.
+	 *
+	 * @return the token, or null if this is the last page
+	 */
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+
+	/**
+	 * Checks that the page size is positive and at most
+	 * {@link BookStoreConstants#MAX_PAGE_SIZE}.
+	 *
+	 * @param pageSize
+	 *            the page size
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	static void validatePageSize(int pageSize) throws BookStoreException {
+		if (pageSize <= 0 || pageSize > BookStoreConstants.MAX_PAGE_SIZE) {
+			throw new BookStoreException(BookStoreConstants.PAGE_SIZE + pageSize + BookStoreConstants.INVALID);
+		}
+	}
+
+	/**
+	 * Gets the ISBN after which the page of the continuation token starts.
+	 *
+	 * @param continuationToken
+	 *            the token, or null for the first page
+	 * @return the ISBN, 0 for the first page
+	 * @throws BookStoreException
+	 *             if the token was not handed out by a book store
+	 */
+	static int isbnAfter(String continuationToken) throws BookStoreException {
+		if (continuationToken == null) {
+			return 0;
+		}
+
+		int isbn;
+
+		try {
+			isbn = Integer.parseInt(continuationToken, Character.MAX_RADIX);
+		} catch (NumberFormatException ex) {
+			isbn = 0;
+		}
+
+		if (isbn <= 0) {
+			throw new BookStoreException(
+					BookStoreConstants.CONTINUATION_TOKEN + continuationToken + BookStoreConstants.INVALID);
+		}
+
+		return isbn;
+	}
+
+	/**
+	 * Makes a page of the first <code>pageSize</code> books. The books must be
+	 * in ISBN order and include the first book after the page, if there is
+	 * one, so that the last page gets no continuation token.
+	 *
+	 * @param books
+	 *            up to <code>pageSize</code> + 1 books, in ISBN order, in a
+	 *            modifiable list
+	 * @param pageSize
+	 *            the page size
+	 * @return the page
+	 */
+	static StockBookPage of(List<StockBook> books, int pageSize) {
+		if (books.size() <= pageSize) {
+			return new StockBookPage(books, null);
+		}
+
+		// Trim in place, a sub list view would be serialized with its parent.
+		books.subList(pageSize, books.size()).clear();
+		return new StockBookPage(books, Integer.toString(books.get(pageSize - 1).getISBN(), Character.MAX_RADIX));
+	}
+}
@@ -0,0 +1,125 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * {@link TopRatedIndex} keeps the rated books of a {@link CertainBookStore}
+ * ordered by decreasing average rating, ties broken by ISBN, so that the top
+ * rated books are found without looking at the rest of the catalog. Books
+ * that were never rated are not in the index.
+ * 
+ * Repositioning a book costs O(log n) and reading the top k books costs
+ * O(k log n); readers take no lock. Callers must not reposition or remove the
+ * same book concurrently. A book is inserted at its new position before it is
+ * removed from the old one, so a reader may meet it twice and skips the
+ * second occurrence.
+ * 
+ * @see CertainBookStore#getTopRatedBooks(int)
+ */
+final class TopRatedIndex {
+
+	/** The order of the entries, best rated first. */
+	private static final Comparator<Entry> ORDER = Comparator.comparingDouble((Entry entry) -> -entry.averageRating)
+			.thenComparingInt(entry -> entry.book.getISBN());
+
+	/** The entries in rating order. */
+	private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>(ORDER);
+
+	/** The entry of each indexed book by ISBN. */
+	private final ConcurrentHashMap<Integer, Entry> indexed = new ConcurrentHashMap<>();
+
+	/**
+	 * An average rating of a book at the time it was indexed.
+	 */
+	private static final class Entry {
+
+		/** The average rating. */
+		private final float averageRating;
+
+		/** The book. */
+		private final BookStoreBook book;
+
+		private Entry(float averageRating, BookStoreBook book) {
+			this.averageRating = averageRating;
+			this.book = book;
+		}
+	}
+
+	/**
+	 * Moves the book to the position of its current average rating, or adds
+	 * it if it was not indexed yet.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	void reposition(BookStoreBook book) {
+		if (book.getNumTimesRated() == 0) {
+			remove(book);
+			return;
+		}
+
+		Entry entry = new Entry(book.getAverageRating(), book);
+		Entry previous = indexed.put(book.getISBN(), entry);
+
+		if (previous == null || ORDER.compare(previous, entry) != 0) {
+			entries.add(entry);
+
+			if (previous != null) {
+				entries.remove(previous);
+			}
+		}
+	}
+
+	/**
+	 * Removes the book from the index, if it is there.
+	 *
+	 * @param book
+	 *            the book
+	 */
+	void remove(BookStoreBook book) {
+		Entry previous = indexed.remove(book.getISBN());
+
+		if (previous != null) {
+			entries.remove(previous);
+		}
+	}
+
+	/**
+	 * Removes all the books.
+	 */
+	void clear() {
+		indexed.clear();
+		entries.clear();
+	}
+
+	/**
+	 * Gets the <code>numBooks</code> best rated books, or all the rated books
+	 * if there are not that many.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the books, best rated first
+	 */
+	List<Book> top(int numBooks) {
+		List<Book> topRated = new ArrayList<>(Math.min(numBooks, indexed.size()));
+		Set<Integer> seen = new HashSet<>();
+
+		for (Entry entry : entries) {
+			if (topRated.size() >= numBooks) {
+				break;
+			}
+
+			if (seen.add(entry.book.getISBN())) {
+				topRated.add(entry.book.immutableBook());
+			}
+		}
+
+		return topRated;
+	}
+}
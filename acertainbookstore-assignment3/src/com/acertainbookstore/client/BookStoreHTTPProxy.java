@@ -8,9 +8,12 @@ import java.util.Set;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import com.acertainbookstore.business.BackorderStatus;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreOperation;
+import com.acertainbookstore.business.PurchaseResult;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
@@ -26,6 +29,12 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * {@link BookStoreHTTPProxy} implements the client level synchronous
  * {@link CertainBookStore} API declared in the {@link BookStore} class.
  * 
+ * The calls that change the store also take an idempotency key, so that a
+ * call retried with the same key, e.g. after a timeout, is applied once and
+ * answered with the first response, cf.
+ * {@link BookStoreConstants#IDEMPOTENCY_KEY_TTL_MILLIS}. A key is meant for
+ * one call and its retries, e.g. a random UUID per call.
+ * 
  * @see BookStore
  * @see CertainBookStore
  */
@@ -97,8 +106,228 @@ public class BookStoreHTTPProxy implements BookStore {
 	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
 	 */
 	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
+		buyBooks(isbnSet, null);
+	}
+
+	/**
+	 * Buys the books, cf. {@link #buyBooks(Set)}, with an idempotency key.
+	 *
+	 * @param isbnSet
+	 *            the books to buy
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void buyBooks(Set<BookCopy> isbnSet, String idempotencyKey) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet, idempotencyKey);
+		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#tryBuyBooks(java.util.Set)
+	 */
+	public PurchaseResult tryBuyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
+		return tryBuyBooks(isbnSet, null);
+	}
+
+	/**
+	 * Tries to buy the books, cf. {@link #tryBuyBooks(Set)}, with an
+	 * idempotency key.
+	 *
+	 * @param isbnSet
+	 *            the books to buy
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the result of the purchase
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public PurchaseResult tryBuyBooks(Set<BookCopy> isbnSet, String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.TRYBUYBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet, idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (PurchaseResult) bookStoreResponse.getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#buyAvailableBooks(java.util.
+	 * Set)
+	 */
+	public PurchaseResult buyAvailableBooks(Set<BookCopy> isbnSet) throws BookStoreException {
+		return buyAvailableBooks(isbnSet, null);
+	}
+
+	/**
+	 * Buys the copies available of the books, cf. {@link
+	 * #buyAvailableBooks(Set)}, with an idempotency key.
+	 *
+	 * @param isbnSet
+	 *            the books to buy
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the copies bought and missed of each book
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public PurchaseResult buyAvailableBooks(Set<BookCopy> isbnSet, String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYAVAILABLEBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet, idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (PurchaseResult) bookStoreResponse.getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#placeBackorder(com.
+	 * acertainbookstore.business.BookCopy)
+	 */
+	public long placeBackorder(BookCopy bookCopy) throws BookStoreException {
+		return placeBackorder(bookCopy, null);
+	}
+
+	/**
+	 * Places a backorder, cf. {@link #placeBackorder(BookCopy)}, with an
+	 * idempotency key.
+	 *
+	 * @param bookCopy
+	 *            the book and number of copies
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the id of the backorder
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public long placeBackorder(BookCopy bookCopy, String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.PLACEBACKORDER;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopy, idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (Long) bookStoreResponse.getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBackorder(long,
+	 * long)
+	 */
+	public BackorderStatus awaitBackorder(long backorderId, long timeoutMillis) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.AWAITBACKORDER + "?"
+				+ BookStoreConstants.BACKORDER_PARAM + "="
+				+ URLEncoder.encode(Long.toString(backorderId), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.TIMEOUT_PARAM + "="
+				+ URLEncoder.encode(Long.toString(timeoutMillis), StandardCharsets.UTF_8);
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (BackorderStatus) bookStoreResponse.getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
+	 */
+	public long reserveBooks(Set<BookCopy> bookCopiesToHold, long ttlMillis) throws BookStoreException {
+		return reserveBooks(bookCopiesToHold, ttlMillis, null);
+	}
+
+	/**
+	 * Holds copies of the books, cf. {@link #reserveBooks(Set, long)}, with an
+	 * idempotency key.
+	 *
+	 * @param bookCopiesToHold
+	 *            the book copies to hold
+	 * @param ttlMillis
+	 *            the time to live in milliseconds
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the id of the hold
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public long reserveBooks(Set<BookCopy> bookCopiesToHold, long ttlMillis, String idempotencyKey)
+			throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RESERVEBOOKS + "?"
+				+ BookStoreConstants.TTL_PARAM + "="
+				+ URLEncoder.encode(Long.toString(ttlMillis), StandardCharsets.UTF_8);
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesToHold,
+				idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (Long) bookStoreResponse.getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#confirmHold(long)
+	 */
+	public void confirmHold(long holdId) throws BookStoreException {
+		confirmHold(holdId, null);
+	}
+
+	/**
+	 * Confirms a hold, cf. {@link #confirmHold(long)}, with an idempotency key.
+	 *
+	 * @param holdId
+	 *            the id of the hold
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void confirmHold(long holdId, String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.CONFIRMHOLD + "?"
+				+ BookStoreConstants.HOLD_PARAM + "="
+				+ URLEncoder.encode(Long.toString(holdId), StandardCharsets.UTF_8);
+
+		// The parameters are in the URL, the body is empty.
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "", idempotencyKey);
+		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#cancelHold(long)
+	 */
+	public void cancelHold(long holdId) throws BookStoreException {
+		cancelHold(holdId, null);
+	}
+
+	/**
+	 * Cancels a hold, cf. {@link #cancelHold(long)}, with an idempotency key.
+	 *
+	 * @param holdId
+	 *            the id of the hold
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void cancelHold(long holdId, String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.CANCELHOLD + "?"
+				+ BookStoreConstants.HOLD_PARAM + "="
+				+ URLEncoder.encode(Long.toString(holdId), StandardCharsets.UTF_8);
+
+		// The parameters are in the URL, the body is empty.
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "", idempotencyKey);
 		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
 	}
 
@@ -136,6 +365,77 @@ public class BookStoreHTTPProxy implements BookStore {
 		return (List<Book>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#runBatch(java.util.
+	 * List, boolean)
+	 */
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException {
+		return runBatch(operations, atomic, null);
+	}
+
+	/**
+	 * Runs the operations as a batch, cf. {@link #runBatch(List, boolean)},
+	 * with an idempotency key.
+	 *
+	 * @param operations
+	 *            the operations
+	 * @param atomic
+	 *            whether the batch is run atomically
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the response of each operation, in order
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic,
+			String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BATCH + "?" + BookStoreConstants.ATOMIC_PARAM
+				+ "=" + atomic;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, operations, idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<BookStoreResponse>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#callProcedure(java.lang.
+	 * String, java.lang.Object[])
+	 */
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException {
+		return callProcedure(name, arguments, null);
+	}
+
+	/**
+	 * Calls a procedure, cf. {@link #callProcedure(String, Object...)}, with
+	 * an idempotency key.
+	 *
+	 * @param name
+	 *            the name of the procedure
+	 * @param arguments
+	 *            the arguments of the procedure
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the result of the procedure
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public Object callProcedure(String name, Object[] arguments, String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.CALLPROCEDURE + "?"
+				+ BookStoreConstants.PROCEDURE_PARAM + "="
+				+ URLEncoder.encode(String.valueOf(name), StandardCharsets.UTF_8);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, arguments, idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return bookStoreResponse.getResult();
+	}
+
 	/**
 	 * Stops the proxy.
 	 */
@@ -152,9 +452,24 @@ public class BookStoreHTTPProxy implements BookStore {
 	 * 
 	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
 	 */
-	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		throw new BookStoreException();
+		rateBooks(bookRating, null);
+	}
+
+	/**
+	 * Rates the books, cf. {@link #rateBooks(Set)}, with an idempotency key.
+	 *
+	 * @param bookRating
+	 *            the book ratings
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void rateBooks(Set<BookRating> bookRating, String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RATEBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookRating, idempotencyKey);
+		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
 	}
 
 	/*
@@ -162,8 +477,18 @@ public class BookStoreHTTPProxy implements BookStore {
 	 * 
 	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
 	 */
-	@Override
+	@SuppressWarnings("unchecked")
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		throw new BookStoreException();
+		String urlEncodedNumBooks = null;
+
+		urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETTOPRATEDBOOKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<Book>) bookStoreResponse.getList();
 	}
 }
@@ -1,14 +1,19 @@
 package com.acertainbookstore.client;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Set;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import com.acertainbookstore.business.BookChanges;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookStoreOperation;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.StockBookPage;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.acertainbookstore.utils.BookStoreXStreamSerializer;
@@ -25,6 +30,12 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * {@link CertainBookStore} API declared in the {@link StockManager} class. Uses
  * the HTTP protocol for communication with the server.
  * 
+ * The calls that change the store also take an idempotency key, so that a
+ * call retried with the same key, e.g. after a timeout, is applied once and
+ * answered with the first response, cf.
+ * {@link BookStoreConstants#IDEMPOTENCY_KEY_TTL_MILLIS}. A key is meant for
+ * one call and its retries, e.g. a random UUID per call.
+ * 
  * @see CertainBookStore
  * @see StockManager
  */
@@ -97,8 +108,22 @@ public class StockManagerHTTPProxy implements StockManager {
 	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
 	 */
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		addBooks(bookSet, null);
+	}
+
+	/**
+	 * Adds the books, cf. {@link #addBooks(Set)}, with an idempotency key.
+	 *
+	 * @param bookSet
+	 *            the books to add
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void addBooks(Set<StockBook> bookSet, String idempotencyKey) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookSet);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookSet, idempotencyKey);
 		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
 	}
 
@@ -109,8 +134,23 @@ public class StockManagerHTTPProxy implements StockManager {
 	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
 	 */
 	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		addCopies(bookCopiesSet, null);
+	}
+
+	/**
+	 * Adds copies of the books, cf. {@link #addCopies(Set)}, with an
+	 * idempotency key.
+	 *
+	 * @param bookCopiesSet
+	 *            the copies to add
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet, String idempotencyKey) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesSet);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesSet, idempotencyKey);
 		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
 	}
 
@@ -128,6 +168,101 @@ public class StockManagerHTTPProxy implements StockManager {
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksPage(int,
+	 * java.lang.String)
+	 */
+	public StockBookPage getBooksPage(int pageSize, String continuationToken) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKSPAGE + "?"
+				+ BookStoreConstants.PAGE_SIZE_PARAM + "="
+				+ URLEncoder.encode(Integer.toString(pageSize), StandardCharsets.UTF_8);
+
+		if (continuationToken != null) {
+			urlString += "&" + BookStoreConstants.CONTINUATION_TOKEN_PARAM + "="
+					+ URLEncoder.encode(continuationToken, StandardCharsets.UTF_8);
+		}
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (StockBookPage) bookStoreResponse.getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKSCHANGED + "?"
+				+ BookStoreConstants.VERSION_PARAM + "="
+				+ URLEncoder.encode(Long.toString(version), StandardCharsets.UTF_8);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (BookChanges) bookStoreResponse.getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksWithLeastCopies(int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooksWithLeastCopies(int numBooks) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSWITHLEASTCOPIES + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<StockBook>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#
+	 * restockBooksWithLeastCopies(int, int)
+	 */
+	public List<StockBook> restockBooksWithLeastCopies(int numBooks, int numCopies) throws BookStoreException {
+		return restockBooksWithLeastCopies(numBooks, numCopies, null);
+	}
+
+	/**
+	 * Restocks the books with the least copies, cf. {@link
+	 * #restockBooksWithLeastCopies(int, int)}, with an idempotency key.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @param numCopies
+	 *            the number of copies added to each
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the books restocked
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> restockBooksWithLeastCopies(int numBooks, int numCopies, String idempotencyKey)
+			throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RESTOCKBOOKSWITHLEASTCOPIES + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.BOOK_COPIES_PARAM + "="
+				+ URLEncoder.encode(Integer.toString(numCopies), StandardCharsets.UTF_8);
+
+		// The parameters are in the URL, the body is empty.
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "", idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<StockBook>) bookStoreResponse.getList();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -136,8 +271,25 @@ public class StockManagerHTTPProxy implements StockManager {
 	 * .Set)
 	 */
 	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues) throws BookStoreException {
+		updateEditorPicks(editorPicksValues, null);
+	}
+
+	/**
+	 * Updates the editor picks, cf. {@link #updateEditorPicks(Set)}, with an
+	 * idempotency key.
+	 *
+	 * @param editorPicksValues
+	 *            the editor picks
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues, String idempotencyKey)
+			throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.UPDATEEDITORPICKS + "?";
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, editorPicksValues);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, editorPicksValues,
+				idempotencyKey);
 		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
 	}
 
@@ -146,9 +298,13 @@ public class StockManagerHTTPProxy implements StockManager {
 	 * 
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
 	 */
-	@Override
+	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSINDEMAND;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
 	/*
@@ -157,12 +313,25 @@ public class StockManagerHTTPProxy implements StockManager {
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
 	public void removeAllBooks() throws BookStoreException {
+		removeAllBooks(null);
+	}
+
+	/**
+	 * Removes all the books, cf. {@link #removeAllBooks()}, with an idempotency
+	 * key.
+	 *
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void removeAllBooks(String idempotencyKey) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEALLBOOKS;
 
 		// Creating zero-length buffer for POST request body, because we don't
 		// need to send any data; this request is just a signal to remove all
 		// books.
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "");
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "", idempotencyKey);
 		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
 	}
 
@@ -173,8 +342,23 @@ public class StockManagerHTTPProxy implements StockManager {
 	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
 	 */
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		removeBooks(isbnSet, null);
+	}
+
+	/**
+	 * Removes the books, cf. {@link #removeBooks(Set)}, with an idempotency
+	 * key.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs of the books to remove
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void removeBooks(Set<Integer> isbnSet, String idempotencyKey) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet, idempotencyKey);
 		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
 	}
 
@@ -194,6 +378,77 @@ public class StockManagerHTTPProxy implements StockManager {
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#runBatch(java.util.
+	 * List, boolean)
+	 */
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException {
+		return runBatch(operations, atomic, null);
+	}
+
+	/**
+	 * Runs the operations as a batch, cf. {@link #runBatch(List, boolean)},
+	 * with an idempotency key.
+	 *
+	 * @param operations
+	 *            the operations
+	 * @param atomic
+	 *            whether the batch is run atomically
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the response of each operation, in order
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic,
+			String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BATCH + "?" + BookStoreConstants.ATOMIC_PARAM
+				+ "=" + atomic;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, operations, idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<BookStoreResponse>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#callProcedure(java.lang.
+	 * String, java.lang.Object[])
+	 */
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException {
+		return callProcedure(name, arguments, null);
+	}
+
+	/**
+	 * Calls a procedure, cf. {@link #callProcedure(String, Object...)}, with
+	 * an idempotency key.
+	 *
+	 * @param name
+	 *            the name of the procedure
+	 * @param arguments
+	 *            the arguments of the procedure
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the result of the procedure
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public Object callProcedure(String name, Object[] arguments, String idempotencyKey) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.CALLPROCEDURE + "?"
+				+ BookStoreConstants.PROCEDURE_PARAM + "="
+				+ URLEncoder.encode(String.valueOf(name), StandardCharsets.UTF_8);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, arguments, idempotencyKey);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return bookStoreResponse.getResult();
+	}
+
 	/**
 	 * Stops the proxy.
 	 */
@@ -2,9 +2,15 @@ package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -12,10 +18,13 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.acertainbookstore.business.BackorderStatus;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
-import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreOperation;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.PurchaseResult;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
@@ -23,6 +32,9 @@ import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link BookStoreTest} tests the {@link BookStore} interface.
@@ -56,9 +68,8 @@ public class BookStoreTest {
 			localTest = (localTestProperty != null) ? Boolean.parseBoolean(localTestProperty) : localTest;
 
 			if (localTest) {
-				CertainBookStore store = new CertainBookStore();
-				storeManager = store;
-				client = store;
+				client = BookStoreUtility.newLocalStore();
+				storeManager = (StockManager) client;
 			} else {
 				storeManager = new StockManagerHTTPProxy("http://localhost:8081/stock");
 				client = new BookStoreHTTPProxy("http://localhost:8081");
@@ -151,6 +162,248 @@ public class BookStoreTest {
 				&& bookInList.isEditorPick() == addedBook.isEditorPick());
 	}
 
+	/**
+	 * Tests that a purchase returns the books it was short of instead of
+	 * throwing, and that an invalid order still throws.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testTryBuyBooks() throws BookStoreException {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 2));
+
+		PurchaseResult result = client.tryBuyBooks(booksToBuy);
+		assertFalse(result.isBought());
+		assertEquals(1, result.getMissedCopies().size());
+		assertEquals(TEST_ISBN, result.getMissedCopies().get(0).getISBN());
+		assertEquals(2, result.getMissedCopies().get(0).getNumCopies());
+
+		StockBook book = storeManager.getBooks().get(0);
+		assertEquals(NUM_COPIES, book.getNumCopies());
+		assertEquals(2, book.getNumSaleMisses());
+
+		booksToBuy.clear();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+
+		result = client.tryBuyBooks(booksToBuy);
+		assertTrue(result.isBought());
+		assertTrue(result.getMissedCopies().isEmpty());
+		assertEquals(0, storeManager.getBooks().get(0).getNumCopies());
+
+		booksToBuy.add(new BookCopy(-1, 1));
+
+		try {
+			client.tryBuyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that a partial purchase buys the copies available and records the
+	 * rest as a sale miss.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testBuyAvailableBooks() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 300, NUM_COPIES, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 2));
+		booksToBuy.add(new BookCopy(TEST_ISBN + 1, 1));
+
+		PurchaseResult result = client.buyAvailableBooks(booksToBuy);
+		assertFalse(result.isBought());
+		assertEquals(2, result.getBoughtCopies().size());
+		assertEquals(1, result.getMissedCopies().size());
+		assertEquals(TEST_ISBN, result.getMissedCopies().get(0).getISBN());
+		assertEquals(2, result.getMissedCopies().get(0).getNumCopies());
+
+		for (BookCopy boughtCopy : result.getBoughtCopies()) {
+			assertEquals(boughtCopy.getISBN() == TEST_ISBN ? NUM_COPIES : 1, boughtCopy.getNumCopies());
+		}
+
+		for (StockBook book : storeManager.getBooks()) {
+			if (book.getISBN() == TEST_ISBN) {
+				assertEquals(0, book.getNumCopies());
+				assertEquals(2, book.getNumSaleMisses());
+			} else {
+				assertEquals(NUM_COPIES - 1, book.getNumCopies());
+				assertEquals(0, book.getNumSaleMisses());
+			}
+		}
+
+		booksToBuy.add(new BookCopy(-1, 1));
+
+		try {
+			client.buyAvailableBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(NUM_COPIES - 1, storeManager.getBooks().stream().mapToInt(StockBook::getNumCopies).sum());
+	}
+
+	/**
+	 * Tests that backorders are filled in order when copies are added, that a
+	 * client waiting for one is woken up, and that removing the book cancels
+	 * them. An atomic batch sees the backorders, but may not wait on them.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBackorders() throws Exception {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+		client.buyBooks(booksToBuy);
+
+		long firstBackorder = client.placeBackorder(new BookCopy(TEST_ISBN, 2));
+		long secondBackorder = client.placeBackorder(new BookCopy(TEST_ISBN, 1));
+		assertEquals(BackorderStatus.PENDING, client.awaitBackorder(firstBackorder, 0));
+
+		Set<BookCopy> copiesToAdd = new HashSet<BookCopy>();
+		copiesToAdd.add(new BookCopy(TEST_ISBN, 2));
+		storeManager.addCopies(copiesToAdd);
+
+		// The first backorder took the copies, the second one still waits.
+		assertEquals(BackorderStatus.FULFILLED, client.awaitBackorder(firstBackorder, 0));
+		assertEquals(BackorderStatus.PENDING, client.awaitBackorder(secondBackorder, 0));
+		assertEquals(0, storeManager.getBooks().get(0).getNumCopies());
+
+		Thread restocker = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+				storeManager.addCopies(copiesToAdd);
+			} catch (Exception ex) {
+				;
+			}
+		});
+		restocker.start();
+
+		assertEquals(BackorderStatus.FULFILLED, client.awaitBackorder(secondBackorder, 10000));
+		restocker.join();
+		assertEquals(1, storeManager.getBooks().get(0).getNumCopies());
+
+		long thirdBackorder = client.placeBackorder(new BookCopy(TEST_ISBN, 2));
+		Set<BookCopy> copyToAdd = new HashSet<BookCopy>();
+		copyToAdd.add(new BookCopy(TEST_ISBN, 1));
+		Set<BookCopy> copyToBuy = new HashSet<BookCopy>();
+		copyToBuy.add(new BookCopy(TEST_ISBN, 1));
+
+		// The added copy fills the backorder, so none is left to buy and the
+		// atomic batch does nothing.
+		List<BookStoreOperation> operations = new ArrayList<BookStoreOperation>();
+		operations.add(new BookStoreOperation(BookStoreMessageTag.ADDCOPIES, copyToAdd));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.BUYBOOKS, copyToBuy));
+		List<BookStoreResponse> responses = storeManager.runBatch(operations, true);
+		assertNotNull(responses.get(0).getException());
+		assertNotNull(responses.get(1).getException());
+		assertEquals(BackorderStatus.PENDING, client.awaitBackorder(thirdBackorder, 0));
+		assertEquals(1, storeManager.getBooks().get(0).getNumCopies());
+
+		operations.clear();
+		operations.add(new BookStoreOperation(BookStoreMessageTag.AWAITBACKORDER, thirdBackorder, 0L));
+		responses = client.runBatch(operations, true);
+		assertNotNull(responses.get(0).getException());
+
+		storeManager.removeAllBooks();
+		assertEquals(BackorderStatus.CANCELLED, client.awaitBackorder(thirdBackorder, 0));
+
+		try {
+			client.awaitBackorder(-1, 0);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that held copies are out of stock until the hold is confirmed,
+	 * cancelled or expires, and that a hold is settled only once.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReserveBooks() throws Exception {
+		Set<BookCopy> booksToHold = new HashSet<BookCopy>();
+		booksToHold.add(new BookCopy(TEST_ISBN, 2));
+
+		long confirmedHold = client.reserveBooks(booksToHold, 60000);
+		assertEquals(NUM_COPIES - 2, storeManager.getBooks().get(0).getNumCopies());
+		client.confirmHold(confirmedHold);
+		assertEquals(NUM_COPIES - 2, storeManager.getBooks().get(0).getNumCopies());
+
+		long cancelledHold = client.reserveBooks(booksToHold, 60000);
+		assertEquals(NUM_COPIES - 4, storeManager.getBooks().get(0).getNumCopies());
+		client.cancelHold(cancelledHold);
+		assertEquals(NUM_COPIES - 2, storeManager.getBooks().get(0).getNumCopies());
+
+		for (long settledHold : new long[] { confirmedHold, cancelledHold }) {
+			try {
+				client.cancelHold(settledHold);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+		}
+
+		// An expired hold gives its copies back and can no longer be confirmed.
+		long expiredHold = client.reserveBooks(booksToHold, 50);
+		long deadline = System.currentTimeMillis() + 10000;
+
+		while (storeManager.getBooks().get(0).getNumCopies() != NUM_COPIES - 2
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(NUM_COPIES - 2, storeManager.getBooks().get(0).getNumCopies());
+
+		try {
+			client.confirmHold(expiredHold);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		// Holds are all or nothing, and their time to live is bounded.
+		booksToHold.clear();
+		booksToHold.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+
+		for (long ttlMillis : new long[] { 60000, 0 }) {
+			try {
+				client.reserveBooks(booksToHold, ttlMillis);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+		}
+
+		// A hold that could not be placed is not a sale miss.
+		assertEquals(NUM_COPIES - 2, storeManager.getBooks().get(0).getNumCopies());
+		assertEquals(0, storeManager.getBooks().get(0).getNumSaleMisses());
+
+		// The copies of a removed book are not given to a book added again
+		// with its ISBN.
+		booksToHold.clear();
+		booksToHold.add(new BookCopy(TEST_ISBN, 2));
+		long removedHold = client.reserveBooks(booksToHold, 60000);
+		storeManager.removeAllBooks();
+		addBooks(TEST_ISBN, NUM_COPIES);
+		client.cancelHold(removedHold);
+		assertEquals(NUM_COPIES, storeManager.getBooks().get(0).getNumCopies());
+	}
+
 	/**
 	 * Tests that books with invalid ISBNs cannot be bought.
 	 *
@@ -319,6 +572,479 @@ public class BookStoreTest {
 		assertTrue(books.containsAll(booksToAdd) && books.size() == booksToAdd.size());
 	}
 
+	/**
+	 * Tests that the top rated books come best rated first, leave out unrated
+	 * books and follow removals.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetTopRatedBooks() throws BookStoreException {
+		StockBook goodBook = new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 300, NUM_COPIES, 0, 2, 8, false);
+		StockBook averageBook = new ImmutableStockBook(TEST_ISBN + 2, "The C Programming Language",
+				"Dennis Ritchie and Brian Kerninghan", (float) 50, NUM_COPIES, 0, 4, 10, false);
+		StockBook bestBook = new ImmutableStockBook(TEST_ISBN + 3, "Structure and Interpretation of Computer Programs",
+				"Harold Abelson and Gerald Jay Sussman", (float) 40, NUM_COPIES, 0, 1, 5, false);
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(goodBook);
+		booksToAdd.add(averageBook);
+		booksToAdd.add(bestBook);
+		storeManager.addBooks(booksToAdd);
+
+		List<Book> topRated = client.getTopRatedBooks(2);
+		assertEquals(2, topRated.size());
+		assertTrue(topRated.get(0).equals(bestBook) && topRated.get(1).equals(goodBook));
+
+		// The default book was never rated.
+		assertEquals(3, client.getTopRatedBooks(10).size());
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN + 3);
+		storeManager.removeBooks(isbnSet);
+
+		topRated = client.getTopRatedBooks(1);
+		assertEquals(1, topRated.size());
+		assertTrue(topRated.get(0).equals(goodBook));
+
+		try {
+			client.getTopRatedBooks(-1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that ratings are accumulated, move books in the top rated books,
+	 * and are rejected as a whole if any of them is invalid.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testRateBooks() throws BookStoreException {
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 4));
+		ratings.add(new BookRating(TEST_ISBN + 1, 3));
+		client.rateBooks(ratings);
+
+		ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 2));
+		ratings.add(new BookRating(TEST_ISBN + 1, 5));
+		client.rateBooks(ratings);
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		StockBook defaultBook = storeManager.getBooksByISBN(isbnSet).get(0);
+		assertEquals(2, defaultBook.getNumTimesRated());
+		assertEquals(6, defaultBook.getTotalRating());
+		assertEquals(3.0f, defaultBook.getAverageRating(), BookStoreConstants.EPSILON);
+		assertEquals(TEST_ISBN + 1, client.getTopRatedBooks(1).get(0).getISBN());
+
+		// One invalid rating rejects the whole set.
+		ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 5));
+		ratings.add(new BookRating(TEST_ISBN + 1, 6));
+
+		try {
+			client.rateBooks(ratings);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 5));
+		ratings.add(new BookRating(-1, 5));
+
+		try {
+			client.rateBooks(ratings);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		defaultBook = storeManager.getBooksByISBN(isbnSet).get(0);
+		assertEquals(2, defaultBook.getNumTimesRated());
+		assertEquals(6, defaultBook.getTotalRating());
+	}
+
+	/**
+	 * Tests that reads concurrent with purchases, restocks and ratings of a
+	 * book always see a consistent state of it.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReadsDuringUpdates() throws Exception {
+		final int numReads = localTest ? 20000 : 400;
+
+		Thread rater = new Thread(() -> {
+			Set<BookRating> ratings = new HashSet<BookRating>();
+			ratings.add(new BookRating(TEST_ISBN, 5));
+
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					client.rateBooks(ratings);
+				}
+			} catch (BookStoreException ex) {
+				;
+			}
+		});
+
+		Thread buyer = new Thread(() -> {
+			Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+			bookCopies.add(new BookCopy(TEST_ISBN, 1));
+
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					client.buyBooks(bookCopies);
+					storeManager.addCopies(bookCopies);
+				}
+			} catch (BookStoreException ex) {
+				;
+			}
+		});
+
+		rater.start();
+		buyer.start();
+
+		// Every rating is a 5, so a consistent state has five times as many
+		// rating points as ratings, and the copies are never more than one
+		// short.
+		try {
+			long numTimesRated = 0;
+
+			for (int i = 0; i < numReads; i++) {
+				StockBook defaultBook = storeManager.getBooks().get(0);
+				assertEquals(5 * defaultBook.getNumTimesRated(), defaultBook.getTotalRating());
+				assertTrue(defaultBook.getNumTimesRated() >= numTimesRated);
+				assertTrue(defaultBook.getNumCopies() >= NUM_COPIES - 1 && defaultBook.getNumCopies() <= NUM_COPIES);
+				assertEquals(0, defaultBook.getNumSaleMisses());
+				numTimesRated = defaultBook.getNumTimesRated();
+			}
+		} finally {
+			rater.interrupt();
+			buyer.interrupt();
+			rater.join();
+			buyer.join();
+		}
+	}
+
+	/**
+	 * Tests that concurrent buyers of one hot book sell all its copies and
+	 * that only the purchases after it sold out are sale misses.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBuyHotBookConcurrently() throws Exception {
+		final int numThreads = 4;
+		final int numCopies = localTest ? 10000 : 400;
+		addBooks(TEST_ISBN + 1, numCopies);
+
+		AtomicInteger numBought = new AtomicInteger();
+		Thread[] buyers = new Thread[numThreads];
+
+		for (int i = 0; i < numThreads; i++) {
+			buyers[i] = new Thread(() -> {
+				Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+				booksToBuy.add(new BookCopy(TEST_ISBN + 1, 1));
+
+				// Buy until the first refusal, which must be a sale miss.
+				try {
+					while (true) {
+						client.buyBooks(booksToBuy);
+						numBought.incrementAndGet();
+					}
+				} catch (BookStoreException ex) {
+					;
+				}
+			});
+			buyers[i].start();
+		}
+
+		for (Thread buyer : buyers) {
+			buyer.join();
+		}
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN + 1);
+		StockBook hotBook = storeManager.getBooksByISBN(isbnSet).get(0);
+
+		assertEquals(numCopies, numBought.get());
+		assertEquals(0, hotBook.getNumCopies());
+		assertEquals(numThreads, hotBook.getNumSaleMisses());
+	}
+
+	/**
+	 * Tests that concurrent purchases and restocks of orders spanning several
+	 * books neither lose nor make up copies.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBuyAndRestockConcurrently() throws Exception {
+		final int numBooks = 8;
+		final int numThreads = 4;
+		final int numRounds = localTest ? 5000 : 200;
+
+		for (int i = 1; i <= numBooks; i++) {
+			addBooks(TEST_ISBN + i, NUM_COPIES);
+		}
+
+		AtomicIntegerArray numBought = new AtomicIntegerArray(numBooks + 1);
+		AtomicIntegerArray numAdded = new AtomicIntegerArray(numBooks + 1);
+		AtomicInteger numRoundsDone = new AtomicInteger();
+		Thread[] threads = new Thread[2 * numThreads];
+
+		// Each order spans two books, so the threads meet on every book, and
+		// buyers and restockers of the same pair run side by side.
+		for (int i = 0; i < threads.length; i++) {
+			final boolean restocks = i % 2 == 1;
+			final int seed = i;
+
+			threads[i] = new Thread(() -> {
+				try {
+					for (int j = 0; j < numRounds; j++) {
+						int first = 1 + (seed + j) % numBooks;
+						int second = 1 + (seed + 3 * j + 1) % numBooks;
+
+						if (first == second) {
+							second = 1 + first % numBooks;
+						}
+
+						Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+						bookCopies.add(new BookCopy(TEST_ISBN + first, 1));
+						bookCopies.add(new BookCopy(TEST_ISBN + second, 2));
+
+						if (restocks) {
+							storeManager.addCopies(bookCopies);
+							numAdded.addAndGet(first, 1);
+							numAdded.addAndGet(second, 2);
+						} else if (client.tryBuyBooks(bookCopies).isBought()) {
+							numBought.addAndGet(first, 1);
+							numBought.addAndGet(second, 2);
+						}
+
+						numRoundsDone.incrementAndGet();
+					}
+				} catch (BookStoreException ex) {
+					;
+				}
+			});
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+
+		for (int i = 1; i <= numBooks; i++) {
+			isbnSet.add(TEST_ISBN + i);
+		}
+
+		for (StockBook book : storeManager.getBooksByISBN(isbnSet)) {
+			int i = book.getISBN() - TEST_ISBN;
+			assertEquals(NUM_COPIES + numAdded.get(i) - numBought.get(i), book.getNumCopies());
+		}
+
+		assertEquals(threads.length * numRounds, numRoundsDone.get());
+	}
+
+	/**
+	 * Tests that the updates of each caller are applied in the order it made
+	 * them while other callers update the store concurrently.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testUpdatesOfEachCallerInOrder() throws Exception {
+		final int numThreads = 4;
+		final int numRounds = localTest ? 5000 : 200;
+
+		for (int i = 1; i <= numThreads; i++) {
+			addBooks(TEST_ISBN + i, NUM_COPIES);
+		}
+
+		AtomicInteger numRoundsDone = new AtomicInteger();
+		Thread[] threads = new Thread[numThreads];
+
+		// Each thread sells out its own book and restocks it, so a purchase
+		// applied before the restock made ahead of it would be refused. All
+		// threads also restock and then buy a copy of the default book, so
+		// there are never fewer copies of it than purchases in flight.
+		for (int i = 0; i < numThreads; i++) {
+			Set<BookCopy> ownCopies = new HashSet<BookCopy>();
+			ownCopies.add(new BookCopy(TEST_ISBN + 1 + i, NUM_COPIES));
+
+			threads[i] = new Thread(() -> {
+				Set<BookCopy> sharedCopies = new HashSet<BookCopy>();
+				sharedCopies.add(new BookCopy(TEST_ISBN, 1));
+
+				try {
+					for (int j = 0; j < numRounds; j++) {
+						client.buyBooks(ownCopies);
+						storeManager.addCopies(ownCopies);
+						storeManager.addCopies(sharedCopies);
+						client.buyBooks(sharedCopies);
+						numRoundsDone.incrementAndGet();
+					}
+				} catch (BookStoreException ex) {
+					;
+				}
+			});
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(numThreads * numRounds, numRoundsDone.get());
+
+		for (StockBook book : storeManager.getBooks()) {
+			assertEquals(NUM_COPIES, book.getNumCopies());
+			assertEquals(0, book.getNumSaleMisses());
+		}
+	}
+
+	/**
+	 * Tests that a copy added by one caller is found by a caller it hands off
+	 * to, while other callers keep ordering updates of the same book.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testHandOffCopiesBetweenCallers() throws Exception {
+		final int numRounds = localTest ? 5000 : 200;
+		addBooks(TEST_ISBN + 1, 1);
+		addBooks(TEST_ISBN + 2, NUM_COPIES);
+
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(TEST_ISBN + 1, 1));
+		client.buyBooks(bookCopies);
+
+		BlockingQueue<Integer> handOffs = new LinkedBlockingQueue<Integer>();
+		Thread stocker = new Thread(() -> {
+			try {
+				for (int i = 0; i < numRounds; i++) {
+					storeManager.addCopies(bookCopies);
+					handOffs.put(i);
+				}
+			} catch (BookStoreException | InterruptedException ex) {
+				;
+			}
+		});
+
+		// Orders that conflict with the hand-offs on the book but cannot be
+		// filled, since the other book of these orders is short.
+		Thread[] others = new Thread[2];
+
+		for (int i = 0; i < others.length; i++) {
+			others[i] = new Thread(() -> {
+				Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+				booksToBuy.add(new BookCopy(TEST_ISBN + 1, 1));
+				booksToBuy.add(new BookCopy(TEST_ISBN + 2, NUM_COPIES + 1));
+
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						client.tryBuyBooks(booksToBuy);
+					}
+				} catch (BookStoreException ex) {
+					;
+				}
+			});
+			others[i].start();
+		}
+
+		stocker.start();
+
+		try {
+			for (int i = 0; i < numRounds; i++) {
+				assertNotNull(handOffs.poll(10, TimeUnit.SECONDS));
+				client.buyBooks(bookCopies);
+			}
+		} finally {
+			stocker.interrupt();
+			stocker.join();
+
+			for (Thread other : others) {
+				other.interrupt();
+				other.join();
+			}
+		}
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN + 1);
+		assertEquals(0, storeManager.getBooksByISBN(isbnSet).get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that orders that cannot be filled do not take the copies they
+	 * would buy, so that a concurrent purchase of the last copy finds it.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFailedPurchasesTakeNoCopies() throws Exception {
+		final int numRounds = localTest ? 10000 : 400;
+		addBooks(TEST_ISBN + 1, 1);
+
+		AtomicInteger numMissed = new AtomicInteger();
+		Thread failingBuyer = new Thread(() -> {
+			Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+			booksToBuy.add(new BookCopy(TEST_ISBN + 1, 1));
+			booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					if (!client.tryBuyBooks(booksToBuy).isBought()) {
+						numMissed.incrementAndGet();
+					}
+				}
+			} catch (BookStoreException ex) {
+				;
+			}
+		});
+		failingBuyer.start();
+
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(TEST_ISBN + 1, 1));
+
+		// Each round buys the only copy, which the failing orders never take.
+		try {
+			while (numMissed.get() == 0) {
+				Thread.sleep(1);
+			}
+
+			for (int i = 0; i < numRounds; i++) {
+				client.buyBooks(bookCopies);
+				storeManager.addCopies(bookCopies);
+			}
+		} finally {
+			failingBuyer.interrupt();
+			failingBuyer.join();
+		}
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN + 1);
+		assertEquals(1, storeManager.getBooksByISBN(isbnSet).get(0).getNumCopies());
+	}
+
 	/**
 	 * Tests that books cannot be retrieved if ISBN is invalid.
 	 *
@@ -3,9 +3,12 @@ package com.acertainbookstore.client.tests;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -14,17 +17,23 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookChanges;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
-import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.BookStoreOperation;
+import com.acertainbookstore.business.BookStoreProcedures;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.StockBookPage;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@StockManagerTest} tests the {@link StockManager} interface.
@@ -58,9 +67,8 @@ public class StockManagerTest {
 			localTest = (localTestProperty != null) ? Boolean.parseBoolean(localTestProperty) : localTest;
 			
 			if (localTest) {
-				CertainBookStore store = new CertainBookStore();
-				storeManager = store;
-				client = store;
+				client = BookStoreUtility.newLocalStore();
+				storeManager = (StockManager) client;
 			} else {
 				storeManager = new StockManagerHTTPProxy("http://localhost:8081/stock");
 				client = new BookStoreHTTPProxy("http://localhost:8081");
@@ -384,6 +392,39 @@ public class StockManagerTest {
 		assertTrue(editorPick.equals(defaultBookAdded));
 	}
 
+	/**
+	 * Checks that the editor picks follow the added, updated and removed
+	 * books, and that sampled picks are distinct.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testEditorPicksFollowUpdatesAndRemovals() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 300, NUM_COPIES, 0, 0, 0, true));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "The C Programming Language",
+				"Dennis Ritchie and Brian Kerninghan", (float) 50, NUM_COPIES, 0, 0, 0, true));
+		storeManager.addBooks(booksToAdd);
+		addEditorPick(TEST_ISBN, true);
+
+		// Two of the three picks, drawn without repetition.
+		List<Book> editorPicks = client.getEditorPicks(2);
+		assertEquals(2, editorPicks.size());
+		assertEquals(2, new HashSet<Book>(editorPicks).size());
+
+		// Unpick one book and remove another one.
+		addEditorPick(TEST_ISBN + 1, false);
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN + 2);
+		storeManager.removeBooks(isbnSet);
+
+		editorPicks = client.getEditorPicks(3);
+		assertEquals(1, editorPicks.size());
+		assertTrue(editorPicks.get(0).equals(getDefaultBook()));
+	}
+
 	/**
 	 * Checks that a book can be removed.
 	 *
@@ -428,6 +469,131 @@ public class StockManagerTest {
 		assertTrue(booksInStoreList.containsAll(booksAdded) && booksInStoreList.size() == booksAdded.size());
 	}
 
+	/**
+	 * Tests that books stay reachable while many others are added and removed
+	 * around them, so that the book table grows and closes the gaps left by
+	 * removals in its probe chains.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testAddAndRemoveManyBooks() throws BookStoreException {
+		final int numBooks = 2000;
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		Set<Integer> isbnsToRemove = new HashSet<Integer>();
+
+		// ISBNs a power of two apart, which share their low bits.
+		for (int i = 1; i <= numBooks; i++) {
+			int isbn = TEST_ISBN + i * 1024;
+			booksToAdd.add(new ImmutableStockBook(isbn, "Book " + i, "Author " + i, (float) 10, i, 0, 0, 0, false));
+
+			if (i % 3 != 0) {
+				isbnsToRemove.add(isbn);
+			}
+		}
+
+		storeManager.addBooks(booksToAdd);
+		storeManager.removeBooks(isbnsToRemove);
+
+		List<StockBook> booksInStoreList = storeManager.getBooks();
+		assertEquals(numBooks / 3 + 1, booksInStoreList.size());
+
+		for (StockBook book : booksInStoreList) {
+			assertFalse(isbnsToRemove.contains(book.getISBN()));
+			assertEquals(book.getISBN() == TEST_ISBN ? NUM_COPIES : (book.getISBN() - TEST_ISBN) / 1024,
+					book.getNumCopies());
+		}
+
+		try {
+			storeManager.getBooksByISBN(isbnsToRemove);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		// Add the removed books back, with the others still in the table.
+		Set<StockBook> booksToAddBack = new HashSet<StockBook>();
+
+		for (StockBook book : booksToAdd) {
+			if (isbnsToRemove.contains(book.getISBN())) {
+				booksToAddBack.add(book);
+			}
+		}
+
+		storeManager.addBooks(booksToAddBack);
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+
+		for (StockBook book : booksToAdd) {
+			isbnSet.add(book.getISBN());
+		}
+
+		List<StockBook> listBooks = storeManager.getBooksByISBN(isbnSet);
+		assertTrue(booksToAdd.containsAll(listBooks) && booksToAdd.size() == listBooks.size());
+	}
+
+	/**
+	 * Tests that concurrent updates of overlapping sets of books neither
+	 * deadlock nor lose copies.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAddCopiesConcurrently() throws Exception {
+		final int numThreads = 3;
+		final int numRounds = localTest ? 5000 : 200;
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+
+		for (int i = 1; i <= numThreads; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Book " + i, "Author " + i, (float) 10, NUM_COPIES,
+					0, 0, 0, false));
+		}
+
+		storeManager.addBooks(booksToAdd);
+
+		AtomicInteger numRoundsDone = new AtomicInteger();
+		Thread[] stockers = new Thread[numThreads];
+
+		// Each thread adds copies to its book and to the next one, so that
+		// every book is locked by two threads in turn.
+		for (int i = 0; i < numThreads; i++) {
+			Set<BookCopy> bookCopiesSet = new HashSet<BookCopy>();
+			bookCopiesSet.add(new BookCopy(TEST_ISBN + 1 + i, 1));
+			bookCopiesSet.add(new BookCopy(TEST_ISBN + 1 + (i + 1) % numThreads, 1));
+
+			stockers[i] = new Thread(() -> {
+				try {
+					for (int j = 0; j < numRounds; j++) {
+						storeManager.addCopies(bookCopiesSet);
+						numRoundsDone.incrementAndGet();
+					}
+				} catch (BookStoreException ex) {
+					;
+				}
+			});
+			stockers[i].start();
+		}
+
+		for (Thread stocker : stockers) {
+			stocker.join(60000);
+			assertFalse(stocker.isAlive());
+		}
+
+		assertEquals(numThreads * numRounds, numRoundsDone.get());
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+
+		for (StockBook book : booksToAdd) {
+			isbnSet.add(book.getISBN());
+		}
+
+		for (StockBook book : storeManager.getBooksByISBN(isbnSet)) {
+			assertEquals(NUM_COPIES + 2 * numRounds, book.getNumCopies());
+		}
+	}
+
 	/**
 	 * Tests basic getBooksByISBN for the default book.
 	 *
@@ -451,6 +617,478 @@ public class StockManagerTest {
 		assertTrue(booksToAdd.containsAll(listBooks) && booksToAdd.size() == listBooks.size());
 	}
 
+	/**
+	 * Tests that a book read from the store keeps the state it was read with
+	 * while the book changes, and that reads after the change see it.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testBooksReadDoNotChange() throws BookStoreException {
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		StockBook bookBefore = storeManager.getBooksByISBN(isbnSet).get(0);
+		Book customerBookBefore = client.getBooks(isbnSet).get(0);
+
+		Set<BookCopy> bookCopiesSet = new HashSet<BookCopy>();
+		bookCopiesSet.add(new BookCopy(TEST_ISBN, 1));
+		client.buyBooks(bookCopiesSet);
+
+		Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+		editorPicks.add(new BookEditorPick(TEST_ISBN, true));
+		storeManager.updateEditorPicks(editorPicks);
+
+		assertEquals((int) NUM_COPIES, bookBefore.getNumCopies());
+		assertFalse(bookBefore.isEditorPick());
+
+		StockBook bookAfter = storeManager.getBooksByISBN(isbnSet).get(0);
+		assertEquals(NUM_COPIES - 1, bookAfter.getNumCopies());
+		assertTrue(bookAfter.isEditorPick());
+		assertEquals(NUM_COPIES - 1, storeManager.getBooks().get(0).getNumCopies());
+
+		// The customer view only has the catalog data, which did not change.
+		assertEquals(customerBookBefore, client.getBooks(isbnSet).get(0));
+	}
+
+	/**
+	 * Tests that the books can be listed page by page in ISBN order.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksPage() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+
+		for (int i = 5; i >= 1; i--) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN - i * 7, "Book " + i, "Author " + i, (float) 10,
+					NUM_COPIES, 0, 0, 0, false));
+		}
+
+		storeManager.addBooks(booksToAdd);
+		booksToAdd.add(getDefaultBook());
+
+		// Walk the six books in pages of four.
+		List<Integer> isbns = new ArrayList<Integer>();
+		StockBookPage page = storeManager.getBooksPage(4, null);
+		assertEquals(4, page.getBooks().size());
+		assertTrue(page.getContinuationToken() != null);
+
+		for (StockBook book : page.getBooks()) {
+			isbns.add(book.getISBN());
+		}
+
+		page = storeManager.getBooksPage(4, page.getContinuationToken());
+		assertEquals(2, page.getBooks().size());
+		assertTrue(page.getContinuationToken() == null);
+
+		for (StockBook book : page.getBooks()) {
+			isbns.add(book.getISBN());
+		}
+
+		List<Integer> expectedIsbns = new ArrayList<Integer>();
+
+		for (StockBook book : booksToAdd) {
+			expectedIsbns.add(book.getISBN());
+		}
+
+		Collections.sort(expectedIsbns);
+		assertEquals(expectedIsbns, isbns);
+
+		// A page of exactly the remaining books is the last one.
+		assertTrue(storeManager.getBooksPage(6, null).getContinuationToken() == null);
+
+		for (int pageSize : new int[] { 0, BookStoreConstants.MAX_PAGE_SIZE + 1 }) {
+			try {
+				storeManager.getBooksPage(pageSize, null);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+		}
+
+		try {
+			storeManager.getBooksPage(4, "not a token");
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that syncing from the version of the last sync gets only the books
+	 * added, changed or removed since.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksChangedSince() throws BookStoreException {
+
+		// A client without books gets all of them.
+		BookChanges changes = storeManager.getBooksChangedSince(0);
+		assertTrue(changes.isReset());
+		assertEquals(Collections.singletonList(getDefaultBook()), changes.getChangedBooks());
+
+		changes = storeManager.getBooksChangedSince(changes.getVersion());
+		assertFalse(changes.isReset());
+		assertTrue(changes.getChangedBooks().isEmpty() && changes.getRemovedIsbns().isEmpty());
+
+		// A purchase and a new book are in the next sync only.
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 300, NUM_COPIES, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+		client.buyBooks(booksToBuy);
+
+		changes = storeManager.getBooksChangedSince(changes.getVersion());
+		assertFalse(changes.isReset());
+		assertTrue(changes.getRemovedIsbns().isEmpty());
+		assertEquals(2, changes.getChangedBooks().size());
+
+		for (StockBook book : changes.getChangedBooks()) {
+			assertEquals(book.getISBN() == TEST_ISBN ? NUM_COPIES - 1 : NUM_COPIES, book.getNumCopies());
+		}
+
+		changes = storeManager.getBooksChangedSince(changes.getVersion());
+		assertTrue(changes.getChangedBooks().isEmpty() && changes.getRemovedIsbns().isEmpty());
+
+		// A removed book is reported once.
+		storeManager.removeBooks(Collections.singleton(TEST_ISBN + 1));
+		changes = storeManager.getBooksChangedSince(changes.getVersion());
+		assertFalse(changes.isReset());
+		assertTrue(changes.getChangedBooks().isEmpty());
+		assertEquals(Collections.singletonList(TEST_ISBN + 1), changes.getRemovedIsbns());
+
+		// Removing all the books makes every client start over.
+		storeManager.removeAllBooks();
+		changes = storeManager.getBooksChangedSince(changes.getVersion());
+		assertTrue(changes.isReset());
+		assertTrue(changes.getChangedBooks().isEmpty());
+
+		try {
+			storeManager.getBooksChangedSince(-1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the books with the least copies follow purchases and
+	 * restocking.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksWithLeastCopies() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "Book 1", "Author 1", (float) 10, 1, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "Book 2", "Author 2", (float) 10, 3, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 3, "Book 3", "Author 3", (float) 10, 2, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		List<StockBook> leastCopies = storeManager.getBooksWithLeastCopies(2);
+		assertEquals(2, leastCopies.size());
+		assertEquals(TEST_ISBN + 1, leastCopies.get(0).getISBN());
+		assertEquals(TEST_ISBN + 3, leastCopies.get(1).getISBN());
+
+		// Restocking moves a book back, buying its last copies moves it first.
+		storeManager.addCopies(Collections.singleton(new BookCopy(TEST_ISBN + 1, NUM_COPIES)));
+		client.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + 3, 2)));
+
+		leastCopies = storeManager.getBooksWithLeastCopies(2);
+		assertEquals(TEST_ISBN + 3, leastCopies.get(0).getISBN());
+		assertEquals(0, leastCopies.get(0).getNumCopies());
+		assertEquals(TEST_ISBN + 2, leastCopies.get(1).getISBN());
+
+		// Asking for more books than there are gets all of them.
+		leastCopies = storeManager.getBooksWithLeastCopies(10);
+		assertEquals(4, leastCopies.size());
+		assertEquals(TEST_ISBN + 1, leastCopies.get(3).getISBN());
+
+		try {
+			storeManager.getBooksWithLeastCopies(-1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that restocking the books with the least copies adds the copies
+	 * to exactly those books.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testRestockBooksWithLeastCopies() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "Book 1", "Author 1", (float) 10, 1, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "Book 2", "Author 2", (float) 10, 3, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 3, "Book 3", "Author 3", (float) 10, 2, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		List<StockBook> restockedBooks = storeManager.restockBooksWithLeastCopies(2, 10);
+		assertEquals(2, restockedBooks.size());
+		assertEquals(TEST_ISBN + 1, restockedBooks.get(0).getISBN());
+		assertEquals(11, restockedBooks.get(0).getNumCopies());
+		assertEquals(TEST_ISBN + 3, restockedBooks.get(1).getISBN());
+		assertEquals(12, restockedBooks.get(1).getNumCopies());
+
+		// The other books are untouched and now have the least copies.
+		List<StockBook> leastCopies = storeManager.getBooksWithLeastCopies(2);
+		assertEquals(TEST_ISBN + 2, leastCopies.get(0).getISBN());
+		assertEquals(3, leastCopies.get(0).getNumCopies());
+		assertEquals((int) TEST_ISBN, leastCopies.get(1).getISBN());
+		assertEquals((int) NUM_COPIES, leastCopies.get(1).getNumCopies());
+
+		try {
+			storeManager.restockBooksWithLeastCopies(2, 0);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(3, storeManager.getBooksWithLeastCopies(1).get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that a batch reports the outcome of each operation, and that an
+	 * atomic batch is all or nothing.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testRunBatch() throws BookStoreException {
+		Set<BookCopy> copiesToAdd = new HashSet<BookCopy>();
+		copiesToAdd.add(new BookCopy(TEST_ISBN, 2));
+		Set<BookCopy> copiesToBuy = new HashSet<BookCopy>();
+		copiesToBuy.add(new BookCopy(TEST_ISBN, 1));
+		Set<BookCopy> tooManyCopiesToBuy = new HashSet<BookCopy>();
+		tooManyCopiesToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 100));
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN);
+
+		List<BookStoreOperation> operations = new ArrayList<BookStoreOperation>();
+		operations.add(new BookStoreOperation(BookStoreMessageTag.ADDCOPIES, copiesToAdd));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.BUYBOOKS, tooManyCopiesToBuy));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, isbns));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.GETSTOCKBOOKSBYISBN));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.BATCH, operations.subList(0, 1), false));
+
+		List<BookStoreResponse> responses = storeManager.runBatch(operations, false);
+		assertEquals(5, responses.size());
+		assertNull(responses.get(0).getException());
+		assertNotNull(responses.get(1).getException());
+		assertNull(responses.get(2).getException());
+		assertEquals(NUM_COPIES + 2, ((StockBook) responses.get(2).getList().get(0)).getNumCopies());
+		assertNotNull(responses.get(3).getException());
+		assertNotNull(responses.get(4).getException());
+
+		long saleMisses = storeManager.getBooksByISBN(isbns).get(0).getNumSaleMisses();
+		Set<BookCopy> allCopiesToBuy = new HashSet<BookCopy>();
+		allCopiesToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 3));
+
+		operations.clear();
+		operations.add(new BookStoreOperation(BookStoreMessageTag.BUYBOOKS, copiesToBuy));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.ADDCOPIES, copiesToAdd));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.BUYBOOKS, tooManyCopiesToBuy));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.ADDCOPIES, copiesToAdd));
+
+		responses = storeManager.runBatch(operations, true);
+		assertEquals(4, responses.size());
+		assertNotNull(responses.get(0).getException());
+		assertNotNull(responses.get(1).getException());
+		assertNotNull(responses.get(2).getException());
+		assertNotNull(responses.get(3).getException());
+
+		// None of the operations took effect, not even the ones before the
+		// failed one, nor the sale misses of the failed one.
+		StockBook book = storeManager.getBooksByISBN(isbns).get(0);
+		assertEquals(NUM_COPIES + 2, book.getNumCopies());
+		assertEquals(saleMisses, book.getNumSaleMisses());
+
+		operations.clear();
+		operations.add(new BookStoreOperation(BookStoreMessageTag.BUYBOOKS, copiesToBuy));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.ADDCOPIES, copiesToAdd));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.BUYBOOKS, allCopiesToBuy));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.RESTOCKBOOKSWITHLEASTCOPIES, 1, 1));
+
+		responses = storeManager.runBatch(operations, true);
+		assertNotNull(responses.get(3).getException());
+		assertEquals(NUM_COPIES + 2, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+
+		operations.remove(3);
+
+		responses = storeManager.runBatch(operations, true);
+		assertNull(responses.get(0).getException());
+		assertNull(responses.get(1).getException());
+		assertNull(responses.get(2).getException());
+
+		// All of them took effect once none failed.
+		assertEquals(0, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that calls retried with the same idempotency key are applied once,
+	 * and that a key cannot be reused for another call or other arguments.
+	 * Only the proxies send idempotency keys.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testIdempotencyKey() throws BookStoreException {
+		if (localTest) {
+			return;
+		}
+
+		StockManagerHTTPProxy storeManagerProxy = (StockManagerHTTPProxy) storeManager;
+		String idempotencyKey = UUID.randomUUID().toString();
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(TEST_ISBN, 2));
+
+		storeManagerProxy.addCopies(bookCopies, idempotencyKey);
+		storeManagerProxy.addCopies(bookCopies, idempotencyKey);
+		assertEquals(NUM_COPIES + 2, storeManager.getBooks().get(0).getNumCopies());
+
+		try {
+			storeManagerProxy.removeBooks(Collections.singleton(TEST_ISBN), idempotencyKey);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		Set<BookCopy> otherBookCopies = new HashSet<BookCopy>();
+		otherBookCopies.add(new BookCopy(TEST_ISBN, 5));
+
+		try {
+			storeManagerProxy.addCopies(otherBookCopies, idempotencyKey);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(1, storeManager.getBooks().size());
+		assertEquals(NUM_COPIES + 2, storeManager.getBooks().get(0).getNumCopies());
+
+		// A failed purchase is answered with the same failure when retried.
+		BookStoreHTTPProxy clientProxy = (BookStoreHTTPProxy) client;
+		idempotencyKey = UUID.randomUUID().toString();
+		bookCopies.clear();
+		bookCopies.add(new BookCopy(TEST_ISBN, NUM_COPIES + 3));
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				clientProxy.buyBooks(bookCopies, idempotencyKey);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+		}
+
+		assertEquals(1, storeManager.getBooks().get(0).getNumSaleMisses());
+
+		// A batch retried with its key is run once.
+		idempotencyKey = UUID.randomUUID().toString();
+		bookCopies.clear();
+		bookCopies.add(new BookCopy(TEST_ISBN, 1));
+		List<BookStoreOperation> operations = new ArrayList<BookStoreOperation>();
+		operations.add(new BookStoreOperation(BookStoreMessageTag.ADDCOPIES, bookCopies));
+		storeManagerProxy.runBatch(operations, true, idempotencyKey);
+		storeManagerProxy.runBatch(operations, true, idempotencyKey);
+		assertEquals(NUM_COPIES + 3, storeManager.getBooks().get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests the procedures registered from the start, and that a procedure is
+	 * only called with the arguments it was registered with.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testCallProcedure() throws BookStoreException {
+		Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+		editorPicks.add(new BookEditorPick(TEST_ISBN, true));
+		storeManager.updateEditorPicks(editorPicks);
+
+		List<?> boughtIsbns = (List<?>) storeManager.callProcedure(BookStoreProcedures.BUY_EDITOR_PICKS, 1, 1, 1);
+		assertEquals(1, boughtIsbns.size());
+		assertEquals(TEST_ISBN, boughtIsbns.get(0));
+
+		try {
+			storeManager.callProcedure(BookStoreProcedures.BUY_EDITOR_PICKS, 1, 1, NUM_COPIES);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(1, storeManager.getBooksInDemand().size());
+
+		List<?> restockedIsbns = (List<?>) storeManager.callProcedure(BookStoreProcedures.RESTOCK_BOOKS_IN_DEMAND,
+				2);
+		assertEquals(1, restockedIsbns.size());
+		assertEquals(TEST_ISBN, restockedIsbns.get(0));
+		assertEquals(0, storeManager.getBooksInDemand().size());
+		assertEquals(NUM_COPIES + 1, storeManager.getBooks().get(0).getNumCopies());
+
+		try {
+			storeManager.callProcedure(BookStoreProcedures.RESTOCK_BOOKS_IN_DEMAND, "2");
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		try {
+			storeManager.callProcedure("noSuchProcedure");
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that books missed by a purchase are in demand until they are
+	 * restocked.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksInDemand() throws BookStoreException {
+		assertEquals(0, storeManager.getBooksInDemand().size());
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 2));
+
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		List<StockBook> booksInDemand = storeManager.getBooksInDemand();
+		assertEquals(1, booksInDemand.size());
+		assertTrue(booksInDemand.get(0).getISBN() == TEST_ISBN);
+		assertEquals(2, booksInDemand.get(0).getNumSaleMisses());
+
+		Set<BookCopy> bookCopiesSet = new HashSet<BookCopy>();
+		bookCopiesSet.add(new BookCopy(TEST_ISBN, 2));
+		storeManager.addCopies(bookCopiesSet);
+
+		assertEquals(0, storeManager.getBooksInDemand().size());
+	}
+
 	/**
 	 * Tests basic removeAllBooks functionality.
 	 *
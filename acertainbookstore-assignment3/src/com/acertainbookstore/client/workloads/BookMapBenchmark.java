@@ -0,0 +1,162 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.acertainbookstore.business.BookMap;
+import com.acertainbookstore.business.BookStoreBook;
+
+/**
+ *
+ * BookMapBenchmark compares the BookMap used by CertainBookStore with the
+ * HashMap of boxed ISBNs it replaced. For each catalog size it reports the
+ * time per insert, lookup and remove and the heap retained by the map itself;
+ * every entry points to the same book so that the books are not counted.
+ *
+ * Run with a large heap, e.g. -Xmx4g, for the 10M books size.
+ *
+ */
+public class BookMapBenchmark {
+	private static final int[] NUM_BOOKS = { 100000, 1000000, 10000000 };
+	private static final int NUM_ROUNDS = 3;
+	private static final BookStoreBook BOOK = new BookStoreBook(1, "Benchmark", "Benchmark", (float) 1, 1);
+
+	/**
+	 * Runs the benchmark and writes the results to bookmap_benchmark.txt
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		StringBuilder results = new StringBuilder(
+				"map\tbooks\tinsert_ns_per_op\tlookup_ns_per_op\tremove_ns_per_op\tretained_bytes_per_book\r\n");
+
+		for (int numBooks : NUM_BOOKS) {
+			int[] isbns = distinctIsbns(numBooks, new Random(numBooks));
+
+			for (int round = 1; round <= NUM_ROUNDS; round++) {
+				String bookMapLine = "BookMap\t" + numBooks + "\t" + runBookMap(isbns);
+				String hashMapLine = "HashMap\t" + numBooks + "\t" + runHashMap(isbns);
+
+				// The first round only warms up the JIT.
+				if (round > 1) {
+					System.out.println(bookMapLine);
+					System.out.println(hashMapLine);
+					results.append(bookMapLine).append("\r\n").append(hashMapLine).append("\r\n");
+				}
+			}
+		}
+
+		try (FileWriter out = new FileWriter("bookmap_benchmark.txt")) {
+			out.write(results.toString());
+		} catch (IOException e) {
+			System.out.println("An error occurred with writing to txt.");
+			e.printStackTrace();
+		}
+	}
+
+	private static String runBookMap(int[] isbns) {
+		long usedBefore = usedMemory();
+		long startTimeInNanoSecs = System.nanoTime();
+		BookMap map = new BookMap();
+
+		for (int isbn : isbns) {
+			map.put(isbn, BOOK);
+		}
+
+		long insertNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		long retainedBytes = usedMemory() - usedBefore;
+		int found = 0;
+		startTimeInNanoSecs = System.nanoTime();
+
+		for (int isbn : isbns) {
+			if (map.containsKey(isbn) && map.get(isbn) != null) {
+				found++;
+			}
+		}
+
+		long lookupNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		startTimeInNanoSecs = System.nanoTime();
+
+		for (int isbn : isbns) {
+			map.remove(isbn);
+		}
+
+		long removeNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		return format(isbns.length, found, insertNanoSecs, lookupNanoSecs, removeNanoSecs, retainedBytes);
+	}
+
+	private static String runHashMap(int[] isbns) {
+		long usedBefore = usedMemory();
+		long startTimeInNanoSecs = System.nanoTime();
+		Map<Integer, BookStoreBook> map = new HashMap<>();
+
+		for (int isbn : isbns) {
+			map.put(isbn, BOOK);
+		}
+
+		long insertNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		long retainedBytes = usedMemory() - usedBefore;
+		int found = 0;
+		startTimeInNanoSecs = System.nanoTime();
+
+		for (int isbn : isbns) {
+			if (map.containsKey(isbn) && map.get(isbn) != null) {
+				found++;
+			}
+		}
+
+		long lookupNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		startTimeInNanoSecs = System.nanoTime();
+
+		for (int isbn : isbns) {
+			map.remove(isbn);
+		}
+
+		long removeNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		return format(isbns.length, found, insertNanoSecs, lookupNanoSecs, removeNanoSecs, retainedBytes);
+	}
+
+	private static String format(int numBooks, int found, long insertNanoSecs, long lookupNanoSecs,
+			long removeNanoSecs, long retainedBytes) {
+		if (found != numBooks) {
+			throw new IllegalStateException("Found " + found + " of " + numBooks + " books");
+		}
+
+		// A lookup is a containsKey followed by a get, as in CertainBookStore.
+		return String.format("%.1f\t%.1f\t%.1f\t%.1f", (double) insertNanoSecs / numBooks,
+				(double) lookupNanoSecs / numBooks, (double) removeNanoSecs / numBooks,
+				(double) retainedBytes / numBooks);
+	}
+
+	/**
+	 * Returns distinct valid ISBNs in random order
+	 */
+	private static int[] distinctIsbns(int numBooks, Random rand) {
+		BookMap seen = new BookMap(numBooks);
+		int[] isbns = new int[numBooks];
+		int count = 0;
+
+		while (count < numBooks) {
+			int isbn = 1 + rand.nextInt(Integer.MAX_VALUE - 1);
+
+			if (seen.put(isbn, BOOK) == null) {
+				isbns[count++] = isbn;
+			}
+		}
+
+		return isbns;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
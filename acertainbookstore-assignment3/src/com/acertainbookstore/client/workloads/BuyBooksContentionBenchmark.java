@@ -0,0 +1,162 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ *
+ * BuyBooksContentionBenchmark measures the throughput of buyBooks on a small
+ * set of hot books for an increasing number of threads. It compares the
+ * compare-and-set purchase path of CertainBookStore with the same calls
+ * serialized on a single monitor, which is how the store behaved when all its
+ * methods were synchronized.
+ *
+ */
+public class BuyBooksContentionBenchmark {
+	private static final int NUM_HOT_BOOKS = 8;
+	private static final int MAX_BOOKS_PER_ORDER = 3;
+	private static final int NUM_ORDERS_PER_THREAD = 1024;
+	private static final int FIRST_ISBN = 1000;
+	private static final long WARMUP_MILLISECS = 500;
+	private static final long RUN_MILLISECS = 2000;
+	private static final int[] NUM_THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	/**
+	 * Runs the benchmark and writes the results to
+	 * buybooks_contention.txt
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		StringBuilder results = new StringBuilder("threads\tcas_ops_per_sec\tsynchronized_ops_per_sec\r\n");
+
+		for (int numThreads : NUM_THREADS) {
+			double casThroughput = run(newStore(), numThreads, false);
+			double synchronizedThroughput = run(newStore(), numThreads, true);
+			String line = numThreads + "\t" + Math.round(casThroughput) + "\t" + Math.round(synchronizedThroughput);
+
+			System.out.println(line);
+			results.append(line).append("\r\n");
+		}
+
+		try (FileWriter out = new FileWriter("buybooks_contention.txt")) {
+			out.write(results.toString());
+		} catch (IOException e) {
+			System.out.println("An error occurred with writing to txt.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates a store holding the hot books with enough copies to never run
+	 * out during a run
+	 */
+	private static CertainBookStore newStore() throws BookStoreException {
+		CertainBookStore store = new CertainBookStore();
+		Set<StockBook> books = new HashSet<>();
+
+		for (int i = 0; i < NUM_HOT_BOOKS; i++) {
+			books.add(new ImmutableStockBook(FIRST_ISBN + i, "Hot Book " + i, "Author " + i, (float) 10,
+					Integer.MAX_VALUE / 2, 0, 0, 0, false));
+		}
+
+		store.addBooks(books);
+		return store;
+	}
+
+	/**
+	 * Runs buyBooks from numThreads threads and returns the throughput in
+	 * orders per second
+	 */
+	private static double run(BookStore store, int numThreads, boolean serialized) throws Exception {
+		AtomicBoolean measuring = new AtomicBoolean(false);
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		LongAdder numOrders = new LongAdder();
+		CountDownLatch started = new CountDownLatch(numThreads);
+		List<Thread> threads = new ArrayList<>();
+		Object monitor = new Object();
+
+		for (int i = 0; i < numThreads; i++) {
+			List<Set<BookCopy>> orders = newOrders(new Random(i));
+
+			Thread thread = new Thread(() -> {
+				started.countDown();
+				int next = 0;
+
+				while (!stopped.get()) {
+					Set<BookCopy> order = orders.get(next++ % NUM_ORDERS_PER_THREAD);
+
+					try {
+						if (serialized) {
+							synchronized (monitor) {
+								store.buyBooks(order);
+							}
+						} else {
+							store.buyBooks(order);
+						}
+					} catch (BookStoreException ex) {
+						throw new IllegalStateException(ex);
+					}
+
+					if (measuring.get()) {
+						numOrders.increment();
+					}
+				}
+			});
+
+			threads.add(thread);
+			thread.start();
+		}
+
+		started.await();
+		Thread.sleep(WARMUP_MILLISECS);
+		measuring.set(true);
+		long startTimeInNanoSecs = System.nanoTime();
+		Thread.sleep(RUN_MILLISECS);
+		measuring.set(false);
+		long elapsedTimeInNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		stopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return numOrders.sum() * 1e9 / elapsedTimeInNanoSecs;
+	}
+
+	/**
+	 * Pre-generates the orders of a thread so that generating them is not
+	 * measured
+	 */
+	private static List<Set<BookCopy>> newOrders(Random rand) {
+		List<Set<BookCopy>> orders = new ArrayList<>(NUM_ORDERS_PER_THREAD);
+
+		for (int i = 0; i < NUM_ORDERS_PER_THREAD; i++) {
+			Set<BookCopy> order = new HashSet<>();
+			int numBooks = 1 + rand.nextInt(MAX_BOOKS_PER_ORDER);
+
+			while (order.size() < numBooks) {
+				order.add(new BookCopy(FIRST_ISBN + rand.nextInt(NUM_HOT_BOOKS), 1));
+			}
+
+			orders.add(order);
+		}
+
+		return orders;
+	}
+}
@@ -15,6 +15,7 @@ import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * 
@@ -45,9 +46,8 @@ public class CertainWorkload {
 		BookStore bookStore = null;
 		StockManager stockManager = null;
 		if (localTest) {
-			CertainBookStore store = new CertainBookStore();
-			bookStore = store;
-			stockManager = store;
+			bookStore = BookStoreUtility.newLocalStore();
+			stockManager = (StockManager) bookStore;
 		} else {
 			stockManager = new StockManagerHTTPProxy(serverAddress + "/stock");
 			bookStore = new BookStoreHTTPProxy(serverAddress);
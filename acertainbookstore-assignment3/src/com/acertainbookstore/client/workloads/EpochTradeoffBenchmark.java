@@ -0,0 +1,101 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.EpochBookStore;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+
+/**
+ *
+ * EpochTradeoffBenchmark runs the CertainWorkload interaction mix locally on
+ * EpochBookStore for a range of epoch lengths and numbers of workers, and on
+ * CertainBookStore as the unbatched baseline (epoch length 0). For each run it
+ * reports the throughput of all interactions and of the successful customer
+ * interactions, and the mean latency of an interaction, which together give
+ * the epoch size/latency trade-off curves.
+ *
+ */
+public class EpochTradeoffBenchmark {
+	private static final long[] EPOCH_MICROS = { 0, 250, 500, 1000, 2000, 5000 };
+	private static final int[] NUM_WORKERS = { 4, 16, 64 };
+	private static final int NUM_WARMUP_RUNS = 200;
+	private static final int NUM_ACTUAL_RUNS = 2000;
+
+	/**
+	 * Runs the benchmark and writes the results to epoch_tradeoff.txt
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		StringBuilder results = new StringBuilder(
+				"epoch_us\tworkers\tinteractions_per_sec\tcustomer_interactions_per_sec\tlatency_us\r\n");
+		int numScheduleWorkers = Runtime.getRuntime().availableProcessors();
+
+		for (int numWorkers : NUM_WORKERS) {
+			for (long epochMicros : EPOCH_MICROS) {
+				String line;
+
+				if (epochMicros == 0) {
+					line = epochMicros + "\t" + numWorkers + "\t" + run(new CertainBookStore(), numWorkers);
+				} else {
+					EpochBookStore store = new EpochBookStore(new CertainBookStore(), epochMicros, numScheduleWorkers);
+					line = epochMicros + "\t" + numWorkers + "\t" + run(store, numWorkers);
+					store.shutdown();
+				}
+
+				System.out.println(line);
+				results.append(line).append("\r\n");
+			}
+		}
+
+		try (FileWriter out = new FileWriter("epoch_tradeoff.txt")) {
+			out.write(results.toString());
+		} catch (IOException e) {
+			System.out.println("An error occurred with writing to txt.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs numWorkers workers of the CertainWorkload mix on the store
+	 */
+	private static <T extends BookStore & StockManager> String run(T store, int numWorkers) throws Exception {
+		CertainWorkload.initializeBookStoreData(store, store);
+
+		ExecutorService exec = Executors.newFixedThreadPool(numWorkers);
+		List<Future<WorkerRunResult>> runResults = new ArrayList<>();
+
+		for (int i = 0; i < numWorkers; i++) {
+			WorkloadConfiguration config = new WorkloadConfiguration(store, store);
+			config.setWarmUpRuns(NUM_WARMUP_RUNS);
+			config.setNumActualRuns(NUM_ACTUAL_RUNS);
+			runResults.add(exec.submit(new Worker(config)));
+		}
+
+		double throughput = 0;
+		double customerThroughput = 0;
+		double latency = 0;
+
+		for (Future<WorkerRunResult> futureRunResult : runResults) {
+			WorkerRunResult result = futureRunResult.get();
+			throughput += result.getTotalRuns() * 1e9 / result.getElapsedTimeInNanoSecs();
+			customerThroughput += result.getSuccessfulFrequentBookStoreInteractionRuns() * 1e9
+					/ result.getElapsedTimeInNanoSecs();
+			latency += (double) result.getElapsedTimeInNanoSecs() / result.getTotalRuns();
+		}
+
+		exec.shutdownNow();
+		store.removeAllBooks();
+
+		return String.format("%d\t%d\t%.1f", Math.round(throughput), Math.round(customerThroughput),
+				latency / numWorkers / 1000);
+	}
+}
@@ -0,0 +1,90 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.CombiningBookStore;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+
+/**
+ *
+ * FlatCombiningBenchmark runs the CertainWorkload interaction mix locally on
+ * CertainBookStore, where every thread applies its own updates under the
+ * store and ISBN locks, and on CombiningBookStore, where the updates are
+ * applied by a single combining thread at a time. For an increasing number of
+ * workers it reports the throughput of all interactions and of the successful
+ * customer interactions, and the mean latency of an interaction.
+ *
+ */
+public class FlatCombiningBenchmark {
+	private static final int[] NUM_WORKERS = { 1, 2, 4, 8, 16, 32, 64 };
+	private static final int NUM_WARMUP_RUNS = 2000;
+	private static final int NUM_ACTUAL_RUNS = 20000;
+
+	/**
+	 * Runs the benchmark and writes the results to flat_combining.txt
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		StringBuilder results = new StringBuilder(
+				"store\tworkers\tinteractions_per_sec\tcustomer_interactions_per_sec\tlatency_us\r\n");
+
+		for (int numWorkers : NUM_WORKERS) {
+			String lockingLine = "locking\t" + numWorkers + "\t" + run(new CertainBookStore(), numWorkers);
+			System.out.println(lockingLine);
+			String combiningLine = "combining\t" + numWorkers + "\t" + run(new CombiningBookStore(), numWorkers);
+			System.out.println(combiningLine);
+			results.append(lockingLine).append("\r\n").append(combiningLine).append("\r\n");
+		}
+
+		try (FileWriter out = new FileWriter("flat_combining.txt")) {
+			out.write(results.toString());
+		} catch (IOException e) {
+			System.out.println("An error occurred with writing to txt.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs numWorkers workers of the CertainWorkload mix on the store
+	 */
+	private static <T extends BookStore & StockManager> String run(T store, int numWorkers) throws Exception {
+		CertainWorkload.initializeBookStoreData(store, store);
+
+		ExecutorService exec = Executors.newFixedThreadPool(numWorkers);
+		List<Future<WorkerRunResult>> runResults = new ArrayList<>();
+
+		for (int i = 0; i < numWorkers; i++) {
+			WorkloadConfiguration config = new WorkloadConfiguration(store, store);
+			config.setWarmUpRuns(NUM_WARMUP_RUNS);
+			config.setNumActualRuns(NUM_ACTUAL_RUNS);
+			runResults.add(exec.submit(new Worker(config)));
+		}
+
+		double throughput = 0;
+		double customerThroughput = 0;
+		double latency = 0;
+
+		for (Future<WorkerRunResult> futureRunResult : runResults) {
+			WorkerRunResult result = futureRunResult.get();
+			throughput += result.getTotalRuns() * 1e9 / result.getElapsedTimeInNanoSecs();
+			customerThroughput += result.getSuccessfulFrequentBookStoreInteractionRuns() * 1e9
+					/ result.getElapsedTimeInNanoSecs();
+			latency += (double) result.getElapsedTimeInNanoSecs() / result.getTotalRuns();
+		}
+
+		exec.shutdownNow();
+		store.removeAllBooks();
+
+		return String.format("%d\t%d\t%.1f", Math.round(throughput), Math.round(customerThroughput),
+				latency / numWorkers / 1000);
+	}
+}
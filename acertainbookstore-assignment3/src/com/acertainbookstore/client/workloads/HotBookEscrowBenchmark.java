@@ -0,0 +1,129 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ *
+ * HotBookEscrowBenchmark measures the throughput of buyBooks on a single hot
+ * book for an increasing number of threads, with one order in a hundred
+ * restocking the book. The copies of the book are escrowed once it is hot,
+ * unless the benchmark is run with -Descrow=false, which gives the baseline
+ * where every purchase takes its copies from the same version of the book.
+ * The results are written to hot_book_escrow_on.txt or
+ * hot_book_escrow_off.txt accordingly.
+ *
+ */
+public class HotBookEscrowBenchmark {
+	private static final int HOT_ISBN = 1000;
+	private static final int PERCENT_RESTOCKS = 1;
+	private static final long WARMUP_MILLISECS = 500;
+	private static final long RUN_MILLISECS = 2000;
+	private static final int[] NUM_THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	/**
+	 * Runs the benchmark and writes the results to hot_book_escrow_on.txt or
+	 * hot_book_escrow_off.txt
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		boolean escrow = !"false".equalsIgnoreCase(System.getProperty(BookStoreConstants.PROPERTY_KEY_ESCROW));
+		StringBuilder results = new StringBuilder("threads\tescrow\tops_per_sec\r\n");
+
+		for (int numThreads : NUM_THREADS) {
+			String line = numThreads + "\t" + escrow + "\t" + Math.round(run(newStore(), numThreads));
+			System.out.println(line);
+			results.append(line).append("\r\n");
+		}
+
+		try (FileWriter out = new FileWriter(escrow ? "hot_book_escrow_on.txt" : "hot_book_escrow_off.txt")) {
+			out.write(results.toString());
+		} catch (IOException e) {
+			System.out.println("An error occurred with writing to txt.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates a store holding the hot book with enough copies to never run
+	 * out during a run
+	 */
+	private static CertainBookStore newStore() throws BookStoreException {
+		CertainBookStore store = new CertainBookStore();
+		Set<StockBook> books = new HashSet<>();
+		books.add(new ImmutableStockBook(HOT_ISBN, "Hot Book", "Author", (float) 10, Integer.MAX_VALUE / 2, 0, 0, 0,
+				false));
+		store.addBooks(books);
+		return store;
+	}
+
+	/**
+	 * Runs buyBooks and addCopies from numThreads threads and returns the
+	 * throughput in orders per second
+	 */
+	private static double run(CertainBookStore store, int numThreads) throws Exception {
+		AtomicBoolean measuring = new AtomicBoolean(false);
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		LongAdder numOrders = new LongAdder();
+		CountDownLatch started = new CountDownLatch(numThreads);
+		List<Thread> threads = new ArrayList<>();
+		Set<BookCopy> order = Collections.singleton(new BookCopy(HOT_ISBN, 1));
+
+		for (int i = 0; i < numThreads; i++) {
+			Thread thread = new Thread(() -> {
+				started.countDown();
+				int next = 0;
+
+				while (!stopped.get()) {
+					try {
+						if (next++ % 100 < PERCENT_RESTOCKS) {
+							store.addCopies(order);
+						} else {
+							store.buyBooks(order);
+						}
+					} catch (BookStoreException ex) {
+						throw new IllegalStateException(ex);
+					}
+
+					if (measuring.get()) {
+						numOrders.increment();
+					}
+				}
+			});
+
+			threads.add(thread);
+			thread.start();
+		}
+
+		started.await();
+		Thread.sleep(WARMUP_MILLISECS);
+		measuring.set(true);
+		long startTimeInNanoSecs = System.nanoTime();
+		Thread.sleep(RUN_MILLISECS);
+		measuring.set(false);
+		long elapsedTimeInNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		stopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return numOrders.sum() * 1e9 / elapsedTimeInNanoSecs;
+	}
+}
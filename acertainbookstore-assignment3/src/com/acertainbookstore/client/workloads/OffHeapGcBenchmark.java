@@ -0,0 +1,213 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.OffHeapCertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ *
+ * OffHeapGcBenchmark compares the garbage collection pauses of
+ * CertainBookStore and OffHeapCertainBookStore holding large catalogs. For
+ * each catalog size and store it loads the books, times a full collection,
+ * and then runs purchases and lookups on random books while recording every
+ * collection pause. It reports the heap used by the loaded store, the full
+ * collection time, and the number, total and maximum of the pauses.
+ *
+ * The catalog sizes may be given as arguments. Run with a large heap, e.g.
+ * -Xmx4g, and the same collector for all runs.
+ *
+ */
+public class OffHeapGcBenchmark {
+	private static final int[] DEFAULT_NUM_BOOKS = { 1000000, 4000000 };
+	private static final int NUM_THREADS = 4;
+	private static final int LOAD_BATCH_SIZE = 10000;
+	private static final int NUM_BOOKS_PER_ORDER = 3;
+	private static final long RUN_MILLISECS = 10000;
+
+	/**
+	 * Runs the benchmark and writes the results to offheap_gc.txt
+	 *
+	 * @param args
+	 *            the catalog sizes, optional
+	 */
+	public static void main(String[] args) throws Exception {
+		int[] numBooksToRun = DEFAULT_NUM_BOOKS;
+
+		if (args.length > 0) {
+			numBooksToRun = new int[args.length];
+
+			for (int i = 0; i < args.length; i++) {
+				numBooksToRun[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		StringBuilder results = new StringBuilder(
+				"store\tbooks\theap_mb\tfull_gc_ms\tpauses\ttotal_pause_ms\tmax_pause_ms\tops_per_sec\r\n");
+
+		for (int numBooks : numBooksToRun) {
+			String heapLine = "heap\t" + numBooks + "\t" + run(new CertainBookStore(), numBooks);
+			System.out.println(heapLine);
+			String offHeapLine = "offheap\t" + numBooks + "\t" + run(new OffHeapCertainBookStore(), numBooks);
+			System.out.println(offHeapLine);
+			results.append(heapLine).append("\r\n").append(offHeapLine).append("\r\n");
+		}
+
+		try (FileWriter out = new FileWriter("offheap_gc.txt")) {
+			out.write(results.toString());
+		} catch (IOException e) {
+			System.out.println("An error occurred with writing to txt.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Loads the catalog into the store and runs the workload on it
+	 */
+	private static <T extends BookStore & StockManager> String run(T store, int numBooks) throws Exception {
+		long usedBefore = usedMemory();
+		load(store, numBooks);
+		long usedAfter = usedMemory();
+
+		long startTimeInNanoSecs = System.nanoTime();
+		System.gc();
+		long fullGcNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+
+		PauseRecorder pauses = new PauseRecorder();
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		LongAdder numOps = new LongAdder();
+		List<Thread> threads = new ArrayList<>();
+
+		pauses.start();
+
+		for (int i = 0; i < NUM_THREADS; i++) {
+			Random rand = new Random(i);
+
+			Thread thread = new Thread(() -> {
+				while (!stopped.get()) {
+					Set<BookCopy> order = new HashSet<>();
+					Set<Integer> isbns = new HashSet<>();
+
+					while (order.size() < NUM_BOOKS_PER_ORDER) {
+						int isbn = 1 + rand.nextInt(numBooks);
+						order.add(new BookCopy(isbn, 1));
+						isbns.add(isbn);
+					}
+
+					try {
+						store.buyBooks(order);
+						store.getBooks(isbns);
+					} catch (BookStoreException ex) {
+						throw new IllegalStateException(ex);
+					}
+
+					numOps.increment();
+				}
+			});
+
+			threads.add(thread);
+			thread.start();
+		}
+
+		startTimeInNanoSecs = System.nanoTime();
+		Thread.sleep(RUN_MILLISECS);
+		stopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long elapsedNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		pauses.stop();
+		store.removeAllBooks();
+
+		return String.format("%d\t%d\t%d\t%d\t%d\t%d", (usedAfter - usedBefore) >> 20, fullGcNanoSecs / 1000000,
+				pauses.count.get(), pauses.totalMillis.get(), pauses.maxMillis.get(),
+				Math.round(numOps.sum() * 1e9 / elapsedNanoSecs));
+	}
+
+	/**
+	 * Adds numBooks books with ISBNs 1 to numBooks, and copies enough to never
+	 * run out during a run
+	 */
+	private static void load(StockManager store, int numBooks) throws BookStoreException {
+		Set<StockBook> batch = new HashSet<>();
+
+		for (int isbn = 1; isbn <= numBooks; isbn++) {
+			batch.add(new ImmutableStockBook(isbn, "Title of book " + isbn, "Author " + (isbn % 100000), (float) 10,
+					1000000, 0, 0, 0, false));
+
+			if (batch.size() == LOAD_BATCH_SIZE || isbn == numBooks) {
+				store.addBooks(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Records the pauses reported by the garbage collectors while started
+	 */
+	private static class PauseRecorder implements NotificationListener {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalMillis = new AtomicLong();
+		private final AtomicLong maxMillis = new AtomicLong();
+
+		void start() {
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				((NotificationEmitter) gc).addNotificationListener(this, null, null);
+			}
+		}
+
+		void stop() throws Exception {
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				((NotificationEmitter) gc).removeNotificationListener(this);
+			}
+		}
+
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+						.from((CompositeData) notification.getUserData());
+				long duration = info.getGcInfo().getDuration();
+
+				count.incrementAndGet();
+				totalMillis.addAndGet(duration);
+				maxMillis.accumulateAndGet(duration, Math::max);
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ *
+ * ReadAllocationBenchmark measures the bytes allocated per read request of
+ * CertainBookStore, on a catalog of rated books with some editor picks. It
+ * reads the thread allocation counter of the JVM around a large number of
+ * requests of each kind, after a warm-up, and reports the mean per request.
+ *
+ */
+public class ReadAllocationBenchmark {
+	private static final int NUM_BOOKS = 1000;
+	private static final int NUM_BOOKS_PER_REQUEST = 10;
+	private static final int NUM_WARMUP_REQUESTS = 20000;
+	private static final int NUM_REQUESTS = 20000;
+
+	/**
+	 * A read request.
+	 */
+	private interface Request {
+		void run() throws BookStoreException;
+	}
+
+	/**
+	 * Runs the benchmark and writes the results to read_allocation.txt
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		CertainBookStore store = new CertainBookStore();
+		Set<StockBook> books = new HashSet<>();
+		Set<BookRating> ratings = new HashSet<>();
+
+		for (int isbn = 1; isbn <= NUM_BOOKS; isbn++) {
+			books.add(new ImmutableStockBook(isbn, "Title of book " + isbn, "Author " + isbn, (float) 10, 100, 0, 0,
+					0, isbn % 10 == 0));
+			ratings.add(new BookRating(isbn, isbn % 6));
+		}
+
+		store.addBooks(books);
+		store.rateBooks(ratings);
+
+		Set<Integer> isbns = new HashSet<>();
+		Random rand = new Random(0);
+
+		while (isbns.size() < NUM_BOOKS_PER_REQUEST) {
+			isbns.add(1 + rand.nextInt(NUM_BOOKS));
+		}
+
+		StringBuilder results = new StringBuilder("request\tbytes_per_request\r\n");
+		results.append(measure("getBooks(" + NUM_BOOKS_PER_REQUEST + ")", () -> store.getBooks(isbns)));
+		results.append(measure("getBooksByISBN(" + NUM_BOOKS_PER_REQUEST + ")", () -> store.getBooksByISBN(isbns)));
+		results.append(measure("getEditorPicks(" + NUM_BOOKS_PER_REQUEST + ")",
+				() -> store.getEditorPicks(NUM_BOOKS_PER_REQUEST)));
+		results.append(measure("getTopRatedBooks(" + NUM_BOOKS_PER_REQUEST + ")",
+				() -> store.getTopRatedBooks(NUM_BOOKS_PER_REQUEST)));
+		results.append(measure("getBooks() of " + NUM_BOOKS, store::getBooks));
+
+		try (FileWriter out = new FileWriter("read_allocation.txt")) {
+			out.write(results.toString());
+		} catch (IOException e) {
+			System.out.println("An error occurred with writing to txt.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs the request and returns the result line
+	 */
+	private static String measure(String name, Request request) throws BookStoreException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		for (int i = 0; i < NUM_WARMUP_REQUESTS; i++) {
+			request.run();
+		}
+
+		long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			request.run();
+		}
+
+		long allocatedAfter = threads.getThreadAllocatedBytes(threadId);
+		String line = name + "\t" + (allocatedAfter - allocatedBefore) / NUM_REQUESTS;
+		System.out.println(line);
+		return line + "\r\n";
+	}
+}
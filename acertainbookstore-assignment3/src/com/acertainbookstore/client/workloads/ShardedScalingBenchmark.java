@@ -0,0 +1,168 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.ShardedBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ *
+ * ShardedScalingBenchmark measures how the throughput of multi-book
+ * purchases and restocks scales with the number of client threads, on
+ * CertainBookStore and on ShardedBookStore with one shard per core. Orders
+ * pick their books uniformly from the catalog, so most orders of more than one
+ * book span several shards.
+ *
+ */
+public class ShardedScalingBenchmark {
+	private static final int NUM_BOOKS = 10000;
+	private static final int MAX_BOOKS_PER_ORDER = 3;
+	private static final int NUM_ORDERS_PER_THREAD = 1024;
+	private static final int PERCENT_RESTOCKS = 10;
+	private static final long WARMUP_MILLISECS = 500;
+	private static final long RUN_MILLISECS = 2000;
+	private static final int[] NUM_THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	/**
+	 * Runs the benchmark and writes the results to sharded_scaling.txt
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		StringBuilder results = new StringBuilder("threads\tshards\tlocking_ops_per_sec\tsharded_ops_per_sec\r\n");
+		int numShards = Runtime.getRuntime().availableProcessors();
+
+		for (int numThreads : NUM_THREADS) {
+			double lockingThroughput = run(load(new CertainBookStore()), numThreads);
+			ShardedBookStore sharded = load(new ShardedBookStore(numShards));
+			double shardedThroughput = run(sharded, numThreads);
+			sharded.shutdown();
+
+			String line = numThreads + "\t" + numShards + "\t" + Math.round(lockingThroughput) + "\t"
+					+ Math.round(shardedThroughput);
+			System.out.println(line);
+			results.append(line).append("\r\n");
+		}
+
+		try (FileWriter out = new FileWriter("sharded_scaling.txt")) {
+			out.write(results.toString());
+		} catch (IOException e) {
+			System.out.println("An error occurred with writing to txt.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Adds the catalog with enough copies to never run out during a run
+	 */
+	private static <T extends StockManager> T load(T store) throws BookStoreException {
+		Set<StockBook> books = new HashSet<>();
+
+		for (int isbn = 1; isbn <= NUM_BOOKS; isbn++) {
+			books.add(new ImmutableStockBook(isbn, "Book " + isbn, "Author " + isbn, (float) 10,
+					Integer.MAX_VALUE / 2, 0, 0, 0, false));
+		}
+
+		store.addBooks(books);
+		return store;
+	}
+
+	/**
+	 * Runs purchases and restocks from numThreads threads and returns the
+	 * throughput in operations per second
+	 */
+	private static <T extends BookStore & StockManager> double run(T store, int numThreads) throws Exception {
+		AtomicBoolean measuring = new AtomicBoolean(false);
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		LongAdder numOps = new LongAdder();
+		CountDownLatch started = new CountDownLatch(numThreads);
+		List<Thread> threads = new ArrayList<>();
+
+		for (int i = 0; i < numThreads; i++) {
+			Random rand = new Random(i);
+			List<Set<BookCopy>> orders = newOrders(rand);
+
+			Thread thread = new Thread(() -> {
+				started.countDown();
+				int next = 0;
+
+				while (!stopped.get()) {
+					Set<BookCopy> order = orders.get(next++ % NUM_ORDERS_PER_THREAD);
+
+					try {
+						if (next % 100 < PERCENT_RESTOCKS) {
+							store.addCopies(order);
+						} else {
+							store.buyBooks(order);
+						}
+					} catch (BookStoreException ex) {
+						throw new IllegalStateException(ex);
+					}
+
+					if (measuring.get()) {
+						numOps.increment();
+					}
+				}
+			});
+
+			threads.add(thread);
+			thread.start();
+		}
+
+		started.await();
+		Thread.sleep(WARMUP_MILLISECS);
+		measuring.set(true);
+		long startTimeInNanoSecs = System.nanoTime();
+		Thread.sleep(RUN_MILLISECS);
+		measuring.set(false);
+		long elapsedTimeInNanoSecs = System.nanoTime() - startTimeInNanoSecs;
+		stopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return numOps.sum() * 1e9 / elapsedTimeInNanoSecs;
+	}
+
+	/**
+	 * Pre-generates the orders of a thread so that generating them is not
+	 * measured
+	 */
+	private static List<Set<BookCopy>> newOrders(Random rand) {
+		List<Set<BookCopy>> orders = new ArrayList<>(NUM_ORDERS_PER_THREAD);
+
+		for (int i = 0; i < NUM_ORDERS_PER_THREAD; i++) {
+			Set<BookCopy> order = new HashSet<>();
+			Set<Integer> isbns = new HashSet<>();
+			int numBooks = 1 + rand.nextInt(MAX_BOOKS_PER_ORDER);
+
+			while (isbns.size() < numBooks) {
+				int isbn = 1 + rand.nextInt(NUM_BOOKS);
+
+				if (isbns.add(isbn)) {
+					order.add(new BookCopy(isbn, 1));
+				}
+			}
+
+			orders.add(order);
+		}
+
+		return orders;
+	}
+}
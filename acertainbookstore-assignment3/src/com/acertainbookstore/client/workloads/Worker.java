@@ -10,6 +10,7 @@ import java.util.stream.Stream;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookStoreProcedures;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
@@ -127,13 +128,16 @@ public class Worker implements Callable<WorkerRunResult> {
      * @throws BookStoreException
      */
     private void runFrequentStockManagerInteraction() throws BookStoreException {
-		List<StockBook> listBooks = configuration.getStockManager().getBooks();
+		if (configuration.isRestockOnServer()) {
+			// Restock the books with smallest quantities in one request
+			configuration.getStockManager().restockBooksWithLeastCopies(configuration.getNumBooksWithLeastCopies(),
+					configuration.getNumAddCopies());
+			return;
+		}
 
 		// Get books with smallest quantities
-		listBooks = listBooks.stream()
-							.sorted(Comparator.comparingDouble(StockBook::getNumCopies))
-							.collect(Collectors.toList())
-							.subList(0, configuration.getNumBooksWithLeastCopies());
+		List<StockBook> listBooks = configuration.getStockManager()
+				.getBooksWithLeastCopies(configuration.getNumBooksWithLeastCopies());
 
 		// Create Set<BookCopy> for adding copies
 		Set<BookCopy> bookCopies = new HashSet<>();
@@ -150,6 +154,14 @@ public class Worker implements Callable<WorkerRunResult> {
      * @throws BookStoreException
      */
     private void runFrequentBookStoreInteraction() throws BookStoreException {
+		if (configuration.isBuyEditorPicksOnServer()) {
+			// Sample the editor picks and buy them on the server in one request
+			configuration.getBookStore().callProcedure(BookStoreProcedures.BUY_EDITOR_PICKS,
+					configuration.getNumEditorPicksToGet(), configuration.getNumBooksToBuy(),
+					configuration.getNumBookCopiesToBuy());
+			return;
+		}
+
 		// Get set of all editor pick ISBNs
 		Set<Integer> editorPickIsbns = configuration.getBookStore()
 													.getEditorPicks(configuration.getNumEditorPicksToGet())
@@ -20,6 +20,12 @@ public class WorkloadConfiguration {
 	private int numActualRuns = 500;
 	private float percentRareStockManagerInteraction = 10f;
 	private float percentFrequentStockManagerInteraction = 30f;
+	// Restock with restockBooksWithLeastCopies instead of reading the books
+	// and adding copies to them
+	private boolean restockOnServer = false;
+	// Buy the editor picks with the buyEditorPicks procedure instead of
+	// reading them and buying a sample of them
+	private boolean buyEditorPicksOnServer = false;
 	private BookSetGenerator bookSetGenerator = null;
 	private StockManager stockManager = null;
 	private BookStore bookStore = null;
@@ -97,6 +103,22 @@ public class WorkloadConfiguration {
 		this.percentFrequentStockManagerInteraction = percentFrequentStockManagerInteraction;
 	}
 
+	public boolean isRestockOnServer() {
+		return restockOnServer;
+	}
+
+	public void setRestockOnServer(boolean restockOnServer) {
+		this.restockOnServer = restockOnServer;
+	}
+
+	public boolean isBuyEditorPicksOnServer() {
+		return buyEditorPicksOnServer;
+	}
+
+	public void setBuyEditorPicksOnServer(boolean buyEditorPicksOnServer) {
+		this.buyEditorPicksOnServer = buyEditorPicksOnServer;
+	}
+
 	public int getWarmUpRuns() {
 		return warmUpRuns;
 	}
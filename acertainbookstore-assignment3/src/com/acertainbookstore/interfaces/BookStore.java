@@ -3,10 +3,14 @@ package com.acertainbookstore.interfaces;
 import java.util.List;
 import java.util.Set;
 
+import com.acertainbookstore.business.BackorderStatus;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreOperation;
+import com.acertainbookstore.business.PurchaseResult;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
 
 /**
  * {@link BookStore} declares the methods exposed by the bookstore to the
@@ -15,7 +19,10 @@ import com.acertainbookstore.utils.BookStoreException;
 public interface BookStore {
 
 	/**
-	 * Buys the sets of books specified.
+	 * Buys the sets of books specified, all or nothing. An order that cannot
+	 * be filled takes no copies, but while concurrent purchases race for the
+	 * same books, copies one of them gives back may briefly look sold to
+	 * another, which then misses them.
 	 *
 	 * @param booksToBuy
 	 *            the books to buy
@@ -24,6 +31,103 @@ public interface BookStore {
 	 */
 	public void buyBooks(Set<BookCopy> booksToBuy) throws BookStoreException;
 
+	/**
+	 * Buys the sets of books specified, like {@link #buyBooks(Set)}, but
+	 * returns a sale miss as the result instead of throwing it. The books
+	 * that were short are listed with the copies missing; an invalid order
+	 * still throws.
+	 *
+	 * @param booksToBuy
+	 *            the books to buy
+	 * @return the result of the purchase
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public PurchaseResult tryBuyBooks(Set<BookCopy> booksToBuy) throws BookStoreException;
+
+	/**
+	 * Buys as many of the copies specified as are available, instead of all
+	 * or nothing. Only the copies a book is short of are recorded as its sale
+	 * miss. An invalid order still throws, and then nothing is bought.
+	 *
+	 * @param booksToBuy
+	 *            the books to buy
+	 * @return the copies bought and missed of each book
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public PurchaseResult buyAvailableBooks(Set<BookCopy> booksToBuy) throws BookStoreException;
+
+	/**
+	 * Places a backorder for copies of a book, typically the copies a
+	 * purchase missed. Backorders are filled in the order they were placed,
+	 * as soon as copies of the book are added, and at once if the copies are
+	 * there already. A backorder is cancelled if the book is removed.
+	 *
+	 * @param bookCopy
+	 *            the book and number of copies
+	 * @return the id of the backorder
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public long placeBackorder(BookCopy bookCopy) throws BookStoreException;
+
+	/**
+	 * Waits until a backorder is fulfilled or cancelled, or the timeout
+	 * elapses. The server caps the timeout, cf.
+	 * {@link com.acertainbookstore.utils.BookStoreConstants#MAX_BACKORDER_WAIT_MILLIS}.
+	 *
+	 * @param backorderId
+	 *            the id of the backorder
+	 * @param timeoutMillis
+	 *            the timeout in milliseconds, 0 to only read the status
+	 * @return the status of the backorder
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public BackorderStatus awaitBackorder(long backorderId, long timeoutMillis) throws BookStoreException;
+
+	/**
+	 * Holds copies of the books in the set for a while, all or nothing like
+	 * {@link #buyBooks(Set)}. The copies are taken out of stock until the hold
+	 * is confirmed, which makes it a sale, or cancelled; a hold neither
+	 * confirmed nor cancelled within its time to live expires and gives its
+	 * copies back, unless the book was removed meanwhile. A hold that cannot
+	 * be placed is not a sale miss.
+	 *
+	 * @param bookCopiesToHold
+	 *            the book copies to hold
+	 * @param ttlMillis
+	 *            the time to live in milliseconds, at most
+	 *            {@link com.acertainbookstore.utils.BookStoreConstants#MAX_HOLD_TTL_MILLIS}
+	 * @return the id of the hold
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public long reserveBooks(Set<BookCopy> bookCopiesToHold, long ttlMillis) throws BookStoreException;
+
+	/**
+	 * Confirms a hold, the copies held are bought.
+	 *
+	 * @param holdId
+	 *            the id of the hold
+	 * @throws BookStoreException
+	 *             if the hold is unknown, or already confirmed, cancelled or
+	 *             expired
+	 */
+	public void confirmHold(long holdId) throws BookStoreException;
+
+	/**
+	 * Cancels a hold, the copies held go back in stock.
+	 *
+	 * @param holdId
+	 *            the id of the hold
+	 * @throws BookStoreException
+	 *             if the hold is unknown, or already confirmed, cancelled or
+	 *             expired
+	 */
+	public void cancelHold(long holdId) throws BookStoreException;
+
 	/**
 	 * Applies the BookRatings in the set, i.e. rates each book with their
 	 * respective rating.
@@ -67,4 +171,41 @@ public interface BookStore {
 	 *             the book store exception
 	 */
 	public List<Book> getEditorPicks(int numBooks) throws BookStoreException;
+
+	/**
+	 * Runs a batch of operations in order, in one call, and returns the
+	 * result or the exception of each operation as if it had been called on
+	 * its own. A batch run atomically is all or nothing and isolated from the
+	 * other updates of the store: if an operation fails, none of them is
+	 * applied, the failed one returns its exception and the others are
+	 * skipped. Restocking the books with the least copies, procedures, holds
+	 * and waits on backorders cannot be run atomically.
+	 *
+	 * @param operations
+	 *            the operations
+	 * @param atomic
+	 *            whether the batch is run atomically
+	 * @return the response of each operation, in order
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException;
+
+	/**
+	 * Calls a procedure registered in the server process, cf.
+	 * {@link com.acertainbookstore.business.BookStoreProcedures}, which runs
+	 * several calls to the store in one round trip. The procedure is not
+	 * atomic.
+	 *
+	 * @param name
+	 *            the name of the procedure
+	 * @param arguments
+	 *            the arguments, of the types the procedure was registered
+	 *            with
+	 * @return the result of the procedure
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException;
 }
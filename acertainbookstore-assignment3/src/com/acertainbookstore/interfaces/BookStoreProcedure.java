@@ -0,0 +1,29 @@
+package com.acertainbookstore.interfaces;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BookStoreProcedure} specifies a procedure run in the server process
+ * on behalf of a client, composing calls to the {@link BookStore} and
+ * {@link StockManager} of the store, cf.
+ * {@link com.acertainbookstore.business.BookStoreProcedures}.
+ */
+@FunctionalInterface
+public interface BookStoreProcedure {
+
+	/**
+	 * Runs the procedure. The arguments have already been checked against
+	 * the parameter types the procedure was registered with.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param arguments
+	 *            the arguments
+	 * @return the result sent back to the client
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	Object run(BookStore bookStore, StockManager stockManager, Object[] arguments) throws BookStoreException;
+}
@@ -3,10 +3,14 @@ package com.acertainbookstore.interfaces;
 import java.util.List;
 import java.util.Set;
 
+import com.acertainbookstore.business.BookChanges;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookStoreOperation;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.StockBookPage;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
 
 /**
  * {@link StockManager} declares the methods exposed to be implemented by
@@ -39,6 +43,64 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooks() throws BookStoreException;
 
+	/**
+	 * Gets a page of the books in the bookstore, in ISBN order. The first page
+	 * is requested without a continuation token and every following page with
+	 * the token of the page before it. A book that stays in the store during
+	 * the whole walk is listed exactly once; books added or removed meanwhile
+	 * may or may not be.
+	 *
+	 * @param pageSize
+	 *            the maximum number of books in the page, at most
+	 *            {@link com.acertainbookstore.utils.BookStoreConstants#MAX_PAGE_SIZE}
+	 * @param continuationToken
+	 *            the token of the previous page, or null for the first page
+	 * @return the page
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public StockBookPage getBooksPage(int pageSize, String continuationToken) throws BookStoreException;
+
+	/**
+	 * Gets the books added, changed or removed since an earlier sync. A
+	 * client without books syncs from version 0 and gets all the books; it
+	 * then syncs from the version of the changes it got last. Every change
+	 * made before a sync started is in that sync or the next one.
+	 *
+	 * @param version
+	 *            the version of the last changes applied, or 0
+	 * @return the changes
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException;
+
+	/**
+	 * Gets the numBooks books with the least copies, ties broken by ISBN.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @return the books, least copies first
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<StockBook> getBooksWithLeastCopies(int numBooks) throws BookStoreException;
+
+	/**
+	 * Adds numCopies copies to each of the numBooks books with the least
+	 * copies, as one atomic operation: no purchase or restock runs between
+	 * finding the books and adding their copies.
+	 *
+	 * @param numBooks
+	 *            the number of books
+	 * @param numCopies
+	 *            the number of copies to add to each book
+	 * @return the restocked books, in the order they had the least copies
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<StockBook> restockBooksWithLeastCopies(int numBooks, int numCopies) throws BookStoreException;
+
 	/**
 	 * Gets the books matching the set of ISBNs given, is different to getBooks
 	 * in the BookStore interface because of the return type of the books.
@@ -87,4 +149,41 @@ public interface StockManager {
 	 *             the book store exception
 	 */
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException;
+
+	/**
+	 * Runs a batch of operations in order, in one call, and returns the
+	 * result or the exception of each operation as if it had been called on
+	 * its own. A batch run atomically is all or nothing and isolated from the
+	 * other updates of the store: if an operation fails, none of them is
+	 * applied, the failed one returns its exception and the others are
+	 * skipped. Restocking the books with the least copies, procedures, holds
+	 * and waits on backorders cannot be run atomically.
+	 *
+	 * @param operations
+	 *            the operations
+	 * @param atomic
+	 *            whether the batch is run atomically
+	 * @return the response of each operation, in order
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<BookStoreResponse> runBatch(List<BookStoreOperation> operations, boolean atomic)
+			throws BookStoreException;
+
+	/**
+	 * Calls a procedure registered in the server process, cf.
+	 * {@link com.acertainbookstore.business.BookStoreProcedures}, which runs
+	 * several calls to the store in one round trip. The procedure is not
+	 * atomic.
+	 *
+	 * @param name
+	 *            the name of the procedure
+	 * @param arguments
+	 *            the arguments, of the types the procedure was registered
+	 *            with
+	 * @return the result of the procedure
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public Object callProcedure(String name, Object... arguments) throws BookStoreException;
 }
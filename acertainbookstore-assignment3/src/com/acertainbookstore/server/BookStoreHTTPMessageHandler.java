@@ -1,23 +1,37 @@
 package com.acertainbookstore.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Set;
 
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreOperation;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
+import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreXStreamSerializer;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
@@ -38,20 +52,143 @@ import com.esotericsoftware.kryo.io.Input;
  */
 public class BookStoreHTTPMessageHandler extends AbstractHandler {
 
+	/**
+	 * A request whose content was read into memory, so that it can be checked
+	 * against an idempotency key before it runs.
+	 */
+	private static final class BufferedRequest extends HttpServletRequestWrapper {
+
+		/** The content read. */
+		private final byte[] content;
+
+		/** The stream reading the content again. */
+		private final ServletInputStream inputStream;
+
+		private BufferedRequest(HttpServletRequest request, byte[] content) {
+			super(request);
+			this.content = content;
+
+			ByteArrayInputStream in = new ByteArrayInputStream(content);
+			inputStream = new ServletInputStream() {
+
+				@Override
+				public int read() {
+					return in.read();
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) {
+					return in.read(b, off, len);
+				}
+
+				@Override
+				public boolean isFinished() {
+					return in.available() == 0;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public ServletInputStream getInputStream() {
+			return inputStream;
+		}
+
+		@Override
+		public int getContentLength() {
+			return content.length;
+		}
+
+		@Override
+		public long getContentLengthLong() {
+			return content.length;
+		}
+	}
+
+	/**
+	 * A response whose content is kept in memory, so that it can be
+	 * remembered for an idempotency key before it is written.
+	 */
+	private static final class BufferedResponse extends HttpServletResponseWrapper {
+
+		/** The content written. */
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		/** The stream writing into the content. */
+		private final ServletOutputStream outputStream = new ServletOutputStream() {
+
+			@Override
+			public void write(int b) {
+				content.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				content.write(b, off, len);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		private BufferedResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/**
+		 * Gets the content written.
+		 *
+		 * @return the content
+		 */
+		private byte[] getContent() {
+			return content.toByteArray();
+		}
+	}
+
 	/** The book store. */
-	private CertainBookStore myBookStore = null;
+	private BookStore myBookStore = null;
+
+	/** The stock manager, the same object as the book store. */
+	private StockManager myStockManager = null;
 
 	/** The serializer. */
 	private static ThreadLocal<BookStoreSerializer> serializer;
 
+	/** The responses to the requests sent with an idempotency key. */
+	private final IdempotentResponses idempotentResponses = new IdempotentResponses();
+
 	/**
 	 * Instantiates a new {@link BookStoreHTTPMessageHandler}.
 	 *
+	 * @param <T>
+	 *            the type of the book store
 	 * @param bookStore
-	 *            the book store
+	 *            the book store, e.g., a {@link CertainBookStore}
 	 */
-	public BookStoreHTTPMessageHandler(CertainBookStore bookStore) {
+	public <T extends BookStore & StockManager> BookStoreHTTPMessageHandler(T bookStore) {
 		myBookStore = bookStore;
+		myStockManager = bookStore;
 
 		// Setup the type of serializer.
 		if (BookStoreConstants.BINARY_SERIALIZATION) {
@@ -89,50 +226,12 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		if (messageTag == null) {
 			System.err.println("No message tag.");
 		} else {
-			switch (messageTag) {
-			case REMOVEBOOKS:
-				removeBooks(request, response);
-				break;
-
-			case REMOVEALLBOOKS:
-				removeAllBooks(response);
-				break;
-
-			case ADDBOOKS:
-				addBooks(request, response);
-				break;
-
-			case ADDCOPIES:
-				addCopies(request, response);
-				break;
-
-			case LISTBOOKS:
-				listBooks(response);
-				break;
-
-			case UPDATEEDITORPICKS:
-				updateEditorPicks(request, response);
-				break;
-
-			case BUYBOOKS:
-				buyBooks(request, response);
-				break;
-
-			case GETBOOKS:
-				getBooks(request, response);
-				break;
-
-			case GETEDITORPICKS:
-				getEditorPicks(request, response);
-				break;
-
-			case GETSTOCKBOOKSBYISBN:
-				getStockBooksByISBN(request, response);
-				break;
-
-			default:
-				System.err.println("Unsupported message tag.");
-				break;
+			String idempotencyKey = request.getHeader(BookStoreConstants.IDEMPOTENCY_KEY_HEADER);
+
+			if (idempotencyKey == null) {
+				dispatch(messageTag, request, response);
+			} else {
+				dispatchOnce(messageTag, idempotencyKey, request, response);
 			}
 		}
 
@@ -140,6 +239,169 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		baseRequest.setHandled(true);
 	}
 
+	/**
+	 * Runs the request of the message tag and writes its response.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void dispatch(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		switch (messageTag) {
+		case REMOVEBOOKS:
+			removeBooks(request, response);
+			break;
+
+		case REMOVEALLBOOKS:
+			removeAllBooks(response);
+			break;
+
+		case ADDBOOKS:
+			addBooks(request, response);
+			break;
+
+		case ADDCOPIES:
+			addCopies(request, response);
+			break;
+
+		case LISTBOOKS:
+			listBooks(response);
+			break;
+
+		case LISTBOOKSPAGE:
+			listBooksPage(request, response);
+			break;
+
+		case LISTBOOKSCHANGED:
+			listBooksChanged(request, response);
+			break;
+
+		case UPDATEEDITORPICKS:
+			updateEditorPicks(request, response);
+			break;
+
+		case BUYBOOKS:
+			buyBooks(request, response);
+			break;
+
+		case TRYBUYBOOKS:
+			tryBuyBooks(request, response);
+			break;
+
+		case BUYAVAILABLEBOOKS:
+			buyAvailableBooks(request, response);
+			break;
+
+		case PLACEBACKORDER:
+			placeBackorder(request, response);
+			break;
+
+		case AWAITBACKORDER:
+			awaitBackorder(request, response);
+			break;
+
+		case RESERVEBOOKS:
+			reserveBooks(request, response);
+			break;
+
+		case CONFIRMHOLD:
+			confirmHold(request, response);
+			break;
+
+		case CANCELHOLD:
+			cancelHold(request, response);
+			break;
+
+		case RATEBOOKS:
+			rateBooks(request, response);
+			break;
+
+		case GETBOOKS:
+			getBooks(request, response);
+			break;
+
+		case GETEDITORPICKS:
+			getEditorPicks(request, response);
+			break;
+
+		case GETTOPRATEDBOOKS:
+			getTopRatedBooks(request, response);
+			break;
+
+		case GETSTOCKBOOKSBYISBN:
+			getStockBooksByISBN(request, response);
+			break;
+
+		case GETBOOKSINDEMAND:
+			getBooksInDemand(response);
+			break;
+
+		case GETBOOKSWITHLEASTCOPIES:
+			getBooksWithLeastCopies(request, response);
+			break;
+
+		case RESTOCKBOOKSWITHLEASTCOPIES:
+			restockBooksWithLeastCopies(request, response);
+			break;
+
+		case BATCH:
+			runBatch(request, response);
+			break;
+
+		case CALLPROCEDURE:
+			callProcedure(request, response);
+			break;
+
+		default:
+			System.err.println("Unsupported message tag.");
+			break;
+		}
+	}
+
+	/**
+	 * Runs a request sent with an idempotency key unless it already ran, and
+	 * writes the response of its first run, cf. {@link IdempotentResponses}.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param idempotencyKey
+	 *            the idempotency key
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void dispatchOnce(BookStoreMessageTag messageTag, String idempotencyKey, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		// The content is read first, a retry must send the same.
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+		BufferedRequest bufferedRequest = new BufferedRequest(request, serializedRequestContent);
+		byte[] serializedResponseContent;
+
+		try {
+			serializedResponseContent = idempotentResponses.respond(idempotencyKey, messageTag,
+					request.getQueryString(), serializedRequestContent, () -> {
+						BufferedResponse bufferedResponse = new BufferedResponse(response);
+						dispatch(messageTag, bufferedRequest, bufferedResponse);
+						return bufferedResponse.getContent();
+					});
+		} catch (BookStoreException ex) {
+			BookStoreResponse bookStoreResponse = new BookStoreResponse();
+			bookStoreResponse.setException(ex);
+			serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		}
+
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
 	/**
 	 * Gets the stock books by ISBN.
 	 *
@@ -158,7 +420,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			bookStoreResponse.setList(myBookStore.getBooksByISBN(isbnSet));
+			bookStoreResponse.setList(myStockManager.getBooksByISBN(isbnSet));
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -192,6 +454,31 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		response.getOutputStream().write(serializedResponseContent);
 	}
 
+	/**
+	 * Gets the top rated books.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getTopRatedBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+			bookStoreResponse.setList(myBookStore.getTopRatedBooks(numBooks));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
 	/**
 	 * Gets the books.
 	 *
@@ -246,6 +533,218 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		response.getOutputStream().write(serializedResponseContent);
 	}
 
+	/**
+	 * Buys books, returning the sale misses as the result.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void tryBuyBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStoreResponse.setResult(myBookStore.tryBuyBooks(bookCopiesToBuy));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Buys the copies of books that are available.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void buyAvailableBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStoreResponse.setResult(myBookStore.buyAvailableBooks(bookCopiesToBuy));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Places a backorder.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void placeBackorder(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		BookCopy bookCopy = (BookCopy) serializer.get().deserialize(serializedRequestContent);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStoreResponse.setResult(myBookStore.placeBackorder(bookCopy));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Waits for a backorder, holding the request until it is no longer
+	 * pending or the timeout elapses.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void awaitBackorder(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String backorderString = request.getParameter(BookStoreConstants.BACKORDER_PARAM);
+		String timeoutString = request.getParameter(BookStoreConstants.TIMEOUT_PARAM);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			long backorderId = BookStoreUtility.convertStringToLong(backorderString);
+			long timeoutMillis = BookStoreUtility.convertStringToLong(timeoutString);
+			bookStoreResponse.setResult(myBookStore.awaitBackorder(backorderId, timeoutMillis));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Holds copies of books.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void reserveBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String ttlString = request.getParameter(BookStoreConstants.TTL_PARAM);
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookCopy> bookCopiesToHold = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			long ttlMillis = BookStoreUtility.convertStringToLong(ttlString);
+			bookStoreResponse.setResult(myBookStore.reserveBooks(bookCopiesToHold, ttlMillis));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Confirms a hold.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void confirmHold(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String holdString = request.getParameter(BookStoreConstants.HOLD_PARAM);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			myBookStore.confirmHold(BookStoreUtility.convertStringToLong(holdString));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Cancels a hold.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void cancelHold(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String holdString = request.getParameter(BookStoreConstants.HOLD_PARAM);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			myBookStore.cancelHold(BookStoreUtility.convertStringToLong(holdString));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Rates books.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void rateBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookRating> bookRatings = (Set<BookRating>) serializer.get().deserialize(serializedRequestContent);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			myBookStore.rateBooks(bookRatings);
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
 	/**
 	 * Updates editor picks.
 	 *
@@ -265,7 +764,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			myBookStore.updateEditorPicks(mapEditorPicksValues);
+			myStockManager.updateEditorPicks(mapEditorPicksValues);
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -284,7 +783,194 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	private void listBooks(HttpServletResponse response) throws IOException {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
-		bookStoreResponse.setList(myBookStore.getBooks());
+
+		try {
+			bookStoreResponse.setList(myStockManager.getBooks());
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Lists a page of the books.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void listBooksPage(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String pageSizeString = request.getParameter(BookStoreConstants.PAGE_SIZE_PARAM);
+		String continuationToken = request.getParameter(BookStoreConstants.CONTINUATION_TOKEN_PARAM);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			int pageSize = BookStoreUtility.convertStringToInt(pageSizeString);
+			bookStoreResponse.setResult(myStockManager.getBooksPage(pageSize, continuationToken));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Gets the books with the least copies.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getBooksWithLeastCopies(HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+			bookStoreResponse.setList(myStockManager.getBooksWithLeastCopies(numBooks));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Restocks the books with the least copies.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void restockBooksWithLeastCopies(HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
+		String numCopiesString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_COPIES_PARAM), StandardCharsets.UTF_8);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+			int numCopies = BookStoreUtility.convertStringToInt(numCopiesString);
+			bookStoreResponse.setList(myStockManager.restockBooksWithLeastCopies(numBooks, numCopies));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Runs a batch of operations.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void runBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		List<BookStoreOperation> operations = (List<BookStoreOperation>) serializer.get()
+				.deserialize(serializedRequestContent);
+		boolean atomic = Boolean.parseBoolean(request.getParameter(BookStoreConstants.ATOMIC_PARAM));
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStoreResponse.setList(myStockManager.runBatch(operations, atomic));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Calls a procedure.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void callProcedure(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Object[] arguments = (Object[]) serializer.get().deserialize(serializedRequestContent);
+		String name = request.getParameter(BookStoreConstants.PROCEDURE_PARAM);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStoreResponse.setResult(myBookStore.callProcedure(name, arguments));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Lists the books changed since a version.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void listBooksChanged(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String versionString = request.getParameter(BookStoreConstants.VERSION_PARAM);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			long version = BookStoreUtility.convertStringToLong(versionString);
+			bookStoreResponse.setResult(myStockManager.getBooksChangedSince(version));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Gets the books in demand.
+	 *
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getBooksInDemand(HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStoreResponse.setList(myStockManager.getBooksInDemand());
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
 
 		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
 		response.getOutputStream().write(serializedResponseContent);
@@ -308,7 +994,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			myBookStore.addCopies(listBookCopies);
+			myStockManager.addCopies(listBookCopies);
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -335,7 +1021,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			myBookStore.addBooks(newBooks);
+			myStockManager.addBooks(newBooks);
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -356,7 +1042,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			myBookStore.removeAllBooks();
+			myStockManager.removeAllBooks();
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -383,7 +1069,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			myBookStore.removeBooks(bookSet);
+			myStockManager.removeBooks(bookSet);
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -393,13 +1079,20 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	}
 
 	/**
-	 * Gets the serialized request content.
+	 * Gets the serialized request content. A request without a content
+	 * length, e.g. a chunked one, is read to the end of its content.
 	 *
 	 * @param request the request
 	 * @return the serialized request content
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	private byte[] getSerializedRequestContent(HttpServletRequest request) throws IOException {
+		if (request.getContentLength() < 0) {
+			try (InputStream in = request.getInputStream()) {
+				return in.readAllBytes();
+			}
+		}
+
 		Input in = new Input(request.getInputStream());
 		byte[] serializedRequestContent = in.readBytes(request.getContentLength());
 		in.close();
@@ -2,8 +2,8 @@ package com.acertainbookstore.server;
 
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
-import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * Starts the {@link BookStoreHTTPServer} that the clients will communicate
@@ -30,10 +30,9 @@ public class BookStoreHTTPServer {
 	 *            the arguments
 	 */
 	public static void main(String[] args) {
-		CertainBookStore bookStore = new CertainBookStore();
 		int listenOnPort = DEFAULT_PORT;
+		BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(BookStoreUtility.newLocalStore());
 
-		BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(bookStore);
 		String serverPortString = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_PORT);
 
 		if (serverPortString != null) {
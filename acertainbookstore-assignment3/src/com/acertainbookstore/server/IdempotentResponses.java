@@ -0,0 +1,206 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link IdempotentResponses} remembers the responses to the requests sent
+ * with an idempotency key, so that a retry with the same key is answered from
+ * the first response instead of running the request again, cf.
+ * {@link BookStoreConstants#IDEMPOTENCY_KEY_HEADER}. A retry that arrives
+ * while the first request still runs waits for its response. A request that
+ * fails without a response, e.g. on an I/O error, is forgotten so that a
+ * retry runs it again; a response carrying an exception is remembered like
+ * any other. A key reused for another request, i.e. another message tag,
+ * parameters or content, is rejected.
+ * 
+ * The responses are kept for {@link BookStoreConstants#IDEMPOTENCY_KEY_TTL_MILLIS}
+ * and at most {@link #MAX_RESPONSES} of them, the oldest are dropped first.
+ */
+final class IdempotentResponses {
+
+	/** The maximum number of responses kept. */
+	static final int MAX_RESPONSES = 1 << 16;
+
+	/** The time the responses are kept for. */
+	private static final long RESPONSE_TTL_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(BookStoreConstants.IDEMPOTENCY_KEY_TTL_MILLIS);
+
+	/**
+	 * Runs a request and serializes its response.
+	 */
+	@FunctionalInterface
+	interface ResponseProducer {
+
+		/**
+		 * Runs the request.
+		 *
+		 * @return the serialized response
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		byte[] produce() throws IOException;
+	}
+
+	/**
+	 * The response to the request sent with a key.
+	 */
+	private static final class Response {
+
+		/** The message tag of the request. */
+		private final BookStoreMessageTag messageTag;
+
+		/** The digest of the parameters and content of the request. */
+		private final byte[] requestDigest;
+
+		/** The time the request was first received. */
+		private final long receivedNanos;
+
+		/** Completed with the serialized response once the request ran. */
+		private final CompletableFuture<byte[]> content = new CompletableFuture<>();
+
+		private Response(BookStoreMessageTag messageTag, byte[] requestDigest, long receivedNanos) {
+			this.messageTag = messageTag;
+			this.requestDigest = requestDigest;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+
+	/** The responses by idempotency key, oldest first. */
+	private final LinkedHashMap<String, Response> responses = new LinkedHashMap<>();
+
+	/**
+	 * Answers a request sent with an idempotency key, running it only if no
+	 * response is remembered for the key.
+	 *
+	 * @param idempotencyKey
+	 *            the idempotency key
+	 * @param messageTag
+	 *            the message tag of the request
+	 * @param parameters
+	 *            the query string of the request, or null
+	 * @param content
+	 *            the serialized content of the request
+	 * @param producer
+	 *            runs the request
+	 * @return the serialized response
+	 * @throws BookStoreException
+	 *             if the key was sent with another request
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	byte[] respond(String idempotencyKey, BookStoreMessageTag messageTag, String parameters, byte[] content,
+			ResponseProducer producer) throws BookStoreException, IOException {
+		byte[] requestDigest = digest(parameters, content);
+
+		while (true) {
+			Response response;
+			boolean first = false;
+
+			synchronized (responses) {
+				long now = System.nanoTime();
+				dropExpired(now);
+				response = responses.get(idempotencyKey);
+
+				if (response == null) {
+					response = new Response(messageTag, requestDigest, now);
+					responses.put(idempotencyKey, response);
+					first = true;
+
+					if (responses.size() > MAX_RESPONSES) {
+						Iterator<Map.Entry<String, Response>> eldest = responses.entrySet().iterator();
+						eldest.next();
+						eldest.remove();
+					}
+				}
+			}
+
+			if (response.messageTag != messageTag || !Arrays.equals(response.requestDigest, requestDigest)) {
+				throw new BookStoreException(
+						BookStoreConstants.IDEMPOTENCY_KEY + idempotencyKey + BookStoreConstants.INVALID);
+			}
+
+			if (first) {
+				return produce(idempotencyKey, response, producer);
+			}
+
+			try {
+				return response.content.get();
+			} catch (ExecutionException ex) {
+				// The first request failed without a response, run it again.
+				continue;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * Runs the request for the first time, and forgets the key if it fails.
+	 */
+	private byte[] produce(String idempotencyKey, Response response, ResponseProducer producer) throws IOException {
+		try {
+			byte[] content = producer.produce();
+			response.content.complete(content);
+			return content;
+		} catch (IOException | RuntimeException | Error ex) {
+			synchronized (responses) {
+				responses.remove(idempotencyKey, response);
+			}
+
+			response.content.completeExceptionally(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Digests the parameters and content of a request, so that a request is
+	 * told from another without keeping it.
+	 */
+	private static byte[] digest(String parameters, byte[] content) {
+		MessageDigest digest;
+
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			// Every Java platform supports SHA-256.
+			throw new IllegalStateException(ex);
+		}
+
+		if (parameters != null) {
+			digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+		}
+
+		// The separator tells the parameters from the content.
+		digest.update((byte) 0);
+		digest.update(content);
+		return digest.digest();
+	}
+
+	/**
+	 * Drops the responses older than the time they are kept for. The caller
+	 * holds the lock on the responses.
+	 */
+	private void dropExpired(long now) {
+		Iterator<Response> oldest = responses.values().iterator();
+
+		while (oldest.hasNext() && now - oldest.next().receivedNanos > RESPONSE_TTL_NANOS) {
+			oldest.remove();
+		}
+	}
+}
@@ -19,6 +19,39 @@ public final class BookStoreConstants {
 	/** The Constant BOOK_NUM_PARAM. */
 	public static final String BOOK_NUM_PARAM = "number_of_books";
 
+	/** The Constant BOOK_COPIES_PARAM. */
+	public static final String BOOK_COPIES_PARAM = "number_of_copies";
+
+	/** The Constant PAGE_SIZE_PARAM. */
+	public static final String PAGE_SIZE_PARAM = "page_size";
+
+	/** The Constant CONTINUATION_TOKEN_PARAM. */
+	public static final String CONTINUATION_TOKEN_PARAM = "continuation";
+
+	/** The Constant VERSION_PARAM. */
+	public static final String VERSION_PARAM = "version";
+
+	/** The Constant BACKORDER_PARAM. */
+	public static final String BACKORDER_PARAM = "backorder";
+
+	/** The Constant TIMEOUT_PARAM. */
+	public static final String TIMEOUT_PARAM = "timeout";
+
+	/** The Constant HOLD_PARAM. */
+	public static final String HOLD_PARAM = "hold";
+
+	/** The Constant TTL_PARAM. */
+	public static final String TTL_PARAM = "ttl";
+
+	/** The Constant PROCEDURE_PARAM. */
+	public static final String PROCEDURE_PARAM = "procedure";
+
+	/** The Constant ATOMIC_PARAM. */
+	public static final String ATOMIC_PARAM = "atomic";
+
+	/** The Constant IDEMPOTENCY_KEY_HEADER. */
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
 	/** The Constant XMLSTRINGLEN_PARAM. */
 	public static final String XMLSTRINGLEN_PARAM = "len";
 
@@ -45,12 +78,51 @@ public final class BookStoreConstants {
 	/** The Constant ISBN. */
 	public static final String ISBN = "The ISBN: ";
 
+	/** The Constant PAGE_SIZE. */
+	public static final String PAGE_SIZE = "The page size: ";
+
+	/** The Constant CONTINUATION_TOKEN. */
+	public static final String CONTINUATION_TOKEN = "The continuation token: ";
+
+	/** The Constant VERSION. */
+	public static final String VERSION = "The version: ";
+
+	/** The Constant OPERATION. */
+	public static final String OPERATION = "The operation: ";
+
+	/** The Constant BACKORDER. */
+	public static final String BACKORDER = "The backorder: ";
+
+	/** The Constant TIMEOUT. */
+	public static final String TIMEOUT = "The timeout: ";
+
+	/** The Constant HOLD. */
+	public static final String HOLD = "The hold: ";
+
+	/** The Constant TTL. */
+	public static final String TTL = "The time to live: ";
+
+	/** The Constant IDEMPOTENCY_KEY. */
+	public static final String IDEMPOTENCY_KEY = "The idempotency key: ";
+
+	/** The Constant PROCEDURE. */
+	public static final String PROCEDURE = "The procedure: ";
+
 	/** The Constant NUM_COPIES. */
 	public static final String NUM_COPIES = "The Number of copies: ";
 
 	/** The Constant RATING. */
 	public static final String RATING = "The rating: ";
 
+	/** The Constant INVALID_ARGUMENTS. */
+	public static final String INVALID_ARGUMENTS = " is called with invalid arguments";
+
+	/** The Constant NOT_HELD when the hold is settled or unknown. */
+	public static final String NOT_HELD = " is not held";
+
+	/** The Constant SKIPPED. */
+	public static final String SKIPPED = " is skipped, an operation of the batch failed";
+
 	/** The Constant NULL_INPUT. */
 	public static final String NULL_INPUT = "null input parameters";
 
@@ -60,6 +132,39 @@ public final class BookStoreConstants {
 	/** The Constant PROPERTY_KEY_SERVER_PORT. */
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
 
+	/** The Constant PROPERTY_KEY_STORE selecting the book store backing. */
+	public static final String PROPERTY_KEY_STORE = "store";
+
+	/** The Constant STORE_OFF_HEAP selecting the OffHeapCertainBookStore. */
+	public static final String STORE_OFF_HEAP = "offheap";
+
+	/** The Constant STORE_COMBINING selecting the CombiningBookStore. */
+	public static final String STORE_COMBINING = "combining";
+
+	/** The Constant STORE_SHARDED selecting the ShardedBookStore. */
+	public static final String STORE_SHARDED = "sharded";
+
+	/** The Constant STORE_EPOCH selecting the EpochBookStore. */
+	public static final String STORE_EPOCH = "epoch";
+
+	/** The Constant PROPERTY_KEY_ESCROW, false turns off the escrow of hot books. */
+	public static final String PROPERTY_KEY_ESCROW = "escrow";
+
+	/** The Constant MAX_PAGE_SIZE bounding the books listed per page. */
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	/** The Constant MAX_BACKORDER_WAIT_MILLIS bounding a wait for a backorder. */
+	public static final long MAX_BACKORDER_WAIT_MILLIS = 20000;
+
+	/** The Constant MAX_HOLD_TTL_MILLIS bounding the time to live of a hold. */
+	public static final long MAX_HOLD_TTL_MILLIS = 3600000;
+
+	/**
+	 * The Constant IDEMPOTENCY_KEY_TTL_MILLIS for which the server answers a
+	 * request retried with the same idempotency key from its first response.
+	 */
+	public static final long IDEMPOTENCY_KEY_TTL_MILLIS = 300000;
+
 	/** The Constant EPSILON used for floating point number comparison */
 	public static final float EPSILON = 0.000001F;
 
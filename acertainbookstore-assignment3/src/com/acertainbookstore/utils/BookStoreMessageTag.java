@@ -12,6 +12,12 @@ public enum BookStoreMessageTag {
 	/** The tag for the list books message. */
 	LISTBOOKS,
 
+	/** The tag for the list books page message. */
+	LISTBOOKSPAGE,
+
+	/** The tag for the books changed since a version message. */
+	LISTBOOKSCHANGED,
+
 	/** The tag for the add copies message. */
 	ADDCOPIES,
 
@@ -21,12 +27,39 @@ public enum BookStoreMessageTag {
 	/** The tag for the buy books message. */
 	BUYBOOKS,
 
+	/** The tag for the try buy books message. */
+	TRYBUYBOOKS,
+
+	/** The tag for the buy available books message. */
+	BUYAVAILABLEBOOKS,
+
+	/** The tag for the place backorder message. */
+	PLACEBACKORDER,
+
+	/** The tag for the await backorder message. */
+	AWAITBACKORDER,
+
+	/** The tag for the reserve books message. */
+	RESERVEBOOKS,
+
+	/** The tag for the confirm hold message. */
+	CONFIRMHOLD,
+
+	/** The tag for the cancel hold message. */
+	CANCELHOLD,
+
+	/** The tag for the rate books message. */
+	RATEBOOKS,
+
 	/** The tag for the update editor picks message. */
 	UPDATEEDITORPICKS,
 
 	/** The tag for the editor picks message. */
 	GETEDITORPICKS,
 
+	/** The tag for the top rated books message. */
+	GETTOPRATEDBOOKS,
+
 	/** The tag for the remove all books message. */
 	REMOVEALLBOOKS,
 
@@ -34,5 +67,20 @@ public enum BookStoreMessageTag {
 	REMOVEBOOKS,
 
 	/** The tag for the get stock books by ISBN message. */
-	GETSTOCKBOOKSBYISBN;
+	GETSTOCKBOOKSBYISBN,
+
+	/** The tag for the books with least copies message. */
+	GETBOOKSWITHLEASTCOPIES,
+
+	/** The tag for the restock books with least copies message. */
+	RESTOCKBOOKSWITHLEASTCOPIES,
+
+	/** The tag for the books in demand message. */
+	GETBOOKSINDEMAND,
+
+	/** The tag for the batch of operations message. */
+	BATCH,
+
+	/** The tag for the call procedure message. */
+	CALLPROCEDURE;
 }
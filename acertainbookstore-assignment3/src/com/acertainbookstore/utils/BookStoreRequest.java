@@ -17,6 +17,9 @@ public final class BookStoreRequest {
 	/** The input value. */
 	private final Object inputValue;
 
+	/** The idempotency key, or null. */
+	private final String idempotencyKey;
+
 	/**
 	 * Instantiates a new {@link BookStoreRequest}.
 	 *
@@ -26,11 +29,14 @@ public final class BookStoreRequest {
 	 *            the URL string
 	 * @param inputValue
 	 *            the input value
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
 	 */
-	private BookStoreRequest(HttpMethod method, String urlString, Object inputValue) {
+	private BookStoreRequest(HttpMethod method, String urlString, Object inputValue, String idempotencyKey) {
 		this.method = method;
 		this.urlString = urlString;
 		this.inputValue = inputValue;
+		this.idempotencyKey = idempotencyKey;
 	}
 
 	/**
@@ -60,6 +66,15 @@ public final class BookStoreRequest {
 		return inputValue;
 	}
 
+	/**
+	 * Gets the idempotency key.
+	 *
+	 * @return the idempotency key, or null if the request has none
+	 */
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+
 	/**
 	 * Gets a new GET request.
 	 *
@@ -68,7 +83,7 @@ public final class BookStoreRequest {
 	 * @return the book store request
 	 */
 	public static BookStoreRequest newGetRequest(String urlString) {
-		return new BookStoreRequest(HttpMethod.GET, urlString, null);
+		return new BookStoreRequest(HttpMethod.GET, urlString, null, null);
 	}
 
 	/**
@@ -81,6 +96,24 @@ public final class BookStoreRequest {
 	 * @return the book store request
 	 */
 	public static BookStoreRequest newPostRequest(String urlString, Object inputValue) {
-		return new BookStoreRequest(HttpMethod.POST, urlString, inputValue);
+		return newPostRequest(urlString, inputValue, null);
+	}
+
+	/**
+	 * Gets a new POST request with an idempotency key. The server runs the
+	 * request once for the key, and answers a retry with the same key from
+	 * the first response, cf.
+	 * {@link BookStoreConstants#IDEMPOTENCY_KEY_TTL_MILLIS}.
+	 *
+	 * @param urlString
+	 *            the URL string
+	 * @param inputValue
+	 *            the input value
+	 * @param idempotencyKey
+	 *            the idempotency key, or null
+	 * @return the book store request
+	 */
+	public static BookStoreRequest newPostRequest(String urlString, Object inputValue, String idempotencyKey) {
+		return new BookStoreRequest(HttpMethod.POST, urlString, inputValue, idempotencyKey);
 	}
 }
@@ -17,6 +17,9 @@ public class BookStoreResponse {
 	/** The list. */
 	private List<?> list;
 
+	/** The result of requests that return more than a list. */
+	private Object result;
+
 	/**
 	 * Instantiates a new {@link BookStoreResponse}.
 	 *
@@ -57,6 +60,25 @@ public class BookStoreResponse {
 		this.list = list;
 	}
 
+	/**
+	 * Gets the result.
+	 *
+	 * @return the result
+	 */
+	public Object getResult() {
+		return result;
+	}
+
+	/**
+	 * Sets the result.
+	 *
+	 * @param result
+	 *            the new result
+	 */
+	public void setResult(Object result) {
+		this.result = result;
+	}
+
 	/**
 	 * Gets the exception.
 	 *
@@ -11,8 +11,15 @@ import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.util.BytesContentProvider;
 import org.eclipse.jetty.http.HttpMethod;
 
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.CombiningBookStore;
+import com.acertainbookstore.business.EpochBookStore;
+import com.acertainbookstore.business.OffHeapCertainBookStore;
+import com.acertainbookstore.business.ShardedBookStore;
 import com.acertainbookstore.client.BookStoreClientConstants;
+import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.interfaces.StockManager;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
 
@@ -39,6 +46,32 @@ public final class BookStoreUtility {
 		// Prevent instantiation.
 	}
 
+	/**
+	 * Creates the local store named by the
+	 * {@link BookStoreConstants#PROPERTY_KEY_STORE} property, or a
+	 * {@link CertainBookStore} if it names none.
+	 *
+	 * @param <T>
+	 *            the type of the store
+	 * @return the store, both the book store and the stock manager
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends BookStore & StockManager> T newLocalStore() {
+		String store = System.getProperty(BookStoreConstants.PROPERTY_KEY_STORE);
+
+		if (BookStoreConstants.STORE_OFF_HEAP.equals(store)) {
+			return (T) new OffHeapCertainBookStore();
+		} else if (BookStoreConstants.STORE_COMBINING.equals(store)) {
+			return (T) new CombiningBookStore();
+		} else if (BookStoreConstants.STORE_SHARDED.equals(store)) {
+			return (T) new ShardedBookStore();
+		} else if (BookStoreConstants.STORE_EPOCH.equals(store)) {
+			return (T) new EpochBookStore();
+		}
+
+		return (T) new CertainBookStore();
+	}
+
 	/**
 	 * Checks if is invalid ISBN.
 	 *
@@ -128,6 +161,27 @@ public final class BookStoreUtility {
 		return returnValue;
 	}
 
+	/**
+	 * Converts a string to a long.
+	 *
+	 * @param str
+	 *            the string
+	 * @return the long
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public static long convertStringToLong(String str) throws BookStoreException {
+		long returnValue = 0;
+
+		try {
+			returnValue = Long.parseLong(str);
+		} catch (Exception ex) {
+			throw new BookStoreException(ex);
+		}
+
+		return returnValue;
+	}
+
 	/**
 	 * Convert a request URI to the message tags supported in CertainBookStore.
 	 *
@@ -175,6 +229,10 @@ public final class BookStoreUtility {
 				byte[] serializedValue = serializer.serialize(bookStoreRequest.getInputValue());
 				ContentProvider contentProvider = new BytesContentProvider(serializedValue);
 				request = client.POST(bookStoreRequest.getURLString()).content(contentProvider);
+
+				if (bookStoreRequest.getIdempotencyKey() != null) {
+					request.header(BookStoreConstants.IDEMPOTENCY_KEY_HEADER, bookStoreRequest.getIdempotencyKey());
+				}
 			} catch (IOException ex) {
 				throw new BookStoreException("Serialization error", ex);
 			}